@@ -0,0 +1,161 @@
+package me.azhuchkov.tcproxy.bench;
+
+import me.azhuchkov.tcproxy.backend.MaglevTable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures cost of backend lookup by client address and share of clients remapped
+ * when backend set changes.
+ * <p/>
+ * Builds {@link MaglevTable} of given count of backends and looks up backends of random client
+ * addresses, the same way proxy does on accept. Then removes one backend and adds new one and
+ * counts clients that have changed their backends. Ideal share of remapped clients is
+ * {@code 1 / backends}: only clients of removed backend or clients taken by added one move.
+ * <p/>
+ * Settings (system properties):
+ * <ul>
+ * <li>{@code bench.backends} - count of backends, default 16;</li>
+ * <li>{@code bench.clients} - count of distinct client addresses, default 100000;</li>
+ * <li>{@code bench.lookups} - count of measured lookups, default 50000000.</li>
+ * </ul>
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class AffinityBenchmark {
+    /**
+     * Entry point.
+     *
+     * @param args Command line arguments (not used).
+     * @throws Exception If failed.
+     */
+    public static void main(String[] args) throws Exception {
+        int backendsCount = Integer.getInteger("bench.backends", 16);
+        int clientsCount = Integer.getInteger("bench.clients", 100000);
+        long lookups = Long.getLong("bench.lookups", 50000000L);
+
+        List<SocketAddress> backends = new ArrayList<>(backendsCount + 1);
+
+        for (int i = 0; i < backendsCount + 1; i++)
+            backends.add(new InetSocketAddress(
+                    InetAddress.getByAddress(new byte[]{10, 1, (byte) (i >> 8), (byte) i}), 8080));
+
+        SocketAddress added = backends.remove(backendsCount);
+
+        Random random = new Random(42);
+
+        SocketAddress[] clients = new SocketAddress[clientsCount];
+
+        for (int i = 0; i < clientsCount; i++) {
+            byte[] ip = new byte[4];
+
+            random.nextBytes(ip);
+
+            clients[i] = new InetSocketAddress(InetAddress.getByAddress(ip), 1024 + random.nextInt(60000));
+        }
+
+        long start = System.nanoTime();
+
+        MaglevTable table = new MaglevTable(backends);
+
+        System.out.printf("Table of %d slots for %d backends built in %d us%n",
+                table.size(), backendsCount, (System.nanoTime() - start) / 1000);
+
+        // warm up, then measure
+        long sink = lookup(table, clients, lookups / 10);
+
+        start = System.nanoTime();
+
+        sink += lookup(table, clients, lookups);
+
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("Lookup (hash of client address and table access): %.2f ns/op (%d)%n",
+                (double) elapsed / lookups, sink & 1);
+
+        int[] shares = new int[backendsCount];
+        int[] before = new int[clientsCount];
+
+        for (int i = 0; i < clientsCount; i++) {
+            before[i] = table.lookup(MaglevTable.hash(clients[i]));
+
+            shares[before[i]]++;
+        }
+
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+
+        for (int share : shares) {
+            min = Math.min(min, share);
+            max = Math.max(max, share);
+        }
+
+        System.out.printf("Clients per backend: min %d, max %d, ideal %d%n", min, max, clientsCount / backendsCount);
+
+        // remove the last backend
+        List<SocketAddress> removedSet = new ArrayList<>(backends.subList(0, backendsCount - 1));
+
+        report("Backend removed", backends, before, new MaglevTable(removedSet), removedSet, clients,
+                1.0 / backendsCount);
+
+        List<SocketAddress> addedSet = new ArrayList<>(backends);
+
+        addedSet.add(added);
+
+        report("Backend added", backends, before, new MaglevTable(addedSet), addedSet, clients,
+                1.0 / (backendsCount + 1));
+    }
+
+    /**
+     * Looks up backends of clients in turn.
+     *
+     * @param table   Lookup table.
+     * @param clients Client addresses.
+     * @param lookups Count of lookups.
+     * @return Sum of backend indexes, so lookups are not eliminated.
+     */
+    private static long lookup(MaglevTable table, SocketAddress[] clients, long lookups) {
+        long sum = 0;
+
+        for (long i = 0, idx = 0; i < lookups; i++) {
+            sum += table.lookup(MaglevTable.hash(clients[(int) idx]));
+
+            if (++idx == clients.length)
+                idx = 0;
+        }
+
+        return sum;
+    }
+
+    /**
+     * Prints share of clients which backend has changed.
+     *
+     * @param title    Change title.
+     * @param backends Backends before change.
+     * @param before   Backend indexes of clients before change.
+     * @param table    Table after change.
+     * @param changed  Backends after change.
+     * @param clients  Client addresses.
+     * @param ideal    Ideal share of remapped clients.
+     */
+    private static void report(String title, List<SocketAddress> backends, int[] before, MaglevTable table,
+                               List<SocketAddress> changed, SocketAddress[] clients, double ideal) {
+        int remapped = 0;
+
+        for (int i = 0; i < clients.length; i++) {
+            SocketAddress backend = changed.get(table.lookup(MaglevTable.hash(clients[i])));
+
+            if (!backend.equals(backends.get(before[i])))
+                remapped++;
+        }
+
+        System.out.printf("%s: %.2f%% of clients remapped, ideal %.2f%%%n", title,
+                100.0 * remapped / clients.length, 100.0 * ideal);
+    }
+}
@@ -0,0 +1,295 @@
+package me.azhuchkov.tcproxy.bench;
+
+import me.azhuchkov.tcproxy.PortMapping;
+import me.azhuchkov.tcproxy.ProxyServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures latency of interactive flow that shares single worker with saturating bulk flows.
+ * <p/>
+ * Starts echo backend and {@link ProxyServer} with one worker in this JVM. Interactive client
+ * sends small messages through the proxy one by one and records round trip times, first alone
+ * and then while bulk clients push data through the same worker as fast as they can.
+ * Percentiles of both runs are printed. Fails (exit code 1) if p99 under load exceeds threshold.
+ * <p/>
+ * Settings (system properties):
+ * <ul>
+ * <li>{@code bench.bulkFlows} - count of bulk flows, default 8;</li>
+ * <li>{@code bench.pings} - count of interactive round trips per run, default 10000;</li>
+ * <li>{@code bench.quantum} - scheduling quantum of the proxy, default {@link ProxyServer#DEFAULT_QUANTUM};</li>
+ * <li>{@code bench.maxP99Micros} - p99 threshold under load, microseconds, default 0 (not checked).</li>
+ * </ul>
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class FairnessBenchmark {
+    /** Loopback address. */
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    /** Size of interactive message. */
+    private static final int PING_SIZE = 64;
+
+    /** Size of chunk written by bulk clients. */
+    private static final int BULK_CHUNK = 64 * 1024;
+
+    /** Count of round trips performed before measurement. */
+    private static final int WARMUP_PINGS = 1000;
+
+    /**
+     * Entry point.
+     *
+     * @param args Command line arguments (not used).
+     * @throws Exception If failed.
+     */
+    public static void main(String[] args) throws Exception {
+        int bulkFlows = Integer.getInteger("bench.bulkFlows", 8);
+        int pings = Integer.getInteger("bench.pings", 10000);
+        int quantum = Integer.getInteger("bench.quantum", ProxyServer.DEFAULT_QUANTUM);
+        long maxP99 = Long.getLong("bench.maxP99Micros", 0);
+
+        final ServerSocket backend = new ServerSocket(0, 128, LOOPBACK);
+
+        Thread backendThread = new Thread("Echo") {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        final Socket socket = backend.accept();
+
+                        socket.setTcpNoDelay(true);
+
+                        startDaemon("Echo-" + socket.getPort(), new Runnable() {
+                            @Override
+                            public void run() {
+                                pump(socket, socket);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+
+        backendThread.setDaemon(true);
+        backendThread.start();
+
+        InetSocketAddress backendAddress = new InetSocketAddress(LOOPBACK, backend.getLocalPort());
+        InetSocketAddress proxyAddress = new InetSocketAddress(LOOPBACK, freePort());
+
+        ProxyServer server = ProxyServer.create().workers(1).quantum(quantum).build();
+
+        server.start(Collections.singleton(new PortMapping("bench", proxyAddress, backendAddress)));
+
+        System.out.println("Measuring " + pings + " round trips without load...");
+
+        long[] idle = ping(proxyAddress, pings);
+
+        System.out.println("Measuring " + pings + " round trips along with " + bulkFlows +
+                " bulk flows (quantum " + quantum + " bytes)...");
+
+        List<Socket> bulkSockets = new ArrayList<>(bulkFlows);
+
+        for (int i = 0; i < bulkFlows; i++)
+            bulkSockets.add(startBulk(proxyAddress));
+
+        // let bulk flows saturate the worker
+        Thread.sleep(500);
+
+        long[] loaded = ping(proxyAddress, pings);
+
+        for (Socket socket : bulkSockets)
+            socket.close();
+
+        server.shutdown();
+        backend.close();
+
+        report("Without load", idle);
+        report("Under load", loaded);
+
+        long p99 = percentile(loaded, 0.99) / 1000;
+
+        if (maxP99 > 0 && p99 > maxP99) {
+            System.out.println("FAILED: p99 under load exceeds " + maxP99 + " us");
+
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Performs round trips of small messages one by one.
+     *
+     * @param address Address to connect to.
+     * @param pings   Count of round trips.
+     * @return Sorted round trip times, ns.
+     * @throws IOException If failed.
+     */
+    private static long[] ping(InetSocketAddress address, int pings) throws IOException {
+        long[] times = new long[pings];
+
+        byte[] message = new byte[PING_SIZE];
+
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            socket.setTcpNoDelay(true);
+
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            for (int i = -WARMUP_PINGS; i < pings; i++) {
+                long start = System.nanoTime();
+
+                out.write(message);
+
+                for (int read = 0; read < PING_SIZE; ) {
+                    int n = in.read(message, read, PING_SIZE - read);
+
+                    if (n < 0)
+                        throw new IOException("Connection closed by proxy");
+
+                    read += n;
+                }
+
+                if (i >= 0)
+                    times[i] = System.nanoTime() - start;
+            }
+        }
+
+        Arrays.sort(times);
+
+        return times;
+    }
+
+    /**
+     * Starts bulk flow: one thread writes data as fast as possible, another one discards echoed data.
+     *
+     * @param address Address to connect to.
+     * @return Socket of the flow.
+     * @throws IOException If failed.
+     */
+    private static Socket startBulk(InetSocketAddress address) throws IOException {
+        final Socket socket = new Socket(address.getAddress(), address.getPort());
+
+        startDaemon("Bulk-writer-" + socket.getLocalPort(), new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[BULK_CHUNK];
+
+                try {
+                    OutputStream out = socket.getOutputStream();
+
+                    while (true)
+                        out.write(chunk);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+
+        startDaemon("Bulk-reader-" + socket.getLocalPort(), new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[BULK_CHUNK];
+
+                try {
+                    InputStream in = socket.getInputStream();
+
+                    while (in.read(chunk) >= 0) {
+                        // discard
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+
+        return socket;
+    }
+
+    /**
+     * Copies data from input socket to output one until either is closed.
+     *
+     * @param from Socket to read from.
+     * @param to   Socket to write to.
+     */
+    private static void pump(Socket from, Socket to) {
+        byte[] buf = new byte[BULK_CHUNK];
+
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+
+            int n;
+
+            while ((n = in.read(buf)) >= 0)
+                out.write(buf, 0, n);
+        } catch (IOException e) {
+            // closed
+        } finally {
+            try {
+                from.close();
+                to.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Prints percentiles of round trip times.
+     *
+     * @param title Run title.
+     * @param times Sorted round trip times, ns.
+     */
+    private static void report(String title, long[] times) {
+        System.out.printf("%s: p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us%n", title,
+                percentile(times, 0.5) / 1000, percentile(times, 0.9) / 1000,
+                percentile(times, 0.99) / 1000, percentile(times, 0.999) / 1000,
+                times[times.length - 1] / 1000);
+    }
+
+    /**
+     * @param times    Sorted values.
+     * @param quantile Quantile in range (0..1).
+     * @return Value at given quantile.
+     */
+    private static long percentile(long[] times, double quantile) {
+        return times[Math.min(times.length - 1, (int) (times.length * quantile))];
+    }
+
+    /**
+     * Starts daemon thread.
+     *
+     * @param name Thread name.
+     * @param task Thread task.
+     */
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return Port that is free at the moment.
+     * @throws IOException If failed.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, LOOPBACK)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package me.azhuchkov.tcproxy.bench;
+
+import me.azhuchkov.tcproxy.PortMapping;
+import me.azhuchkov.tcproxy.ProxyServer;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Measures memory and file descriptors that proxy spends on idle connections.
+ * <p/>
+ * Opens N connections to local sink backend directly and then the same number of connections
+ * through {@link ProxyServer} running in this JVM. Difference between the two runs is the cost
+ * of proxying. Each run is preceded by warm-up connections, and fixed costs of the server are
+ * spread over all connections, so small counts overestimate the cost.
+ * Fails (exit code 1) if cost per connection exceeds configured thresholds.
+ * <p/>
+ * Settings (system properties):
+ * <ul>
+ * <li>{@code bench.connections} - count of connections, default 4000;</li>
+ * <li>{@code bench.maxHeapPerConnection} - heap bytes threshold, default 4096;</li>
+ * <li>{@code bench.maxDirectPerConnection} - direct memory bytes threshold, default 512;</li>
+ * <li>{@code bench.maxFdsPerConnection} - file descriptors threshold, default 2.</li>
+ * </ul>
+ * Note that 4 file descriptors are open per connection, so limit of open files should be raised.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class FootprintBenchmark {
+    /** Loopback address. */
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    /** Time to wait until sink accepts all connections, ms. */
+    private static final long CONNECT_TIMEOUT = 60000;
+
+    /** Count of connections opened and closed before each measurement. */
+    private static final int WARMUP_CONNECTIONS = 1000;
+
+    /** Connections accepted by sink. */
+    private static final Queue<SocketChannel> sinkChannels = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Entry point.
+     *
+     * @param args Command line arguments (not used).
+     * @throws Exception If failed.
+     */
+    public static void main(String[] args) throws Exception {
+        int connections = Integer.getInteger("bench.connections", 4000);
+
+        long maxHeap = Long.getLong("bench.maxHeapPerConnection", 4096);
+        long maxDirect = Long.getLong("bench.maxDirectPerConnection", 512);
+        double maxFds = Double.parseDouble(System.getProperty("bench.maxFdsPerConnection", "2"));
+
+        final ServerSocketChannel sink = ServerSocketChannel.open();
+
+        sink.bind(new InetSocketAddress(LOOPBACK, 0), connections);
+
+        Thread sinkThread = new Thread("Sink") {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted())
+                        sinkChannels.add(sink.accept());
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+
+        sinkThread.setDaemon(true);
+        sinkThread.start();
+
+        InetSocketAddress sinkAddress = (InetSocketAddress) sink.getLocalAddress();
+
+        int warmup = Math.min(connections, WARMUP_CONNECTIONS);
+
+        // one-time costs (class loading, lazily grown tables) must not be charged to measured connections
+        measure(sinkAddress, warmup);
+
+        System.out.println("Measuring " + connections + " direct connections...");
+
+        Sample direct = measure(sinkAddress, connections);
+
+        ProxyServer server = new ProxyServer();
+
+        InetSocketAddress proxyAddress = new InetSocketAddress(LOOPBACK, freePort());
+
+        server.start(Collections.singleton(new PortMapping("bench", proxyAddress, sinkAddress)));
+
+        measure(proxyAddress, warmup);
+
+        System.out.println("Measuring " + connections + " proxied connections...");
+
+        Sample proxied = measure(proxyAddress, connections);
+
+        long bufferMemory = server.bufferMemory();
+
+        server.shutdown();
+        sink.close();
+
+        double heap = (double) (proxied.heap - direct.heap) / connections;
+        double directMem = (double) (proxied.direct - direct.direct) / connections;
+        double fds = (double) (proxied.fds - direct.fds) / connections;
+        double buffers = (double) bufferMemory / connections;
+
+        System.out.printf("Per proxied connection: heap %.1f B, direct %.1f B (buffer pool %.1f B), fds %.2f%n",
+                heap, directMem, buffers, fds);
+
+        boolean failed = false;
+
+        if (heap > maxHeap) {
+            System.out.println("FAILED: heap per connection exceeds " + maxHeap + " B");
+            failed = true;
+        }
+
+        if (directMem > maxDirect) {
+            System.out.println("FAILED: direct memory per connection exceeds " + maxDirect + " B");
+            failed = true;
+        }
+
+        if (proxied.fds >= 0 && fds > maxFds) {
+            System.out.println("FAILED: file descriptors per connection exceed " + maxFds);
+            failed = true;
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Opens connections to given address, waits until sink accepts all of them and samples resource usage.
+     * All connections are closed afterwards.
+     *
+     * @param address     Address to connect to.
+     * @param connections Count of connections.
+     * @return Resources used by connections.
+     * @throws Exception If failed.
+     */
+    private static Sample measure(InetSocketAddress address, int connections) throws Exception {
+        Sample before = sample();
+
+        List<SocketChannel> clients = new ArrayList<>(connections);
+
+        for (int i = 0; i < connections; i++)
+            clients.add(SocketChannel.open(address));
+
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+
+        while (sinkChannels.size() < connections) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Sink has accepted only " + sinkChannels.size() + " of " +
+                        connections + " connections (check limit of open files)");
+
+            Thread.sleep(100);
+        }
+
+        // let workers finish registration of the last connections
+        Thread.sleep(1000);
+
+        Sample after = sample();
+
+        for (SocketChannel client : clients)
+            client.close();
+
+        SocketChannel channel;
+
+        while ((channel = sinkChannels.poll()) != null)
+            channel.close();
+
+        return new Sample(after.heap - before.heap, after.direct - before.direct,
+                before.fds < 0 ? -1 : after.fds - before.fds);
+    }
+
+    /**
+     * @return Current resource usage.
+     * @throws InterruptedException If interrupted.
+     */
+    private static Sample sample() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        long direct = 0;
+
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName()))
+                direct = pool.getMemoryUsed();
+        }
+
+        long fds = -1;
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+            fds = ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+
+        return new Sample(heap, direct, fds);
+    }
+
+    /**
+     * @return Port that is free at the moment.
+     * @throws IOException If failed.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            channel.bind(new InetSocketAddress(LOOPBACK, 0));
+
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+    }
+
+    /**
+     * Resource usage sample.
+     */
+    private static class Sample {
+        final long heap;
+        final long direct;
+        final long fds;
+
+        Sample(long heap, long direct, long fds) {
+            this.heap = heap;
+            this.direct = direct;
+            this.fds = fds;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package me.azhuchkov.tcproxy.bench;
+
+import me.azhuchkov.tcproxy.PortMapping;
+import me.azhuchkov.tcproxy.ProxyServer;
+import me.azhuchkov.tcproxy.WorkerGroup;
+import me.azhuchkov.tcproxy.channel.SocketChannelFactory;
+import me.azhuchkov.tcproxy.channel.UnixDomainSockets;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Compares relay latency of loopback TCP and Unix domain sockets.
+ * <p/>
+ * Starts two echo backends, TCP one and Unix domain socket one, and {@link ProxyServer} with one worker
+ * in this JVM. Client sends small messages one by one and records round trip times, first through
+ * TCP mapping (client to proxy and proxy to backend over loopback TCP), then through Unix domain socket
+ * mapping (both hops over Unix domain sockets). Percentiles of both runs are printed.
+ * Requires JDK 16 or later, otherwise benchmark is skipped.
+ * <p/>
+ * Settings (system properties):
+ * <ul>
+ * <li>{@code bench.pings} - count of round trips per run, default 20000;</li>
+ * <li>{@code bench.messageSize} - size of message, default 64.</li>
+ * </ul>
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class RelayLatencyBenchmark {
+    /** Loopback address. */
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    /** Count of round trips performed before measurement. */
+    private static final int WARMUP_PINGS = 2000;
+
+    /** Size of echo buffer. */
+    private static final int ECHO_BUFFER = 64 * 1024;
+
+    /**
+     * Entry point.
+     *
+     * @param args Command line arguments (not used).
+     * @throws Exception If failed.
+     */
+    public static void main(String[] args) throws Exception {
+        int pings = Integer.getInteger("bench.pings", 20000);
+        int messageSize = Integer.getInteger("bench.messageSize", 64);
+
+        if (!UnixDomainSockets.isSupported()) {
+            System.out.println("Unix domain sockets are unsupported by this JVM, benchmark is skipped");
+
+            System.exit(0);
+        }
+
+        SelectorProvider provider = SelectorProvider.provider();
+
+        Path dir = Files.createTempDirectory("tcproxy-bench");
+
+        SocketAddress udsBackendAddress = UnixDomainSockets.address(dir.resolve("backend.sock").toString());
+        SocketAddress udsProxyAddress = UnixDomainSockets.address(dir.resolve("proxy.sock").toString());
+
+        ServerSocketChannel tcpBackend = provider.openServerSocketChannel();
+        tcpBackend.bind(new InetSocketAddress(LOOPBACK, 0), 128);
+
+        ServerSocketChannel udsBackend = UnixDomainSockets.openServerSocketChannel(provider);
+        udsBackend.bind(udsBackendAddress, 128);
+
+        startEcho(tcpBackend);
+        startEcho(udsBackend);
+
+        SocketAddress tcpProxyAddress = new InetSocketAddress(LOOPBACK, freePort());
+
+        ProxyServer server = ProxyServer.create()
+                .workers(1)
+                .socketFactory(SocketChannelFactory.create()
+                        .option(StandardSocketOptions.TCP_NODELAY, true)
+                        .build())
+                .build();
+
+        server.start(Arrays.asList(
+                new PortMapping("tcp", tcpProxyAddress, tcpBackend.getLocalAddress(), WorkerGroup.DEFAULT,
+                        null, null, 0),
+                new PortMapping("uds", udsProxyAddress, udsBackendAddress, WorkerGroup.DEFAULT,
+                        null, null, 0)));
+
+        System.out.println("Measuring " + pings + " round trips of " + messageSize + " bytes over loopback TCP...");
+
+        long[] tcp = ping(provider.openSocketChannel(), tcpProxyAddress, pings, messageSize);
+
+        System.out.println("Measuring " + pings + " round trips of " + messageSize +
+                " bytes over Unix domain sockets...");
+
+        long[] uds = ping(UnixDomainSockets.openSocketChannel(provider), udsProxyAddress, pings, messageSize);
+
+        server.shutdown();
+        tcpBackend.close();
+        udsBackend.close();
+
+        Files.deleteIfExists(UnixDomainSockets.path(udsBackendAddress));
+        Files.deleteIfExists(UnixDomainSockets.path(udsProxyAddress));
+        Files.delete(dir);
+
+        report("Loopback TCP", tcp);
+        report("Unix domain sockets", uds);
+
+        System.out.printf("Median round trip ratio UDS/TCP: %.2f%n",
+                (double) percentile(uds, 0.5) / percentile(tcp, 0.5));
+
+        System.exit(0);
+    }
+
+    /**
+     * Performs round trips of messages one by one.
+     *
+     * @param channel     Unconnected channel.
+     * @param address     Address to connect to.
+     * @param pings       Count of round trips.
+     * @param messageSize Size of message.
+     * @return Sorted round trip times, ns.
+     * @throws IOException If failed.
+     */
+    private static long[] ping(SocketChannel channel, SocketAddress address, int pings, int messageSize)
+            throws IOException {
+        long[] times = new long[pings];
+
+        ByteBuffer message = ByteBuffer.allocateDirect(messageSize);
+
+        try (SocketChannel ch = channel) {
+            if (address instanceof InetSocketAddress)
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            ch.connect(address);
+
+            for (int i = -WARMUP_PINGS; i < pings; i++) {
+                long start = System.nanoTime();
+
+                message.clear();
+
+                while (message.hasRemaining())
+                    ch.write(message);
+
+                message.clear();
+
+                while (message.hasRemaining()) {
+                    if (ch.read(message) < 0)
+                        throw new IOException("Connection closed by proxy");
+                }
+
+                if (i >= 0)
+                    times[i] = System.nanoTime() - start;
+            }
+        }
+
+        Arrays.sort(times);
+
+        return times;
+    }
+
+    /**
+     * Starts daemon thread that accepts connections and echoes their data.
+     *
+     * @param server Bound server channel.
+     */
+    private static void startEcho(final ServerSocketChannel server) {
+        startDaemon("Echo-" + server, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final SocketChannel channel = server.accept();
+
+                        startDaemon("Echo-" + channel, new Runnable() {
+                            @Override
+                            public void run() {
+                                echo(channel);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes data read from channel back until it's closed.
+     *
+     * @param channel Channel.
+     */
+    private static void echo(SocketChannel channel) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(ECHO_BUFFER);
+
+        try (SocketChannel ch = channel) {
+            if (ch.getLocalAddress() instanceof InetSocketAddress)
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            while (ch.read(buf) >= 0) {
+                buf.flip();
+
+                while (buf.hasRemaining())
+                    ch.write(buf);
+
+                buf.clear();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Prints percentiles of round trip times.
+     *
+     * @param title Run title.
+     * @param times Sorted round trip times, ns.
+     */
+    private static void report(String title, long[] times) {
+        System.out.printf("%s: p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us%n", title,
+                percentile(times, 0.5) / 1000, percentile(times, 0.9) / 1000,
+                percentile(times, 0.99) / 1000, percentile(times, 0.999) / 1000,
+                times[times.length - 1] / 1000);
+    }
+
+    /**
+     * @param times    Sorted values.
+     * @param quantile Quantile in range (0..1).
+     * @return Value at given quantile.
+     */
+    private static long percentile(long[] times, double quantile) {
+        return times[Math.min(times.length - 1, (int) (times.length * quantile))];
+    }
+
+    /**
+     * Starts daemon thread.
+     *
+     * @param name Thread name.
+     * @param task Thread task.
+     */
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return Port that is free at the moment.
+     * @throws IOException If failed.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, LOOPBACK)) {
+            return socket.getLocalPort();
+        }
+    }
+}
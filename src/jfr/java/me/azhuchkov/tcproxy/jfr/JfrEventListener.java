@@ -0,0 +1,198 @@
+package me.azhuchkov.tcproxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import me.azhuchkov.tcproxy.PortMapping;
+import me.azhuchkov.tcproxy.event.CloseReason;
+import me.azhuchkov.tcproxy.event.ProxyEventListener;
+
+import java.net.SocketAddress;
+
+/**
+ * Emits proxy events to JDK Flight Recorder. Flight Recorder API requires JDK 8u262 or later,
+ * so the listener is built separately from the server. It's enabled with
+ * {@code -Dtcproxy.events.listener=me.azhuchkov.tcproxy.jfr.JfrEventListener}.
+ * <p/>
+ * Events are emitted only while recording has them enabled. Session and write stall events are
+ * enabled by default; buffer allocation and worker wakeup events are frequent, so they are disabled
+ * by default and should be enabled in recording settings explicitly.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class JfrEventListener implements ProxyEventListener {
+    @Override
+    public void onAccept(PortMapping mapping, SocketAddress client) {
+        AcceptEvent event = new AcceptEvent();
+
+        if (event.isEnabled()) {
+            event.mapping = mapping.title();
+            event.client = String.valueOf(client);
+
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onConnect(PortMapping mapping, SocketAddress remote, long duration) {
+        ConnectEvent event = new ConnectEvent();
+
+        if (event.isEnabled()) {
+            event.mapping = mapping.title();
+            event.remote = String.valueOf(remote);
+            event.connectTime = duration;
+
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onClose(PortMapping mapping, long sentBytes, long receivedBytes, long duration, CloseReason reason) {
+        CloseEvent event = new CloseEvent();
+
+        if (event.isEnabled()) {
+            event.mapping = mapping.title();
+            event.sentBytes = sentBytes;
+            event.receivedBytes = receivedBytes;
+            event.lifetime = duration;
+            event.reason = reason.name();
+
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onWriteStall(PortMapping mapping, boolean upstream, long duration) {
+        WriteStallEvent event = new WriteStallEvent();
+
+        if (event.isEnabled()) {
+            event.mapping = mapping.title();
+            event.upstream = upstream;
+            event.stallTime = duration;
+
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onBufferAllocate(int capacity) {
+        BufferAllocateEvent event = new BufferAllocateEvent();
+
+        if (event.isEnabled()) {
+            event.capacity = capacity;
+
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onWakeup(String worker) {
+        WakeupEvent event = new WakeupEvent();
+
+        if (event.isEnabled()) {
+            event.worker = worker;
+
+            event.commit();
+        }
+    }
+
+    @Name("tcproxy.SessionAccept")
+    @Label("Session Accept")
+    @Category("TCP Proxy")
+    @StackTrace(false)
+    static class AcceptEvent extends Event {
+        @Label("Mapping")
+        String mapping;
+
+        @Label("Client Address")
+        String client;
+    }
+
+    @Name("tcproxy.SessionConnect")
+    @Label("Session Connect")
+    @Category("TCP Proxy")
+    @StackTrace(false)
+    static class ConnectEvent extends Event {
+        @Label("Mapping")
+        String mapping;
+
+        @Label("Remote Address")
+        String remote;
+
+        @Label("Connect Time")
+        @Description("Time since incoming connection was accepted")
+        @Timespan
+        long connectTime;
+    }
+
+    @Name("tcproxy.SessionClose")
+    @Label("Session Close")
+    @Category("TCP Proxy")
+    @StackTrace(false)
+    static class CloseEvent extends Event {
+        @Label("Mapping")
+        String mapping;
+
+        @Label("Sent")
+        @Description("Bytes relayed from client to remote endpoint")
+        @DataAmount
+        long sentBytes;
+
+        @Label("Received")
+        @Description("Bytes relayed from remote endpoint to client")
+        @DataAmount
+        long receivedBytes;
+
+        @Label("Lifetime")
+        @Timespan
+        long lifetime;
+
+        @Label("Close Reason")
+        String reason;
+    }
+
+    @Name("tcproxy.WriteStall")
+    @Label("Write Stall")
+    @Category("TCP Proxy")
+    @Description("Reading suspended since other side of connection couldn't accept data")
+    @StackTrace(false)
+    static class WriteStallEvent extends Event {
+        @Label("Mapping")
+        String mapping;
+
+        @Label("Upstream")
+        @Description("Whether writing to remote endpoint stalled")
+        boolean upstream;
+
+        @Label("Stall Time")
+        @Timespan
+        long stallTime;
+    }
+
+    @Name("tcproxy.BufferAllocate")
+    @Label("Buffer Allocate")
+    @Category("TCP Proxy")
+    @Description("Buffer pool miss that allocated new direct buffer")
+    @Enabled(false)
+    static class BufferAllocateEvent extends Event {
+        @Label("Capacity")
+        @DataAmount
+        int capacity;
+    }
+
+    @Name("tcproxy.WorkerWakeup")
+    @Label("Worker Wakeup")
+    @Category("TCP Proxy")
+    @Enabled(false)
+    static class WakeupEvent extends Event {
+        @Label("Worker")
+        String worker;
+    }
+}
@@ -1,8 +1,12 @@
 package me.azhuchkov.tcproxy;
 
+import me.azhuchkov.tcproxy.event.ProxyEventListener;
+
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Pool of direct byte buffers. Actually main goal of this pool is to cache buffers
@@ -10,6 +14,18 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * may cause {@link java.lang.OutOfMemoryError}. Therefore there is no strong restriction
  * to return buffers to the pool back, but it is highly recommended due to GC may
  * fail buffers disposal in time.
+ * <p/>
+ * Buffers are grouped into size classes: each class is twice as large as previous one,
+ * starting from minimal buffer size up to maximal one. Clients pick class that suits
+ * their traffic, so memory held by small flows doesn't depend on the largest buffer size.
+ * <p/>
+ * Pool deals with direct buffers only. Channel I/O on heap buffer makes JDK copy data into
+ * temporary direct buffer first, so relayed bytes would be copied twice on each side.
+ * <p/>
+ * Each thread keeps a few buffers in its own cache in front of the shared queue, so
+ * steady-state get/return cycle of a thread neither contends nor allocates. New buffers
+ * are allocated by the thread that requests them, so with the first-touch policy their memory
+ * lands on NUMA node of that thread. Therefore it's better to have a pool per thread.
  *
  * @author Andrey Zhuchkov
  *         Date: 22.08.14
@@ -18,11 +34,31 @@ public class BufferPool {
     /** Count of iterations that must be performed before new buffer would be created. */
     private final static int SPIN_ITERATIONS = 1000;
 
-    /** Cached buffers. */
-    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    /** Maximum amount of memory in buffers of one size class cached by each thread. */
+    private final static int THREAD_CACHE_BYTES = 1 << 20;
+
+    /** Maximum count of buffers of one size class cached by each thread. */
+    private final static int THREAD_CACHE_SIZE = 16;
+
+    /** Buffer sizes of each class in ascending order. */
+    private final int[] sizes;
+
+    /** Cached buffers by size class. */
+    private final Queue<ByteBuffer>[] queues;
+
+    /** Total capacity of buffers allocated by the pool. */
+    private final AtomicLong allocatedMemory = new AtomicLong();
+
+    /** Listener notified of buffer allocations or {@code null}. */
+    private final ProxyEventListener listener;
 
-    /** Size of one buffer. */
-    private final int bufferSize;
+    /** Per-thread caches of buffers. */
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache(sizes);
+        }
+    };
 
     /**
      * Creates new pool with buffers of given size.
@@ -30,16 +66,121 @@ public class BufferPool {
      * @param bufferSize Size of one buffer.
      */
     public BufferPool(int bufferSize) {
-        this.bufferSize = bufferSize;
+        this(bufferSize, bufferSize);
+    }
+
+    /**
+     * Creates new pool with buffers from minimal size up to maximal one.
+     *
+     * @param minBufferSize Size of the smallest buffer.
+     * @param maxBufferSize Size of the largest buffer.
+     * @throws IllegalArgumentException If sizes are not positive or minimal size is greater than maximal.
+     */
+    public BufferPool(int minBufferSize, int maxBufferSize) {
+        this(minBufferSize, maxBufferSize, null);
+    }
+
+    /**
+     * Creates new pool with buffers from minimal size up to maximal one that notifies
+     * listener each time it allocates new buffer.
+     *
+     * @param minBufferSize Size of the smallest buffer.
+     * @param maxBufferSize Size of the largest buffer.
+     * @param listener      Listener of buffer allocations or {@code null}.
+     * @throws IllegalArgumentException If sizes are not positive or minimal size is greater than maximal.
+     */
+    public BufferPool(int minBufferSize, int maxBufferSize, ProxyEventListener listener) {
+        if (minBufferSize <= 0 || minBufferSize > maxBufferSize)
+            throw new IllegalArgumentException("invalid buffer sizes: " + minBufferSize + ".." + maxBufferSize);
+
+        int[] sizes0 = new int[32];
+        int count = 0;
+
+        for (long size = minBufferSize; size < maxBufferSize; size <<= 1)
+            sizes0[count++] = (int) size;
+
+        sizes0[count++] = maxBufferSize;
+
+        this.sizes = Arrays.copyOf(sizes0, count);
+        // generic array can't be created, but the queues are never exposed
+        @SuppressWarnings("unchecked")
+        Queue<ByteBuffer>[] queues0 = (Queue<ByteBuffer>[]) new Queue<?>[count];
+
+        this.queues = queues0;
+        this.listener = listener;
+
+        for (int i = 0; i < count; i++)
+            queues[i] = new ConcurrentLinkedQueue<>();
     }
 
     /**
-     * Retrieves buffer from pool.
+     * @return Count of size classes.
+     */
+    public int sizeClasses() {
+        return sizes.length;
+    }
+
+    /**
+     * Returns buffer size of given class.
+     *
+     * @param sizeClass Size class in range [0..{@link #sizeClasses()}).
+     * @return Size of buffers of the class.
+     */
+    public int bufferSize(int sizeClass) {
+        return sizes[sizeClass];
+    }
+
+    /**
+     * Returns size class of the largest buffers that don't exceed given size.
+     *
+     * @param bufferSize Buffer size or 0 for no limit.
+     * @return Size class in range [0..{@link #sizeClasses()}). The smallest class is returned if
+     * given size is less than size of its buffers.
+     */
+    public int sizeClass(int bufferSize) {
+        if (bufferSize == 0)
+            return sizes.length - 1;
+
+        int idx = Arrays.binarySearch(sizes, bufferSize);
+
+        return idx >= 0 ? idx : Math.max(0, -idx - 2);
+    }
+
+    /**
+     * Returns total capacity of buffers allocated by the pool, either cached or being in use.
+     * Buffers that were never returned are counted too.
+     *
+     * @return Allocated memory in bytes.
+     */
+    public long allocatedMemory() {
+        return allocatedMemory.get();
+    }
+
+    /**
+     * Retrieves buffer of the maximal size from pool.
      *
      * @return Cached buffer or new one if cache is empty.
      */
     public ByteBuffer getBuffer() {
-        ByteBuffer buffer;
+        return getBuffer(sizes.length - 1);
+    }
+
+    /**
+     * Retrieves buffer of given size class from pool.
+     *
+     * @param sizeClass Size class in range [0..{@link #sizeClasses()}).
+     * @return Cached buffer or new one if cache is empty.
+     */
+    public ByteBuffer getBuffer(int sizeClass) {
+        ByteBuffer buffer = threadCache.get().poll(sizeClass);
+
+        if (buffer != null) {
+            buffer.clear();
+
+            return buffer;
+        }
+
+        Queue<ByteBuffer> queue = queues[sizeClass];
 
         int iter = 0;
 
@@ -47,10 +188,16 @@ public class BufferPool {
             buffer = queue.poll();
         } while (buffer == null && iter++ < SPIN_ITERATIONS);
 
-        if (buffer == null)
-            buffer = ByteBuffer.allocateDirect(bufferSize);
-        else
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(sizes[sizeClass]);
+
+            allocatedMemory.addAndGet(buffer.capacity());
+
+            if (listener != null)
+                listener.onBufferAllocate(buffer.capacity());
+        } else {
             buffer.clear();
+        }
 
         return buffer;
     }
@@ -60,8 +207,98 @@ public class BufferPool {
      * Once it's done client MUST not continue using the buffer.
      *
      * @param buffer Buffer to return.
+     * @throws IllegalArgumentException If buffer is not direct or wasn't allocated by the pool.
      */
     public void returnBuffer(ByteBuffer buffer) {
-        queue.add(buffer);
+        int sizeClass = sizeClassOf(buffer);
+
+        if (!threadCache.get().offer(sizeClass, buffer))
+            queues[sizeClass].add(buffer);
+    }
+
+    /**
+     * Returns given buffer to the queue shared by all threads, bypassing cache of the calling thread.
+     * Suits thread that returns buffers taken by other threads, since nobody would take them from its cache.
+     * Once it's done client MUST not continue using the buffer.
+     *
+     * @param buffer Buffer to return.
+     * @throws IllegalArgumentException If buffer is not direct or wasn't allocated by the pool.
+     */
+    public void returnShared(ByteBuffer buffer) {
+        queues[sizeClassOf(buffer)].add(buffer);
+    }
+
+    /**
+     * @param buffer Buffer allocated by the pool.
+     * @return Size class of the buffer.
+     * @throws IllegalArgumentException If buffer is not direct or wasn't allocated by the pool.
+     */
+    private int sizeClassOf(ByteBuffer buffer) {
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("direct buffer expected");
+
+        int sizeClass = Arrays.binarySearch(sizes, buffer.capacity());
+
+        if (sizeClass < 0)
+            throw new IllegalArgumentException("unexpected buffer size: " + buffer.capacity());
+
+        return sizeClass;
+    }
+
+    /**
+     * Stacks of buffers owned by single thread, one per size class.
+     */
+    private static class ThreadCache {
+        /** Cached buffers. */
+        private final ByteBuffer[][] buffers;
+
+        /** Count of cached buffers. */
+        private final int[] counts;
+
+        /**
+         * @param sizes Buffer sizes of each class.
+         */
+        ThreadCache(int[] sizes) {
+            buffers = new ByteBuffer[sizes.length][];
+            counts = new int[sizes.length];
+
+            for (int i = 0; i < sizes.length; i++)
+                buffers[i] = new ByteBuffer[Math.max(1, Math.min(THREAD_CACHE_SIZE, THREAD_CACHE_BYTES / sizes[i]))];
+        }
+
+        /**
+         * @param sizeClass Size class.
+         * @return Cached buffer or {@code null} if cache is empty.
+         */
+        ByteBuffer poll(int sizeClass) {
+            if (counts[sizeClass] == 0)
+                return null;
+
+            ByteBuffer[] stack = buffers[sizeClass];
+
+            int idx = --counts[sizeClass];
+
+            ByteBuffer buffer = stack[idx];
+
+            stack[idx] = null;
+
+            return buffer;
+        }
+
+        /**
+         * @param sizeClass Size class.
+         * @param buffer    Buffer to cache.
+         * @return {@code false} if cache is full.
+         */
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            ByteBuffer[] stack = buffers[sizeClass];
+
+            if (counts[sizeClass] == stack.length)
+                return false;
+
+            stack[counts[sizeClass]++] = buffer;
+
+            return true;
+        }
     }
 }
@@ -1,6 +1,15 @@
 package me.azhuchkov.tcproxy;
 
+import me.azhuchkov.tcproxy.channel.NetworkChannelFactory;
+import me.azhuchkov.tcproxy.tls.TlsSettings;
+import me.azhuchkov.tcproxy.tunnel.TunnelSettings;
+
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Mapping between local bind address and remote socket.
@@ -15,17 +24,67 @@ public final class PortMapping {
     private final String title;
 
     /**
-     * Local address of the mapping.
+     * Transport protocol.
      */
-    private final InetSocketAddress localAddress;
+    private final Protocol protocol;
 
     /**
-     * Remote address of the mapping.
+     * Local address of the mapping: TCP address or Unix domain socket address.
      */
-    private final InetSocketAddress remoteAddress;
+    private final SocketAddress localAddress;
 
     /**
-     * Creates new port mapping.
+     * Remote address of the mapping: TCP address or Unix domain socket address.
+     */
+    private final SocketAddress remoteAddress;
+
+    /**
+     * Remote addresses of the mapping if it has several backends, the first one is {@link #remoteAddress}.
+     */
+    private final List<SocketAddress> remoteAddresses;
+
+    /**
+     * Address of shadow backend the client stream is copied to or {@code null}.
+     */
+    private final SocketAddress mirrorAddress;
+
+    /**
+     * Tunnel settings or {@code null} if connections are relayed directly.
+     */
+    private final TunnelSettings tunnel;
+
+    /**
+     * TLS settings of client connections or {@code null} if they are not encrypted.
+     */
+    private final TlsSettings clientTls;
+
+    /**
+     * TLS settings of connections to remote endpoint or {@code null} if they are not encrypted.
+     */
+    private final TlsSettings upstreamTls;
+
+    /**
+     * Name of worker group that serves the mapping.
+     */
+    private final String group;
+
+    /**
+     * Options of client connections that override server ones or {@code null}.
+     */
+    private final NetworkChannelFactory<SocketChannel> clientSocketFactory;
+
+    /**
+     * Options of connections to remote endpoint that override server ones or {@code null}.
+     */
+    private final NetworkChannelFactory<SocketChannel> upstreamSocketFactory;
+
+    /**
+     * Maximal transfer buffer size or 0 if buffer size of worker group should be used.
+     */
+    private final int bufferSize;
+
+    /**
+     * Creates new port mapping served by default worker group.
      *
      * @param title         Mapping title.
      * @param localAddress  Local address to bind.
@@ -33,12 +92,133 @@ public final class PortMapping {
      * @throws java.lang.NullPointerException if one of the arguments is {@code null}.
      */
     public PortMapping(String title, InetSocketAddress localAddress, InetSocketAddress remoteAddress) {
-        if (title == null || localAddress == null || remoteAddress == null)
+        this(title, localAddress, remoteAddress, WorkerGroup.DEFAULT);
+    }
+
+    /**
+     * Creates new port mapping.
+     *
+     * @param title         Mapping title.
+     * @param localAddress  Local address to bind.
+     * @param remoteAddress Remote address to forward incoming traffic.
+     * @param group         Name of worker group that serves the mapping.
+     * @throws java.lang.NullPointerException if one of the arguments is {@code null}.
+     */
+    public PortMapping(String title, InetSocketAddress localAddress, InetSocketAddress remoteAddress, String group) {
+        this(title, localAddress, remoteAddress, group, null, null, 0);
+    }
+
+    /**
+     * Creates new TCP port mapping with its own connection settings.
+     *
+     * @param title                 Mapping title.
+     * @param localAddress          Local address to bind: TCP address or Unix domain socket address.
+     * @param remoteAddress         Remote address to forward incoming traffic: TCP address or Unix domain
+     *                              socket address.
+     * @param group                 Name of worker group that serves the mapping.
+     * @param clientSocketFactory   Factory which options are applied to client connections over server ones
+     *                              or {@code null} if server options should be used.
+     * @param upstreamSocketFactory Factory which options are applied to connections to remote endpoint over
+     *                              server ones or {@code null} if server options should be used.
+     * @param bufferSize            Maximal transfer buffer size or 0 if buffer size of worker group should be used.
+     * @throws java.lang.NullPointerException     if title, addresses or group is {@code null}.
+     * @throws java.lang.IllegalArgumentException if buffer size is negative.
+     */
+    public PortMapping(String title, SocketAddress localAddress, SocketAddress remoteAddress, String group,
+                       NetworkChannelFactory<SocketChannel> clientSocketFactory,
+                       NetworkChannelFactory<SocketChannel> upstreamSocketFactory,
+                       int bufferSize) {
+        this(title, Protocol.TCP, localAddress, remoteAddress, group, clientSocketFactory, upstreamSocketFactory,
+                bufferSize);
+    }
+
+    /**
+     * Creates new port mapping with its own connection settings.
+     *
+     * @param title                 Mapping title.
+     * @param protocol              Transport protocol.
+     * @param localAddress          Local address to bind: TCP address or Unix domain socket address.
+     * @param remoteAddress         Remote address to forward incoming traffic: TCP address or Unix domain
+     *                              socket address.
+     * @param group                 Name of worker group that serves the mapping.
+     * @param clientSocketFactory   Factory which options are applied to client connections over server ones
+     *                              or {@code null} if server options should be used.
+     * @param upstreamSocketFactory Factory which options are applied to connections to remote endpoint over
+     *                              server ones or {@code null} if server options should be used.
+     * @param bufferSize            Maximal transfer buffer size or 0 if buffer size of worker group should be used.
+     * @throws java.lang.NullPointerException     if title, protocol, addresses or group is {@code null}.
+     * @throws java.lang.IllegalArgumentException if buffer size is negative.
+     */
+    public PortMapping(String title, Protocol protocol, SocketAddress localAddress, SocketAddress remoteAddress,
+                       String group,
+                       NetworkChannelFactory<SocketChannel> clientSocketFactory,
+                       NetworkChannelFactory<SocketChannel> upstreamSocketFactory,
+                       int bufferSize) {
+        this(title, protocol, localAddress, Collections.singletonList(remoteAddress), group,
+                clientSocketFactory, upstreamSocketFactory, bufferSize, null, null, null, null);
+    }
+
+    /**
+     * Creates new port mapping with several backends. Backend of each client is chosen
+     * by consistent hashing of client IP address.
+     *
+     * @param title                 Mapping title.
+     * @param protocol              Transport protocol.
+     * @param localAddress          Local address to bind: TCP address or Unix domain socket address.
+     * @param remoteAddresses       Remote addresses to forward incoming traffic: TCP addresses or Unix domain
+     *                              socket addresses.
+     * @param group                 Name of worker group that serves the mapping.
+     * @param clientSocketFactory   Factory which options are applied to client connections over server ones
+     *                              or {@code null} if server options should be used.
+     * @param upstreamSocketFactory Factory which options are applied to connections to remote endpoint over
+     *                              server ones or {@code null} if server options should be used.
+     * @param bufferSize            Maximal transfer buffer size or 0 if buffer size of worker group should be used.
+     * @param mirrorAddress         Address of shadow backend the client stream is copied to or {@code null}.
+     * @param tunnel                Tunnel settings or {@code null} if connections are relayed directly.
+     *                              Remote address of connecting side of tunnel is peer proxy address.
+     * @param clientTls             TLS settings of client connections or {@code null} if they are not encrypted.
+     * @param upstreamTls           TLS settings of connections to remote endpoint or {@code null}
+     *                              if they are not encrypted.
+     * @throws java.lang.NullPointerException     if title, protocol, addresses or group is {@code null}.
+     * @throws java.lang.IllegalArgumentException if there are no remote addresses or buffer size is negative.
+     */
+    public PortMapping(String title, Protocol protocol, SocketAddress localAddress,
+                       List<? extends SocketAddress> remoteAddresses,
+                       String group,
+                       NetworkChannelFactory<SocketChannel> clientSocketFactory,
+                       NetworkChannelFactory<SocketChannel> upstreamSocketFactory,
+                       int bufferSize,
+                       SocketAddress mirrorAddress,
+                       TunnelSettings tunnel,
+                       TlsSettings clientTls,
+                       TlsSettings upstreamTls) {
+        if (title == null || protocol == null || localAddress == null || remoteAddresses == null || group == null)
             throw new NullPointerException();
 
+        if (remoteAddresses.isEmpty())
+            throw new IllegalArgumentException("no remote addresses");
+
+        if (bufferSize < 0)
+            throw new IllegalArgumentException("invalid buffer size: " + bufferSize);
+
+        for (SocketAddress remoteAddress : remoteAddresses) {
+            if (remoteAddress == null)
+                throw new NullPointerException();
+        }
+
         this.title = title;
+        this.protocol = protocol;
         this.localAddress = localAddress;
-        this.remoteAddress = remoteAddress;
+        this.remoteAddress = remoteAddresses.get(0);
+        this.remoteAddresses = Collections.unmodifiableList(new ArrayList<>(remoteAddresses));
+        this.group = group;
+        this.clientSocketFactory = clientSocketFactory;
+        this.upstreamSocketFactory = upstreamSocketFactory;
+        this.bufferSize = bufferSize;
+        this.mirrorAddress = mirrorAddress;
+        this.tunnel = tunnel;
+        this.clientTls = clientTls;
+        this.upstreamTls = upstreamTls;
     }
 
     /**
@@ -48,26 +228,117 @@ public final class PortMapping {
         return title;
     }
 
+    /**
+     * @return Transport protocol.
+     */
+    public Protocol protocol() {
+        return protocol;
+    }
+
     /**
      * @return Local mapping address.
      */
-    public InetSocketAddress localAddress() {
+    public SocketAddress localAddress() {
         return localAddress;
     }
 
     /**
-     * @return Remote address of the mapping.
+     * @return Remote address of the mapping (the first one if mapping has several backends).
      */
-    public InetSocketAddress remoteAddress() {
+    public SocketAddress remoteAddress() {
         return remoteAddress;
     }
 
+    /**
+     * @return Unmodifiable list of remote addresses of the mapping.
+     */
+    public List<SocketAddress> remoteAddresses() {
+        return remoteAddresses;
+    }
+
+    /**
+     * @return Address of shadow backend the client stream is copied to or {@code null}.
+     */
+    public SocketAddress mirrorAddress() {
+        return mirrorAddress;
+    }
+
+    /**
+     * @return Tunnel settings or {@code null} if connections are relayed directly.
+     */
+    public TunnelSettings tunnel() {
+        return tunnel;
+    }
+
+    /**
+     * @return TLS settings of client connections or {@code null} if they are not encrypted.
+     */
+    public TlsSettings clientTls() {
+        return clientTls;
+    }
+
+    /**
+     * @return TLS settings of connections to remote endpoint or {@code null} if they are not encrypted.
+     */
+    public TlsSettings upstreamTls() {
+        return upstreamTls;
+    }
+
+    /**
+     * @return Name of worker group that serves the mapping.
+     */
+    public String group() {
+        return group;
+    }
+
+    /**
+     * @return Factory which options are applied to client connections over server ones or {@code null}.
+     */
+    public NetworkChannelFactory<SocketChannel> clientSocketFactory() {
+        return clientSocketFactory;
+    }
+
+    /**
+     * @return Factory which options are applied to connections to remote endpoint over server ones
+     * or {@code null}.
+     */
+    public NetworkChannelFactory<SocketChannel> upstreamSocketFactory() {
+        return upstreamSocketFactory;
+    }
+
+    /**
+     * @return Maximal transfer buffer size or 0 if buffer size of worker group should be used.
+     */
+    public int bufferSize() {
+        return bufferSize;
+    }
+
     @Override
     public String toString() {
         return "PortMapping{" +
                 "title='" + title + '\'' +
+                (protocol != Protocol.TCP ? ", protocol=" + protocol : "") +
                 ", localAddress=" + localAddress +
-                ", remoteAddress=" + remoteAddress +
+                ", remoteAddress=" + (remoteAddresses.size() == 1 ? remoteAddress : remoteAddresses) +
+                ", group='" + group + '\'' +
+                (clientSocketFactory != null ? ", clientSocketFactory=" + clientSocketFactory : "") +
+                (upstreamSocketFactory != null ? ", upstreamSocketFactory=" + upstreamSocketFactory : "") +
+                (bufferSize != 0 ? ", bufferSize=" + bufferSize : "") +
+                (mirrorAddress != null ? ", mirrorAddress=" + mirrorAddress : "") +
+                (tunnel != null ? ", tunnel=" + tunnel : "") +
+                (clientTls != null ? ", clientTls=" + clientTls : "") +
+                (upstreamTls != null ? ", upstreamTls=" + upstreamTls : "") +
                 '}';
     }
+
+    /**
+     * Transport protocol of mapping.
+     */
+    public enum Protocol {
+        /** Connections are relayed as byte streams. */
+        TCP,
+
+        /** Datagrams are relayed as is. */
+        UDP
+    }
 }
@@ -4,23 +4,60 @@ import me.azhuchkov.tcproxy.acceptor.Acceptor;
 import me.azhuchkov.tcproxy.acceptor.BlockingAcceptor;
 import me.azhuchkov.tcproxy.acceptor.ConnectionHandler;
 import me.azhuchkov.tcproxy.acceptor.NonBlockingAcceptor;
+import me.azhuchkov.tcproxy.accesslog.AccessLog;
+import me.azhuchkov.tcproxy.accesslog.AccessLogRing;
+import me.azhuchkov.tcproxy.backend.MaglevTable;
+import me.azhuchkov.tcproxy.capture.Capture;
+import me.azhuchkov.tcproxy.capture.CaptureMXBean;
+import me.azhuchkov.tcproxy.capture.CaptureWriter;
 import me.azhuchkov.tcproxy.channel.NetworkChannelFactory;
+import me.azhuchkov.tcproxy.channel.SelectedKeySet;
+import me.azhuchkov.tcproxy.channel.SelectorProviders;
 import me.azhuchkov.tcproxy.channel.ServerSocketChannelFactory;
 import me.azhuchkov.tcproxy.channel.SocketChannelFactory;
+import me.azhuchkov.tcproxy.channel.UnixDomainSockets;
+import me.azhuchkov.tcproxy.channel.UnixServerSocketChannelFactory;
+import me.azhuchkov.tcproxy.channel.UnixSocketChannelFactory;
 import me.azhuchkov.tcproxy.config.Configuration;
 import me.azhuchkov.tcproxy.config.ConfigurationException;
-
+import me.azhuchkov.tcproxy.event.CloseReason;
+import me.azhuchkov.tcproxy.event.ProxyEventListener;
+import me.azhuchkov.tcproxy.mirror.Mirroring;
+import me.azhuchkov.tcproxy.tls.TlsConnection;
+import me.azhuchkov.tcproxy.tunnel.TunnelSettings;
+import me.azhuchkov.tcproxy.tunnel.TunnelTarget;
+import me.azhuchkov.tcproxy.tunnel.Tunneling;
+import me.azhuchkov.tcproxy.udp.UdpForwarder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,26 +85,137 @@ public class ProxyServer {
     /** Default workers count. */
     public static final int DEFAULT_WORKERS_COUNT = 1;
 
+    /** Default maximum count of reads performed on single readiness event. */
+    public static final int DEFAULT_READ_BATCH = 4;
+
+    /** Default count of bytes session may read per scheduling round. */
+    public static final int DEFAULT_QUANTUM = 16384;
+
+    /** Default ratio between the most and the least loaded workers that triggers rebalancing. */
+    public static final double DEFAULT_REBALANCE_RATIO = 2.0;
+
+    /** Minimal difference of workers relay rates (bytes per second) worth rebalancing. */
+    private static final long MIN_REBALANCE_RATE = 1 << 20;
+
+    /** Default interval between checks of workers utilization, ms. */
+    public static final long DEFAULT_SCALE_INTERVAL = 1000;
+
+    /** Default average utilization of workers above which new worker is started. */
+    public static final double DEFAULT_SCALE_UP_THRESHOLD = 0.75;
+
+    /** Default average utilization of workers below which one of workers is retired. */
+    public static final double DEFAULT_SCALE_DOWN_THRESHOLD = 0.25;
+
+    /** Count of successive utilization checks that must agree before workers count is changed. */
+    private static final int SCALE_CHECKS = 3;
+
+    /** Default time of single event loop iteration after which worker is reported as stalled, ms. */
+    public static final long DEFAULT_STALL_TIMEOUT = 1000;
+
+    /** Default count of threads forwarding UDP datagrams. */
+    public static final int DEFAULT_UDP_FORWARDERS = 1;
+
+    /** Default time without traffic after which UDP session is expired, ms. */
+    public static final long DEFAULT_UDP_IDLE_TIMEOUT = 60000;
+
+    /** Default maximal count of UDP sessions of single forwarder. */
+    public static final int DEFAULT_UDP_MAX_SESSIONS = 16384;
+
+    /** Default maximal count of bytes queued to shadow connection before mirror is dropped. */
+    public static final long DEFAULT_MIRROR_QUEUE = 1 << 20;
+
+    /** Default count of threads serving tunnel connections. */
+    public static final int DEFAULT_TUNNEL_THREADS = 1;
+
+    /** Minimal count of mappings per thread binding listening channels. */
+    private static final int BIND_BATCH = 64;
+
+    /** Domain of management beans. */
+    private static final String MBEAN_DOMAIN = "me.azhuchkov.tcproxy";
+
+    /** Name of management bean of traffic capture. */
+    private static final String CAPTURE_MBEAN_NAME = MBEAN_DOMAIN + ":type=Capture";
+
     /** Server socket channel factory. */
     private final NetworkChannelFactory<ServerSocketChannel> serverSocketFactory;
 
     /** Socket channel factory. */
     private final NetworkChannelFactory<SocketChannel> socketFactory;
 
+    /** Unix domain server socket channel factory with options of {@link #serverSocketFactory}. */
+    private final NetworkChannelFactory<ServerSocketChannel> unixServerSocketFactory;
+
     /** Maximum number of pending incoming connections. */
     private final int backlog;
 
-    /** Buffer pool. */
-    private final BufferPool bufferPool;
+    /** Maximum count of reads performed on single readiness event. */
+    private final int readBatch;
+
+    /** Count of bytes session may read per scheduling round while other sessions are backlogged. */
+    private final int quantum;
 
     /** Incoming connections acceptor. */
-    private final Acceptor acceptor;
+    private final Acceptor<Route> acceptor;
+
+    /** Worker groups by their names. */
+    private final Map<String, Group> groups;
+
+    /** CPUs to pin workers to or {@code null}. */
+    private final int[] workerCpus;
+
+    /** Sequence of worker numbers. */
+    private final AtomicInteger workerSeq = new AtomicInteger();
+
+    /** Balancer of workers load or {@code null} if disabled. */
+    private final Balancer balancer;
+
+    /** Time of single event loop iteration after which worker is considered stalled, ns (0 if disabled). */
+    private final long stallTimeout;
+
+    /** Watchdog of workers or {@code null} if disabled. */
+    private final Watchdog watchdog;
+
+    /** Listener of proxy events or {@code null}. */
+    private final ProxyEventListener listener;
+
+    /** Access log or {@code null} if disabled. */
+    private final AccessLog accessLog;
+
+    /** Traffic capture or {@code null} if disabled. */
+    private final Capture capture;
+
+    /** Maximal count of threads forwarding UDP datagrams. */
+    private final int udpForwarders;
+
+    /** Time without traffic after which UDP session is expired, ms. */
+    private final long udpIdleTimeout;
+
+    /** Maximal count of UDP sessions of single forwarder. */
+    private final int udpMaxSessions;
 
-    /** Workers that serves connection events. */
-    private final Worker[] workers;
+    /** Consistent hash tables by backend lists, so port range shares single table. Used by starting thread only. */
+    private final Map<List<SocketAddress>, MaglevTable> backendTables = new HashMap<>();
 
-    /** TCP port mappings by its channel. */
-    private volatile Map<ServerSocketChannel, PortMapping> mappings;
+    /** Maximal count of bytes queued to shadow connection before mirror is dropped. */
+    private final long mirrorQueue;
+
+    /** Mirroring thread or {@code null} if no mapping is mirrored. */
+    private volatile Mirroring mirroring;
+
+    /** Count of threads serving tunnel connections. */
+    private final int tunnelThreads;
+
+    /** Tunnel engines or {@code null} if no mapping is a tunnel one. */
+    private volatile Tunneling tunneling;
+
+    /** Size of buffers of TLS records or 0 if no mapping uses TLS. */
+    private volatile int tlsBufferSize;
+
+    /** Forwarders of UDP mappings, empty until server is started. */
+    private volatile List<UdpForwarder> forwarders = Collections.emptyList();
+
+    /** Routes of TCP port mappings by its channel. */
+    private volatile Map<ServerSocketChannel, Route> mappings;
 
     /**
      * Creates new server with default platform backlog value, default socket options,
@@ -75,8 +223,7 @@ public class ProxyServer {
      * {@link #DEFAULT_WORKERS_COUNT} worker(s).
      */
     public ProxyServer() {
-        this(ServerSocketChannelFactory.DEFAULT, SocketChannelFactory.DEFAULT, DEFAULT_BACKLOG,
-                DEFAULT_BUFFER_SIZE, DEFAULT_WORKERS_COUNT, false);
+        this(create());
     }
 
     /**
@@ -84,6 +231,7 @@ public class ProxyServer {
      *
      * @param serverSocketFactory  Factory for creating server socket channels.
      * @param socketChannelFactory Factory for creating connections to remote servers.
+     *                             Both factories must use the same selector provider.
      * @param backlog              Maximum number of pending incoming connections on each listen port.
      *                             If value is 0 or less, OS default value will be used.
      * @param bufferSize           Transfer buffer size.
@@ -96,34 +244,138 @@ public class ProxyServer {
                        int bufferSize,
                        int workers,
                        boolean blockingAcceptor) {
-        if (bufferSize <= 0)
+        this(create()
+                .serverSocketFactory(serverSocketFactory)
+                .socketFactory(socketChannelFactory)
+                .backlog(backlog)
+                .bufferSize(bufferSize)
+                .workers(workers)
+                .blockingAcceptor(blockingAcceptor));
+    }
+
+    /**
+     * Creates new instance of proxy server.
+     *
+     * @param builder Server builder.
+     */
+    private ProxyServer(Builder builder) {
+        if (builder.bufferSize <= 0)
             throw new IllegalArgumentException("invalid buffer size");
 
-        if (workers <= 0)
+        if (builder.minBufferSize < 0 || builder.minBufferSize > builder.bufferSize)
+            throw new IllegalArgumentException("invalid minimal buffer size");
+
+        if (builder.workers <= 0)
             throw new IllegalArgumentException("invalid workers count");
 
-        this.serverSocketFactory = serverSocketFactory;
-        this.backlog = backlog;
-        this.bufferPool = new BufferPool(bufferSize);
-        this.socketFactory = socketChannelFactory;
+        if (builder.readBatch <= 0)
+            throw new IllegalArgumentException("invalid read batch");
+
+        if (builder.quantum <= 0)
+            throw new IllegalArgumentException("invalid quantum");
+
+        if (builder.rebalanceInterval < 0 || builder.rebalanceRatio <= 1.0)
+            throw new IllegalArgumentException("invalid rebalance settings");
+
+        int minWorkers = builder.minWorkers == 0 ? builder.workers : builder.minWorkers;
+        int maxWorkers = builder.maxWorkers == 0 ? builder.workers : builder.maxWorkers;
+
+        if (minWorkers <= 0 || maxWorkers < minWorkers || builder.scaleInterval <= 0 ||
+                builder.scaleDownThreshold < 0 || builder.scaleUpThreshold <= builder.scaleDownThreshold)
+            throw new IllegalArgumentException("invalid workers scaling settings");
+
+        if (builder.stallTimeout < 0)
+            throw new IllegalArgumentException("invalid stall timeout");
+
+        if (builder.udpForwarders <= 0 || builder.udpIdleTimeout <= 0 || builder.udpMaxSessions <= 0)
+            throw new IllegalArgumentException("invalid UDP forwarding settings");
+
+        if (builder.mirrorQueue <= 0)
+            throw new IllegalArgumentException("invalid mirror queue");
+
+        if (builder.tunnelThreads <= 0)
+            throw new IllegalArgumentException("invalid count of tunnel threads");
+
+        if (builder.serverSocketFactory.provider() != builder.socketFactory.provider())
+            throw new IllegalArgumentException("channel factories must use the same selector provider");
+
+        this.serverSocketFactory = builder.serverSocketFactory;
+        this.backlog = builder.backlog;
+        this.socketFactory = builder.socketFactory;
+        this.unixServerSocketFactory = UnixServerSocketChannelFactory.create()
+                .provider(serverSocketFactory.provider())
+                .options(serverSocketFactory)
+                .build();
+        this.readBatch = builder.readBatch;
+        this.quantum = builder.quantum;
+        this.listener = builder.listener;
+        this.accessLog = builder.accessLog;
+        this.capture = builder.capture;
+        this.udpForwarders = builder.udpForwarders;
+        this.udpIdleTimeout = builder.udpIdleTimeout;
+        this.udpMaxSessions = builder.udpMaxSessions;
+        this.mirrorQueue = builder.mirrorQueue;
+        this.tunnelThreads = builder.tunnelThreads;
+
+        this.workerCpus = builder.workerCpus;
+
+        this.stallTimeout = TimeUnit.MILLISECONDS.toNanos(builder.stallTimeout);
+        this.watchdog = builder.stallTimeout > 0 ? new Watchdog(builder.stallTimeout) : null;
+
+        int minBufferSize = builder.minBufferSize == 0 ? builder.bufferSize : builder.minBufferSize;
+
+        Map<String, Group> groups0 = new LinkedHashMap<>();
+
+        groups0.put(WorkerGroup.DEFAULT, new Group(WorkerGroup.DEFAULT, builder.workers,
+                builder.bufferSize, minBufferSize, minWorkers, maxWorkers));
+
+        boolean rebalance = builder.rebalanceInterval > 0 && maxWorkers > 1;
+
+        for (WorkerGroup group : builder.groups) {
+            if (WorkerGroup.DEFAULT.equals(group.name()) || groups0.containsKey(group.name()))
+                throw new IllegalArgumentException("duplicated worker group: " + group.name());
+
+            int groupBufferSize = group.bufferSize() == 0 ? builder.bufferSize : group.bufferSize();
+
+            int groupMinBufferSize = group.minBufferSize() == 0 ?
+                    Math.min(minBufferSize, groupBufferSize) : group.minBufferSize();
 
-        this.workers = new Worker[workers];
+            groups0.put(group.name(), new Group(group.name(), group.workers(),
+                    groupBufferSize, groupMinBufferSize, group.workers(), group.workers()));
 
-        for (int i = 0; i < this.workers.length; i++) {
-            this.workers[i] = new Worker("Proxy TCP Dispatcher-" + i);
+            rebalance |= builder.rebalanceInterval > 0 && group.workers() > 1;
         }
 
-        ConnectionHandler handler = new ConnectionHandler() {
+        this.groups = groups0;
+
+        boolean scale = maxWorkers > minWorkers;
+
+        this.balancer = rebalance || scale ?
+                new Balancer(rebalance ? builder.rebalanceInterval : 0, builder.rebalanceRatio,
+                        scale ? builder.scaleInterval : 0, builder.scaleUpThreshold, builder.scaleDownThreshold) :
+                null;
+
+        ConnectionHandler<Route> handler = new ConnectionHandler<Route>() {
             @Override
-            public void handle(ServerSocketChannel originateChannel, SocketChannel acceptedChannel) {
-                onAccept(originateChannel, acceptedChannel);
+            public void handle(Route route, SocketChannel acceptedChannel) {
+                onAccept(route, acceptedChannel);
             }
         };
 
         // 'this' leakage is safe since acceptor is private
-        this.acceptor = blockingAcceptor ?
-                new BlockingAcceptor("Proxy TCP Acceptor-", handler) :
-                new NonBlockingAcceptor("Proxy TCP Acceptor", handler);
+        this.acceptor = builder.blockingAcceptor ?
+                new BlockingAcceptor<>("Proxy TCP Acceptor-", handler, builder.acceptorCpus) :
+                new NonBlockingAcceptor<>("Proxy TCP Acceptor", handler, serverSocketFactory.provider(),
+                        builder.acceptorCpus);
+    }
+
+    /**
+     * Creates new server builder with default settings.
+     *
+     * @return Server builder instance.
+     */
+    public static Builder create() {
+        return new Builder();
     }
 
     /**
@@ -144,34 +396,124 @@ public class ProxyServer {
             mappings = new HashMap<>(portMappings.size());
         }
 
+        if (accessLog != null) {
+            try {
+                accessLog.start();
+            } catch (IOException e) {
+                mappings = null;
+
+                throw e;
+            }
+        }
+
+        if (capture != null) {
+            try {
+                capture.start();
+            } catch (IOException e) {
+                mappings = null;
+
+                throw e;
+            }
+
+            registerCaptureMBean();
+        }
+
+        List<PortMapping> bindMappings = new ArrayList<>(portMappings.size());
+        List<PortMapping> udpMappings = new ArrayList<>();
+
         for (PortMapping mapping : portMappings) {
-            if (mapping.remoteAddress().isUnresolved()) {
+            if (!groups.containsKey(mapping.group())) {
+                LOGGER.warning("Skipped mapping " + mapping + " since its worker group is unknown");
+                continue;
+            }
+
+            if (hasUnresolved(mapping)) {
                 LOGGER.warning("Skipped mapping " + mapping + " since it has unresolved address");
                 continue;
             }
 
-            ServerSocketChannel channel = serverSocketFactory.newChannel();
+            if (mapping.protocol() == PortMapping.Protocol.UDP)
+                udpMappings.add(mapping);
+            else
+                bindMappings.add(mapping);
+        }
 
-            try {
-                channel.bind(mapping.localAddress(), backlog);
-            } catch (IOException e) {
-                LOGGER.log(Level.SEVERE, "Failed to bind: " + mapping.localAddress(), e);
-                continue;
+        for (PortMapping mapping : bindMappings) {
+            if (mapping.mirrorAddress() != null) {
+                try {
+                    mirroring = new Mirroring("Proxy Mirroring", socketFactory.provider(), mirrorQueue);
+                } catch (IOException e) {
+                    abortStart();
+
+                    throw e;
+                }
+
+                mirroring.setDaemon(true);
+
+                break;
+            }
+        }
+
+        for (PortMapping mapping : bindMappings) {
+            Group group = groups.get(mapping.group());
+
+            // pool of the group must have size class that fits transfer buffer of the mapping
+            if (mapping.bufferSize() > 0 && mapping.bufferSize() < group.minBufferSize)
+                group.minBufferSize = mapping.bufferSize();
+
+            if (mapping.bufferSize() > group.bufferSize) {
+                LOGGER.warning("Transfer buffer of mapping " + mapping + " is limited by buffer size "
+                        + group.bufferSize + " of its worker group");
+            }
+        }
+
+        for (Group group : groups.values())
+            group.createWorkers();
+
+        for (PortMapping mapping : bindMappings) {
+            if (mapping.clientTls() != null)
+                tlsBufferSize = Math.max(tlsBufferSize, mapping.clientTls().bufferSize());
+
+            if (mapping.upstreamTls() != null)
+                tlsBufferSize = Math.max(tlsBufferSize, mapping.upstreamTls().bufferSize());
+        }
+
+        for (PortMapping mapping : bindMappings) {
+            if (mapping.tunnel() != null) {
+                try {
+                    tunneling = new Tunneling("Proxy Tunnel", socketFactory.provider(), tunnelThreads);
+                } catch (IOException e) {
+                    abortStart();
+
+                    throw e;
+                }
+
+                break;
             }
+        }
+
+        List<UdpForwarder> forwarders0;
 
-            LOGGER.info("Start listening on " + mapping.localAddress() + " mapped to " + mapping.remoteAddress());
+        try {
+            bind(bindMappings);
+
+            forwarders0 = forwarders(udpMappings);
+        } catch (IOException | RuntimeException e) {
+            abortStart();
 
-            mappings.put(channel, mapping);
+            throw e;
         }
 
-        for (Worker worker : workers)
+        List<Worker> workers0 = workers();
+
+        for (Worker worker : workers0)
             worker.start();
 
         try {
-            for (Worker worker : workers)
+            for (Worker worker : workers0)
                 worker.initLatch.await();
         } catch (InterruptedException e) {
-            for (Worker worker : workers)
+            for (Worker worker : workers0)
                 worker.interrupt();
 
             Thread.currentThread().interrupt();
@@ -179,305 +521,2299 @@ public class ProxyServer {
             return;
         }
 
-        acceptor.start(mappings.keySet());
+        if (mirroring != null)
+            mirroring.start();
+
+        if (tunneling != null)
+            tunneling.start();
+
+        acceptor.start(mappings);
+
+        for (UdpForwarder forwarder : forwarders0)
+            forwarder.start();
+
+        forwarders = forwarders0;
+
+        if (balancer != null)
+            balancer.start();
+
+        if (watchdog != null)
+            watchdog.start();
     }
 
     /**
-     * Shutdowns the server.
+     * @param mapping Port mapping.
+     * @return Whether one of remote addresses of mapping is unresolved.
+     */
+    private static boolean hasUnresolved(PortMapping mapping) {
+        for (SocketAddress address : mapping.remoteAddresses()) {
+            if (address instanceof InetSocketAddress && ((InetSocketAddress) address).isUnresolved())
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates forwarders of UDP mappings and binds their ports. Mappings are distributed
+     * between forwarders evenly. Mappings that failed to bind are skipped.
      *
-     * @throws InterruptedException  If shutdown process is interrupted.
-     * @throws IllegalStateException If server is not started.
+     * @param udpMappings UDP mappings.
+     * @return Forwarders, not started yet.
+     * @throws IOException If forwarder can't be created.
      */
-    public void shutdown() throws InterruptedException {
-        if (mappings == null)
-            throw new IllegalStateException("not started");
+    private List<UdpForwarder> forwarders(List<PortMapping> udpMappings) throws IOException {
+        List<UdpForwarder> forwarders0 = new ArrayList<>();
 
-        Collection<ServerSocketChannel> channels;
+        for (int i = 0; i < Math.min(udpForwarders, udpMappings.size()); i++) {
+            UdpForwarder forwarder;
 
-        synchronized (this) {
-            if (mappings == null)
-                throw new IllegalStateException("not started");
+            try {
+                forwarder = new UdpForwarder("Proxy UDP Forwarder-" + i, socketFactory.provider(),
+                        readBatch, udpIdleTimeout, udpMaxSessions);
+            } catch (IOException e) {
+                // forwarders created so far release their selectors once they exit
+                for (UdpForwarder forwarder0 : forwarders0) {
+                    forwarder0.start();
+                    forwarder0.interrupt();
+                }
+
+                throw e;
+            }
 
-            channels = mappings.keySet();
+            forwarder.setDaemon(true);
 
-            mappings = null;
+            forwarders0.add(forwarder);
         }
 
-        try {
-            acceptor.interrupt();
-        } finally {
-            for (ServerSocketChannel channel : channels)
-                close(channel);
-
-            for (Worker worker : workers)
-                worker.interrupt();
+        for (int i = 0; i < udpMappings.size(); i++) {
+            PortMapping mapping = udpMappings.get(i);
 
-            for (Worker worker : workers)
-                worker.join();
+            forwarders0.get(i % forwarders0.size()).bind(mapping, backendTable(mapping));
         }
+
+        return forwarders0;
     }
 
     /**
-     * Handles incoming connections.
+     * Binds listening channels of given mappings. Large count of mappings is bound by
+     * several threads in parallel, since each bind takes a few system calls.
+     * Mappings that failed to bind are skipped. Channels bound before failure are put
+     * to mappings anyway, so they're closed once start is aborted.
      *
-     * @param originateChannel Channel that accepted new connection.
-     * @param channel          Accepted connection channel.
+     * @param portMappings Mappings to bind.
+     * @throws IOException If channel can't be created.
      */
-    private void onAccept(ServerSocketChannel originateChannel, SocketChannel channel) {
-        SocketChannel mappedChannel = null;
+    private void bind(List<PortMapping> portMappings) throws IOException {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                (portMappings.size() + BIND_BATCH - 1) / BIND_BATCH);
+
+        if (threads <= 1) {
+            for (PortMapping mapping : portMappings) {
+                ServerSocketChannel channel = bind(mapping);
+
+                if (channel != null)
+                    mappings.put(channel, route(mapping));
+            }
+
+            return;
+        }
+
+        ExecutorService binders = Executors.newFixedThreadPool(threads);
 
         try {
-            socketFactory.apply(channel);
-            channel.configureBlocking(false);
+            List<Future<ServerSocketChannel>> channels = new ArrayList<>(portMappings.size());
 
-            mappedChannel = socketFactory.newChannel();
-            mappedChannel.configureBlocking(false);
+            for (final PortMapping mapping : portMappings) {
+                channels.add(binders.submit(new Callable<ServerSocketChannel>() {
+                    @Override
+                    public ServerSocketChannel call() throws IOException {
+                        return bind(mapping);
+                    }
+                }));
+            }
 
-            mappedChannel.connect(mappings.get(originateChannel).remoteAddress());
-        } catch (IOException e) {
-            LOGGER.warning("Failed to handle incoming connection. Closing it... (" + e + ")");
+            IOException failure = null;
+            RuntimeException unexpected = null;
+            boolean interrupted = false;
 
-            close(channel);
+            // every bind is awaited, otherwise channels bound after failure would be left open
+            for (int i = 0; i < portMappings.size(); i++) {
+                ServerSocketChannel channel = null;
 
-            if (mappedChannel != null)
-                close(mappedChannel);
+                while (true) {
+                    try {
+                        channel = channels.get(i).get();
 
-            return;
-        }
+                        break;
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException) {
+                            if (failure == null)
+                                failure = (IOException) e.getCause();
+                        } else if (unexpected == null)
+                            unexpected = new IllegalStateException("Unexpected bind failure", e.getCause());
 
-        Session originateSession = new Session(channel);
-        Session mappedSession = new Session(mappedChannel);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
 
-        originateSession.link(mappedSession);
+                if (channel != null)
+                    mappings.put(channel, route(portMappings.get(i)));
+            }
 
-        Worker worker = workers[ThreadLocalRandom.current().nextInt(workers.length)];
+            if (interrupted) {
+                Thread.currentThread().interrupt();
 
-        worker.register(channel, originateSession, mappedChannel, mappedSession);
-    }
+                if (failure == null)
+                    failure = new InterruptedIOException("Interrupted while binding");
+            }
 
-    /**
-     * Handles outgoing connection establishment.
-     *
-     * @param key Selection key.
-     * @throws IOException If I/O error occurs.
-     */
-    private void onConnect(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
+            if (failure != null)
+                throw failure;
 
-        if (channel.finishConnect())
-            key.interestOps(key.interestOps() & ~SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
+            if (unexpected != null)
+                throw unexpected;
+        } finally {
+            binders.shutdown();
+        }
     }
 
     /**
-     * Handles received data. This method also invoked on disconnects.
+     * Binds listening channel of given mapping.
      *
-     * @param key Selection key.
-     * @throws IOException If I/O error occurs.
+     * @param mapping Mapping to bind.
+     * @return Bound channel or {@code null} if bind failed.
+     * @throws IOException If channel can't be created.
      */
-    private void onRead(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        Session linked = ((Session) key.attachment()).linked;
+    private ServerSocketChannel bind(PortMapping mapping) throws IOException {
+        boolean unix = UnixDomainSockets.isUnixAddress(mapping.localAddress());
 
-        if (linked.pending != null)
-            throw new RuntimeException("pending data must be flushed");
+        ServerSocketChannel channel;
 
-        ByteBuffer buffer = bufferPool.getBuffer();
+        try {
+            channel = unix ? unixServerSocketFactory.newChannel() : serverSocketFactory.newChannel();
+        } catch (UnsupportedOperationException e) {
+            LOGGER.severe("Failed to bind: " + mapping.localAddress() + " (" + e.getMessage() + ")");
 
-        int read = channel.read(buffer);
+            return null;
+        }
 
-        if (read < 1)
-            bufferPool.returnBuffer(buffer);
+        try {
+            // socket file left by previous run prevents binding
+            if (unix)
+                deleteSocketFile(mapping.localAddress());
 
-        if (read == 0)
-            return;
+            channel.bind(mapping.localAddress(), backlog);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to bind: " + mapping.localAddress(), e);
 
-        if (read < 0) {
             close(channel);
-            close(linked.channel);
 
-            return;
+            return null;
         }
 
-        buffer.flip();
+        LOGGER.info("Start listening on " + mapping.localAddress() + " mapped to " +
+                (mapping.remoteAddresses().size() == 1 ? mapping.remoteAddress() : mapping.remoteAddresses()));
 
-        if (linked.channel.isConnected())
-            linked.channel.write(buffer);
-
-        if (buffer.hasRemaining()) {
-            linked.pending = buffer;
+        return channel;
+    }
 
-            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    /**
+     * Returns total capacity of transfer buffers allocated by all workers.
+     *
+     * @return Allocated buffer memory in bytes.
+     */
+    public long bufferMemory() {
+        long memory = 0;
 
-            SelectionKey linkedKey = linked.channel.keyFor(key.selector());
+        for (Worker worker : workers())
+            memory += worker.bufferPool.allocatedMemory();
 
-            linkedKey.interestOps(linkedKey.interestOps() | SelectionKey.OP_WRITE);
-        } else {
-            bufferPool.returnBuffer(buffer);
-        }
+        return memory;
     }
 
     /**
-     * Handles channel write readiness.
+     * Returns count of mirrors dropped since their queues exceeded the limit or shadow connection failed.
      *
-     * @param key Selection key.
-     * @throws IOException If I/O error occurs.
+     * @return Count of dropped mirrors.
      */
-    private void onWrite(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        Session session = ((Session) key.attachment());
-
-        if (session.pending == null)
-            throw new RuntimeException("expected pending data");
+    public long mirrorDrops() {
+        Mirroring mirroring0 = mirroring;
 
-        channel.write(session.pending);
+        return mirroring0 == null ? 0 : mirroring0.dropped();
+    }
 
-        if (session.pending.hasRemaining())
-            return;
+    /**
+     * Returns count of datagrams of new UDP clients dropped since session limit of forwarder is reached.
+     *
+     * @return Count of rejected datagrams.
+     */
+    public long udpRejected() {
+        long rejected = 0;
 
-        bufferPool.returnBuffer(session.pending);
+        for (UdpForwarder forwarder : forwarders)
+            rejected += forwarder.rejected();
 
-        session.pending = null;
+        return rejected;
+    }
 
-        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    /**
+     * @return Active workers of all groups.
+     */
+    private List<Worker> workers() {
+        List<Worker> workers = new ArrayList<>();
 
-        SelectionKey linkedKey = session.linked.channel.keyFor(key.selector());
+        for (Group group : groups.values())
+            Collections.addAll(workers, group.workers);
 
-        linkedKey.interestOps(linkedKey.interestOps() | SelectionKey.OP_READ);
+        return workers;
     }
 
     /**
-     * Worker dispatches occurred events on registered channels.
+     * Shutdowns the server.
+     *
+     * @throws InterruptedException  If shutdown process is interrupted.
+     * @throws IllegalStateException If server is not started.
      */
-    private class Worker extends Thread {
-        /** Queue of channels for registration. */
-        private final Queue<Registration> pending = new ConcurrentLinkedQueue<>();
+    public void shutdown() throws InterruptedException {
+        if (mappings == null)
+            throw new IllegalStateException("not started");
 
-        /** Latch that open when worker is ready for registering channels. */
-        private final CountDownLatch initLatch = new CountDownLatch(1);
+        Map<ServerSocketChannel, Route> channels;
 
-        /** Flag that help to reduce count of selector wake ups. */
-        private final AtomicBoolean awakened = new AtomicBoolean(false);
+        synchronized (this) {
+            if (mappings == null)
+                throw new IllegalStateException("not started");
 
-        /** Worker selector. */
-        private volatile Selector selector;
+            channels = mappings;
 
-        /**
-         * @param name Worker thread name.
-         */
-        Worker(String name) {
-            super(name);
+            mappings = null;
         }
 
-        /**
-         * Registration request of new pair of sockets with their sessions.
-         */
-        private class Registration {
-            final SocketChannel channel1;
-            final Session session1;
+        try {
+            if (watchdog != null)
+                watchdog.interrupt();
 
-            final SocketChannel channel2;
-            final Session session2;
+            if (balancer != null) {
+                balancer.interrupt();
 
-            private Registration(SocketChannel channel1, Session session1,
-                                 SocketChannel channel2, Session session2) {
-                this.channel1 = channel1;
-                this.session1 = session1;
-                this.channel2 = channel2;
-                this.session2 = session2;
+                // balancer must not change workers any more
+                balancer.join();
             }
-        }
 
-        /**
-         * Registers new pair of channels and their sessions. Does not link sessions.
+            acceptor.interrupt();
+        } finally {
+            for (Map.Entry<ServerSocketChannel, Route> entry : channels.entrySet()) {
+                close(entry.getKey());
+
+                SocketAddress localAddress = entry.getValue().mapping.localAddress();
+
+                if (UnixDomainSockets.isUnixAddress(localAddress))
+                    deleteSocketFile(localAddress);
+            }
+
+            List<Worker> workers0 = workers();
+
+            for (Worker worker : workers0)
+                worker.interrupt();
+
+            for (Worker worker : workers0)
+                worker.join();
+
+            for (UdpForwarder forwarder : forwarders)
+                forwarder.interrupt();
+
+            for (UdpForwarder forwarder : forwarders)
+                forwarder.join();
+
+            if (mirroring != null) {
+                mirroring.interrupt();
+                mirroring.join();
+            }
+
+            if (tunneling != null)
+                tunneling.shutdown();
+
+            // workers have published their last records
+            if (accessLog != null)
+                accessLog.stop();
+
+            if (capture != null)
+                unregisterCaptureMBean();
+        }
+    }
+
+    /**
+     * Undoes starting of access log and traffic capture, closes channels bound so far and releases
+     * mirroring and tunneling threads if they have been created, so server is left stopped when
+     * start fails after them.
+     */
+    private void abortStart() {
+        for (Map.Entry<ServerSocketChannel, Route> entry : mappings.entrySet()) {
+            close(entry.getKey());
+
+            SocketAddress localAddress = entry.getValue().mapping.localAddress();
+
+            if (UnixDomainSockets.isUnixAddress(localAddress))
+                deleteSocketFile(localAddress);
+        }
+
+        if (mirroring != null) {
+            // thread releases its selector once it exits
+            mirroring.start();
+            mirroring.interrupt();
+
+            mirroring = null;
+        }
+
+        if (tunneling != null) {
+            // engines release their selectors once they exit
+            tunneling.start();
+
+            try {
+                tunneling.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            tunneling = null;
+        }
+
+        if (accessLog != null) {
+            try {
+                accessLog.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (capture != null)
+            unregisterCaptureMBean();
+
+        mappings = null;
+    }
+
+    /**
+     * Registers management bean of traffic capture.
+     */
+    private void registerCaptureMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(capture, CaptureMXBean.class, true), new ObjectName(CAPTURE_MBEAN_NAME));
+        } catch (JMException e) {
+            // e.g. another server in the same JVM captures traffic
+            LOGGER.fine("Failed to register management bean of traffic capture: " + e);
+        }
+    }
+
+    /**
+     * Unregisters management bean of traffic capture.
+     */
+    private void unregisterCaptureMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(CAPTURE_MBEAN_NAME));
+        } catch (JMException e) {
+            LOGGER.fine("Failed to unregister management bean of traffic capture: " + e);
+        }
+    }
+
+    /**
+     * Deletes file of Unix domain socket unless it's a regular file or directory.
+     *
+     * @param address Unix domain socket address.
+     */
+    private static void deleteSocketFile(SocketAddress address) {
+        Path path = UnixDomainSockets.path(address);
+
+        try {
+            if (Files.exists(path) && !Files.isRegularFile(path) && !Files.isDirectory(path))
+                Files.delete(path);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to delete socket file " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Creates route of given mapping. Socket options of the mapping override server ones.
+     *
+     * @param mapping Port mapping.
+     * @return Route of the mapping.
+     */
+    private Route route(PortMapping mapping) {
+        boolean unixClient = UnixDomainSockets.isUnixAddress(mapping.localAddress());
+        boolean unixUpstream = UnixDomainSockets.isUnixAddress(mapping.remoteAddress());
+
+        NetworkChannelFactory<SocketChannel> upstreamFactory =
+                socketFactory(mapping.upstreamSocketFactory(), unixUpstream);
+
+        // each mapping has its own pool since peer relays streams of tunnel connection by port it arrived at
+        Tunneling.Pool tunnelPool = mapping.tunnel() != null && mapping.tunnel().mode() == TunnelSettings.Mode.CONNECT ?
+                tunneling.connect(mapping.remoteAddresses(), upstreamFactory, mapping.tunnel()) : null;
+
+        return new Route(mapping, groups.get(mapping.group()),
+                socketFactory(mapping.clientSocketFactory(), unixClient),
+                upstreamFactory,
+                backendTable(mapping),
+                mapping.mirrorAddress() != null ? socketFactory(mapping.upstreamSocketFactory(), false) : null,
+                tunnelPool);
+    }
+
+    /**
+     * Returns consistent hash table of mapping backends. Mappings with the same backends share the table.
+     *
+     * @param mapping Port mapping.
+     * @return Table or {@code null} if mapping has single backend.
+     */
+    private MaglevTable backendTable(PortMapping mapping) {
+        if (mapping.remoteAddresses().size() == 1)
+            return null;
+
+        MaglevTable backendTable = backendTables.get(mapping.remoteAddresses());
+
+        if (backendTable == null) {
+            backendTable = new MaglevTable(mapping.remoteAddresses());
+
+            backendTables.put(mapping.remoteAddresses(), backendTable);
+        }
+
+        return backendTable;
+    }
+
+    /**
+     * @param overrides Factory with options that override server ones or {@code null}.
+     * @param unix      Whether factory opens Unix domain sockets.
+     * @return Server socket factory if there are no overrides, otherwise factory with merged options.
+     */
+    private NetworkChannelFactory<SocketChannel> socketFactory(NetworkChannelFactory<SocketChannel> overrides,
+                                                               boolean unix) {
+        if (unix) {
+            return UnixSocketChannelFactory.create()
+                    .provider(socketFactory.provider())
+                    .options(socketFactory)
+                    .options(overrides)
+                    .build();
+        }
+
+        if (overrides == null)
+            return socketFactory;
+
+        return SocketChannelFactory.create()
+                .provider(socketFactory.provider())
+                .options(socketFactory)
+                .options(overrides)
+                .build();
+    }
+
+    /**
+     * Handles incoming connections.
+     *
+     * @param route   Route of channel that accepted new connection.
+     * @param channel Accepted connection channel.
+     */
+    private void onAccept(Route route, SocketChannel channel) {
+        if (route.mapping.tunnel() != null) {
+            onTunnelAccept(route, channel);
+            return;
+        }
+
+        PortMapping mapping = route.mapping;
+        SocketChannel mappedChannel = null;
+        SocketAddress backend;
+
+        TlsConnection clientTls = null;
+        TlsConnection upstreamTls = null;
+
+        try {
+            route.clientFactory.apply(channel);
+            channel.configureBlocking(false);
+
+            mappedChannel = route.upstreamFactory.newChannel();
+            mappedChannel.configureBlocking(false);
+
+            backend = route.backend(channel.getRemoteAddress());
+
+            mappedChannel.connect(backend);
+
+            if (mapping.clientTls() != null)
+                clientTls = new TlsConnection(mapping.clientTls().newEngine(null), channel);
+
+            if (mapping.upstreamTls() != null)
+                upstreamTls = new TlsConnection(mapping.upstreamTls().newEngine(backend), mappedChannel);
+
+            if (listener != null)
+                listener.onAccept(mapping, channel.getRemoteAddress());
+        } catch (IOException e) {
+            LOGGER.warning("Failed to handle incoming connection. Closing it... (" + e + ")");
+
+            close(channel);
+
+            if (mappedChannel != null)
+                close(mappedChannel);
+
+            return;
+        }
+
+        Session originateSession = new Session(channel, mapping, false);
+        Session mappedSession = new Session(mappedChannel, mapping, true);
+
+        originateSession.tls = clientTls;
+        mappedSession.tls = upstreamTls;
+        mappedSession.backend = backend;
+
+        if (route.mirrorFactory != null)
+            originateSession.mirror = mirror(route);
+
+        if (capture != null) {
+            originateSession.captureId = capture.nextSessionId();
+            mappedSession.captureId = originateSession.captureId;
+        }
+
+        if (listener != null || accessLog != null)
+            originateSession.openedAt = System.nanoTime();
+
+        originateSession.link(mappedSession);
+
+        route.group.pickWorker().register(originateSession);
+    }
+
+    /**
+     * Handles incoming connection of tunnel mapping. Its traffic is relayed by tunnel engines
+     * rather than workers, so it's not reported to listener, access log and capture.
+     *
+     * @param route   Route of channel that accepted new connection.
+     * @param channel Accepted connection channel.
+     */
+    private void onTunnelAccept(Route route, SocketChannel channel) {
+        try {
+            route.clientFactory.apply(channel);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to handle incoming connection. Closing it... (" + e + ")");
+
+            close(channel);
+
+            return;
+        }
+
+        if (route.tunnelPool != null)
+            route.tunnelPool.open(channel);
+        else
+            tunneling.accept(channel, route);
+    }
+
+    /**
+     * Opens connection to shadow backend of the mapping. Failure doesn't affect proxied connection.
+     *
+     * @param route Route of the mapping.
+     * @return Mirror or {@code null} if shadow connection can't be opened.
+     */
+    private Mirroring.Mirror mirror(Route route) {
+        SocketChannel channel = null;
+
+        try {
+            channel = route.mirrorFactory.newChannel();
+            channel.configureBlocking(false);
+            channel.connect(route.mapping.mirrorAddress());
+
+            return mirroring.mirror(channel);
+        } catch (IOException e) {
+            LOGGER.fine("Failed to open shadow connection to " + route.mapping.mirrorAddress() + ": " + e);
+
+            if (channel != null)
+                close(channel);
+
+            return null;
+        }
+    }
+
+    /**
+     * Captures data read from channel of the session. Session is described in each segment file
+     * it has data in, so the description is kept as long as any of its data.
+     *
+     * @param session Session the data has been read from.
+     * @param buffer  Read data.
+     * @param writer  Capture writer of the worker.
+     */
+    private void capture(Session session, ByteBuffer buffer, CaptureWriter writer) {
+        Session client = session.upstream ? session.linked : session;
+
+        writer.write(client.captureId, session.upstream ? CaptureWriter.SERVER : CaptureWriter.CLIENT,
+                session.captureOffset, buffer);
+
+        session.captureOffset += buffer.remaining();
+
+        if (client.captureSegment != writer.segment()) {
+            String clientAddress = "-";
+
+            try {
+                clientAddress = String.valueOf(client.channel.getRemoteAddress());
+            } catch (IOException e) {
+                // leave unknown
+            }
+
+            writer.open(client.captureId, client.mapping.title() + " " + clientAddress + " " + client.linked.backend);
+
+            client.captureSegment = writer.segment();
+        }
+    }
+
+    /**
+     * Handles outgoing connection establishment.
+     *
+     * @param key Selection key.
+     * @throws IOException If I/O error occurs.
+     */
+    private void onConnect(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        if (channel.finishConnect()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
+
+            if (listener != null) {
+                Session session = (Session) key.attachment();
+
+                listener.onConnect(session.mapping, channel.getRemoteAddress(),
+                        System.nanoTime() - session.linked.openedAt);
+            }
+        }
+    }
+
+    /**
+     * Closes channels of given session and its linked session. Does nothing
+     * if they are closed already. Access record of the connection is published
+     * to the ring of the worker.
+     *
+     * @param session Session to close along with its linked one.
+     * @param reason  Close reason.
+     * @param worker  Worker that handles the sessions.
+     */
+    private void closeSessions(Session session, CloseReason reason, Worker worker) {
+        if (!session.channel.isOpen() && !session.linked.channel.isOpen())
+            return;
+
+        Session client = session.upstream ? session.linked : session;
+
+        SocketAddress clientAddress = null;
+
+        // address is not available once channel is closed
+        if (worker.accessRing != null) {
+            try {
+                clientAddress = client.channel.getRemoteAddress();
+            } catch (IOException e) {
+                // leave unknown
+            }
+        }
+
+        if (session.tls != null)
+            session.tls.close(worker.tlsBufferPool);
+
+        if (session.linked.tls != null)
+            session.linked.tls.close(worker.tlsBufferPool);
+
+        close(session.channel);
+        close(session.linked.channel);
+
+        if (client.mirror != null)
+            client.mirror.close();
+
+        long duration = client.openedAt == 0 ? 0 : System.nanoTime() - client.openedAt;
+
+        if (worker.accessRing != null)
+            worker.accessRing.publish(client.mapping, clientAddress, client.linked.backend,
+                    client.readBytes, client.linked.readBytes, duration, reason);
+
+        if (listener != null)
+            listener.onClose(client.mapping, client.readBytes, client.linked.readBytes, duration, reason);
+    }
+
+    /**
+     * @param session Session which channel has failed.
+     * @return Reason to close connection for.
+     */
+    private static CloseReason errorReason(Session session) {
+        if (!session.upstream)
+            return CloseReason.CLIENT_ERROR;
+
+        return session.channel.isConnected() ? CloseReason.SERVER_ERROR : CloseReason.CONNECT_FAILED;
+    }
+
+    /**
+     * Handles received data. This method also invoked on disconnects.
+     * <p/>
+     * Reads are scheduled by deficit round robin: each turn session gets {@link #quantum} bytes
+     * of credit, and once credit is spent while channel still has data, session is queued
+     * to worker for the next round instead of going on reading. So bulk flows take turns with
+     * each other and with flows that have just become readable, and small interactive flows
+     * don't wait behind them longer than one round. Debt of the last read is carried over
+     * to the next turn, while unused credit of drained session is dropped.
+     *
+     * @param key    Selection key.
+     * @param worker Worker that handles the key.
+     * @throws IOException If I/O error occurs.
+     */
+    private void onRead(SelectionKey key, Worker worker) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        Session linked = session.linked;
+
+        if (linked.pending != null)
+            throw new RuntimeException("pending data must be flushed");
+
+        BufferPool bufferPool = worker.bufferPool;
+
+        ByteBuffer buffer = bufferPool.getBuffer(session.sizeClass);
+
+        session.deficit = Math.min(session.deficit, 0) + quantum;
+
+        for (int i = 0; i < readBatch; i++) {
+            int read = session.tls != null ? session.tls.read(buffer, worker.tlsBufferPool) : channel.read(buffer);
+
+            if (read < 1) {
+                bufferPool.returnBuffer(buffer);
+
+                session.deficit = 0;
+            }
+
+            if (read == 0)
+                return;
+
+            if (read < 0) {
+                closeSessions(session, session.upstream ? CloseReason.SERVER_CLOSED : CloseReason.CLIENT_CLOSED,
+                        worker);
+
+                return;
+            }
+
+            session.adjustSizeClass(read, buffer.capacity());
+
+            session.countWindow(read, worker.window);
+            session.readBytes += read;
+            session.deficit -= read;
+            worker.relayed += read;
+
+            buffer.flip();
+
+            if (session.mirror != null)
+                session.mirror.offer(buffer);
+
+            if (worker.captureWriter != null && capture.isEnabled(session.mapping))
+                capture(session, buffer, worker.captureWriter);
+
+            if (linked.channel.isConnected())
+                write(linked, buffer, worker);
+
+            // data consumed by TLS might be not written yet
+            if (buffer.hasRemaining() || linked.tls != null && linked.tls.hasPendingOutput()) {
+                linked.pending = buffer;
+
+                if (listener != null)
+                    linked.stalledAt = System.nanoTime();
+
+                session.deficit = 0;
+
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+                SelectionKey linkedKey = linked.key;
+
+                linkedKey.interestOps(linkedKey.interestOps() | SelectionKey.OP_WRITE);
+
+                return;
+            }
+
+            // socket is likely drained if buffer was not filled up
+            if (read < buffer.capacity()) {
+                session.deficit = 0;
+
+                break;
+            }
+
+            if (session.deficit <= 0 || i == readBatch - 1) {
+                worker.schedule(session);
+
+                break;
+            }
+
+            buffer.clear();
+        }
+
+        bufferPool.returnBuffer(buffer);
+    }
+
+    /**
+     * Handles channel write readiness.
+     *
+     * @param key    Selection key.
+     * @param worker Worker that handles the key.
+     * @throws IOException If I/O error occurs.
+     */
+    private void onWrite(SelectionKey key, Worker worker) throws IOException {
+        BufferPool bufferPool = worker.bufferPool;
+
+        Session session = ((Session) key.attachment());
+
+        if (session.pending == null) {
+            if (session.tls == null)
+                throw new RuntimeException("expected pending data");
+
+            // handshake data or the tail of relayed data
+            session.tls.flush(worker.tlsBufferPool);
+
+            return;
+        }
+
+        write(session, session.pending, worker);
+
+        if (session.pending.hasRemaining() || session.tls != null && session.tls.hasPendingOutput())
+            return;
+
+        bufferPool.returnBuffer(session.pending);
+
+        session.pending = null;
+
+        if (listener != null)
+            listener.onWriteStall(session.mapping, session.upstream, System.nanoTime() - session.stalledAt);
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+        SelectionKey linkedKey = session.linked.key;
+
+        linkedKey.interestOps(linkedKey.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Writes data to session channel, through TLS layer if the session has one.
+     *
+     * @param session Session to write to.
+     * @param buffer  Data to write.
+     * @param worker  Worker that handles the session.
+     * @throws IOException If I/O error occurs.
+     */
+    private static void write(Session session, ByteBuffer buffer, Worker worker) throws IOException {
+        if (session.tls != null)
+            session.tls.write(buffer, worker.tlsBufferPool);
+        else
+            session.channel.write(buffer);
+    }
+
+    /**
+     * Adjusts interest set of TLS session after its events or events of its linked session
+     * have been handled. Channel stays writable while TLS layer has data to write or handshake
+     * to advance, but not while relayed data waits for handshake data of peer. Session that
+     * has complete records received along with previous ones is queued to read them.
+     *
+     * @param session Session to adjust.
+     * @param worker  Worker that handles the session.
+     */
+    private static void syncTls(Session session, Worker worker) {
+        TlsConnection tls = session.tls;
+        SelectionKey key = session.key;
+
+        if (tls == null || key == null || !key.isValid() || !session.channel.isConnected())
+            return;
+
+        int ops = key.interestOps();
+
+        if (tls.wantsWrite(session.pending != null))
+            ops |= SelectionKey.OP_WRITE;
+        else
+            ops &= ~SelectionKey.OP_WRITE;
+
+        key.interestOps(ops);
+
+        if ((ops & SelectionKey.OP_READ) != 0 && !session.scheduled && !tls.hasPendingOutput() &&
+                tls.hasBufferedInput())
+            worker.schedule(session);
+    }
+
+    /**
+     * Server builder. All settings are optional and have reasonable defaults.
+     */
+    public static class Builder {
+        private NetworkChannelFactory<ServerSocketChannel> serverSocketFactory = ServerSocketChannelFactory.DEFAULT;
+
+        private NetworkChannelFactory<SocketChannel> socketFactory = SocketChannelFactory.DEFAULT;
+
+        private int backlog = DEFAULT_BACKLOG;
+
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+        private int minBufferSize;
+
+        private int workers = DEFAULT_WORKERS_COUNT;
+
+        private boolean blockingAcceptor;
+
+        private int readBatch = DEFAULT_READ_BATCH;
+
+        private int quantum = DEFAULT_QUANTUM;
+
+        private int[] workerCpus;
+
+        private int[] acceptorCpus;
+
+        private long rebalanceInterval;
+
+        private double rebalanceRatio = DEFAULT_REBALANCE_RATIO;
+
+        private int minWorkers;
+
+        private int maxWorkers;
+
+        private long scaleInterval = DEFAULT_SCALE_INTERVAL;
+
+        private double scaleUpThreshold = DEFAULT_SCALE_UP_THRESHOLD;
+
+        private double scaleDownThreshold = DEFAULT_SCALE_DOWN_THRESHOLD;
+
+        private final List<WorkerGroup> groups = new ArrayList<>();
+
+        private long stallTimeout = DEFAULT_STALL_TIMEOUT;
+
+        private ProxyEventListener listener;
+
+        private AccessLog accessLog;
+
+        private Capture capture;
+
+        private int udpForwarders = DEFAULT_UDP_FORWARDERS;
+
+        private long udpIdleTimeout = DEFAULT_UDP_IDLE_TIMEOUT;
+
+        private int udpMaxSessions = DEFAULT_UDP_MAX_SESSIONS;
+
+        private long mirrorQueue = DEFAULT_MIRROR_QUEUE;
+
+        private int tunnelThreads = DEFAULT_TUNNEL_THREADS;
+
+        private Builder() {
+        }
+
+        /**
+         * @param factory Factory for creating server socket channels.
+         * @return {@code this} builder.
+         */
+        public Builder serverSocketFactory(NetworkChannelFactory<ServerSocketChannel> factory) {
+            if (factory == null)
+                throw new NullPointerException();
+
+            this.serverSocketFactory = factory;
+            return this;
+        }
+
+        /**
+         * @param factory Factory for creating connections to remote servers.
+         *                Must use the same selector provider as server socket factory.
+         * @return {@code this} builder.
+         */
+        public Builder socketFactory(NetworkChannelFactory<SocketChannel> factory) {
+            if (factory == null)
+                throw new NullPointerException();
+
+            this.socketFactory = factory;
+            return this;
+        }
+
+        /**
+         * @param backlog Maximum number of pending incoming connections on each listen port.
+         *                If value is 0 or less, OS default value will be used.
+         * @return {@code this} builder.
+         */
+        public Builder backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * @param bufferSize Transfer buffer size.
+         * @return {@code this} builder.
+         */
+        public Builder bufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Sets minimal transfer buffer size. If it's less than transfer buffer size, each direction
+         * of connection starts with minimal buffer and adapts its size to the traffic, doubling
+         * buffer when read fills it up and halving it when reads are small. Smaller transfer
+         * buffer of mapping lowers minimal buffer size of its worker group.
+         *
+         * @param minBufferSize Minimal transfer buffer size or 0 to use fixed size buffers.
+         * @return {@code this} builder.
+         */
+        public Builder minBufferSize(int minBufferSize) {
+            this.minBufferSize = minBufferSize;
+            return this;
+        }
+
+        /**
+         * @param workers Count of workers.
+         * @return {@code this} builder.
+         */
+        public Builder workers(int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        /**
+         * @param blockingAcceptor Whether blocking I/O acceptor should be used.
+         * @return {@code this} builder.
+         */
+        public Builder blockingAcceptor(boolean blockingAcceptor) {
+            this.blockingAcceptor = blockingAcceptor;
+            return this;
+        }
+
+        /**
+         * Sets maximum count of reads performed on single readiness event. While reads fill
+         * the whole transfer buffer and peer accepts all the data, worker keeps relaying
+         * without returning to {@code select()}, which saves system calls on bulk flows.
+         *
+         * @param readBatch Maximum count of reads per readiness event.
+         * @return {@code this} builder.
+         */
+        public Builder readBatch(int readBatch) {
+            this.readBatch = readBatch;
+            return this;
+        }
+
+        /**
+         * Sets count of bytes session may read per scheduling round. Session that has spent
+         * its quantum yields to other sessions of the worker, so smaller quantum bounds latency
+         * of interactive flows sharing worker with bulk ones at the cost of more loop iterations.
+         *
+         * @param quantum Count of bytes per round.
+         * @return {@code this} builder.
+         */
+        public Builder quantum(int quantum) {
+            this.quantum = quantum;
+            return this;
+        }
+
+        /**
+         * Sets CPUs to pin workers to. Each worker is pinned to single CPU, workers are
+         * assigned to CPUs in round-robin manner.
+         *
+         * @param cpus CPU numbers or {@code null} if workers should not be pinned.
+         * @return {@code this} builder.
+         * @see ThreadAffinity#parse(String)
+         */
+        public Builder workerCpus(int[] cpus) {
+            this.workerCpus = cpus == null || cpus.length == 0 ? null : cpus.clone();
+            return this;
+        }
+
+        /**
+         * Sets CPUs to pin acceptor thread(s) to.
+         *
+         * @param cpus CPU numbers or {@code null} if acceptor should not be pinned.
+         * @return {@code this} builder.
+         * @see ThreadAffinity#parse(String)
+         */
+        public Builder acceptorCpus(int[] cpus) {
+            this.acceptorCpus = cpus == null || cpus.length == 0 ? null : cpus.clone();
+            return this;
+        }
+
+        /**
+         * Enables periodic rebalancing of sessions between workers. Each interval relay rates
+         * of workers are compared and if the most loaded worker relays {@code ratio} times more
+         * than the least loaded one, it hands over one of its hot session pairs.
+         *
+         * @param interval Interval between load checks in milliseconds or 0 to disable rebalancing.
+         * @param ratio    Ratio between rates of the most and the least loaded workers that triggers
+         *                 rebalancing. Must be greater than 1.
+         * @return {@code this} builder.
+         */
+        public Builder rebalance(long interval, double ratio) {
+            this.rebalanceInterval = interval;
+            this.rebalanceRatio = ratio;
+            return this;
+        }
+
+        /**
+         * Enables adaptive count of workers. Server starts with {@link #workers(int)} workers (but within bounds)
+         * and each interval checks average share of time workers spend on handling events rather than waiting
+         * for them. If the share stays above upper threshold for several checks, new worker is started. If it
+         * stays below lower threshold, the least loaded worker is retired: it hands over its sessions to other
+         * workers and stops.
+         *
+         * @param minWorkers         Minimal count of workers.
+         * @param maxWorkers         Maximal count of workers. Scaling is enabled if it's greater than minimal count.
+         * @param interval           Interval between utilization checks, ms.
+         * @param scaleUpThreshold   Utilization in range (0..1] above which new worker is started.
+         * @param scaleDownThreshold Utilization in range [0..1) below which one of workers is retired.
+         * @return {@code this} builder.
+         */
+        public Builder scaling(int minWorkers, int maxWorkers, long interval,
+                               double scaleUpThreshold, double scaleDownThreshold) {
+            this.minWorkers = minWorkers;
+            this.maxWorkers = maxWorkers;
+            this.scaleInterval = interval;
+            this.scaleUpThreshold = scaleUpThreshold;
+            this.scaleDownThreshold = scaleDownThreshold;
+            return this;
+        }
+
+        /**
+         * Sets time of single event loop iteration after which worker is reported as stalled
+         * along with its thread stack.
+         *
+         * @param stallTimeout Stall timeout, ms, or 0 to disable stall detection.
+         * @return {@code this} builder.
+         */
+        public Builder stallTimeout(long stallTimeout) {
+            this.stallTimeout = stallTimeout;
+            return this;
+        }
+
+        /**
+         * Sets listener of proxy events. Server doesn't collect event data unless listener is set.
+         *
+         * @param listener Listener of proxy events or {@code null}.
+         * @return {@code this} builder.
+         */
+        public Builder listener(ProxyEventListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Sets access log. Each worker publishes access records of closed connections
+         * to its own ring of the log, server starts and stops log along with itself.
+         *
+         * @param accessLog Access log or {@code null} if it's disabled.
+         * @return {@code this} builder.
+         */
+        public Builder accessLog(AccessLog accessLog) {
+            this.accessLog = accessLog;
+            return this;
+        }
+
+        /**
+         * Sets traffic capture. Each worker writes captured data of its connections to its own
+         * segment files, capture of mappings is turned on and off through management bean.
+         *
+         * @param capture Traffic capture or {@code null} if it's disabled.
+         * @return {@code this} builder.
+         */
+        public Builder capture(Capture capture) {
+            this.capture = capture;
+            return this;
+        }
+
+        /**
+         * Sets UDP forwarding settings. UDP mappings are distributed between forwarder threads,
+         * each of them serves its mappings with single selector.
+         *
+         * Each session takes a file descriptor, so each forwarder keeps at most given count of them
+         * and drops datagrams of new clients once the limit is reached.
+         *
+         * @param forwarders  Maximal count of forwarder threads.
+         * @param idleTimeout Time without traffic after which session of client is expired, ms.
+         * @param maxSessions Maximal count of sessions of single forwarder.
+         * @return {@code this} builder.
+         */
+        public Builder udp(int forwarders, long idleTimeout, int maxSessions) {
+            this.udpForwarders = forwarders;
+            this.udpIdleTimeout = idleTimeout;
+            this.udpMaxSessions = maxSessions;
+            return this;
+        }
+
+        /**
+         * Sets limit of data queued to shadow connection of mirrored mapping. When it's exceeded,
+         * e.g. since shadow backend is slow, mirror is dropped, while proxied connection goes on.
+         *
+         * @param mirrorQueue Maximal count of bytes queued to shadow connection.
+         * @return {@code this} builder.
+         */
+        public Builder mirrorQueue(long mirrorQueue) {
+            this.mirrorQueue = mirrorQueue;
+            return this;
+        }
+
+        /**
+         * Sets count of threads serving tunnel connections of both tunnel sides, see {@link TunnelSettings}.
+         * Each tunnel connection with all its streams is served by single thread.
+         *
+         * @param tunnelThreads Count of tunnel threads.
+         * @return {@code this} builder.
+         */
+        public Builder tunnelThreads(int tunnelThreads) {
+            this.tunnelThreads = tunnelThreads;
+            return this;
+        }
+
+        /**
+         * Adds named worker group. Mappings assigned to the group are served by its workers only.
+         * Settings above (workers count, buffer sizes, scaling) describe default group that serves
+         * all other mappings. Buffer sizes that are not set for the group are taken from default group.
+         *
+         * @param group Worker group.
+         * @return {@code this} builder.
+         * @see PortMapping#group()
+         */
+        public Builder group(WorkerGroup group) {
+            if (group == null)
+                throw new NullPointerException();
+
+            groups.add(group);
+            return this;
+        }
+
+        /**
+         * Finishes server building.
+         *
+         * @return Proxy server instance.
+         * @throws IllegalArgumentException If some of settings are invalid.
+         */
+        public ProxyServer build() {
+            return new ProxyServer(this);
+        }
+    }
+
+    /**
+     * Worker dispatches occurred events on registered channels.
+     */
+    private class Worker extends Thread implements WorkerMXBean {
+        /** Queue of sessions for registration. */
+        private final Queue<Session> pending = new ConcurrentLinkedQueue<>();
+
+        /** Latch that open when worker is ready for registering channels. */
+        private final CountDownLatch initLatch = new CountDownLatch(1);
+
+        /** Flag that help to reduce count of selector wake ups. */
+        private final AtomicBoolean awakened = new AtomicBoolean(false);
+
+        /**
+         * Pool of transfer buffers. Buffers are allocated by worker thread itself,
+         * so their memory is placed on NUMA node the worker runs on.
+         */
+        private final BufferPool bufferPool;
+
+        /**
+         * Pool of buffers of TLS records or {@code null} if no mapping uses TLS. Created by worker
+         * thread once it's started, since mappings are unknown until then. Accessed by worker thread only.
+         */
+        private BufferPool tlsBufferPool;
+
+        /** Group of the worker. */
+        private final Group group;
+
+        /** CPUs to pin worker thread to or {@code null}. */
+        private final int[] cpus;
+
+        /** Ring to publish access records to or {@code null} if access log is disabled. */
+        private final AccessLogRing accessRing;
+
+        /** Writer of captured data or {@code null} if capture is disabled. */
+        private final CaptureWriter captureWriter;
+
+        /** Pending request to hand over part of the load to another worker. */
+        private final AtomicReference<Migration> migration = new AtomicReference<>();
+
+        /** Worker selector. */
+        private volatile Selector selector;
+
+        /** Count of bytes relayed by the worker. Accessed by worker thread only. */
+        private long relayed;
+
+        /** Count of bytes relayed by the worker, published once per loop iteration. */
+        private volatile long relayedBytes;
+
+        /** Time spent on handling events, ns. Accessed by worker thread only. */
+        private long busy;
+
+        /** Time spent on handling events (i.e. not waiting in select), published once per loop iteration. */
+        private volatile long busyNanos;
+
+        /*
+         * Loop counters below are written by worker thread only and read by management clients
+         * without synchronization, since slightly outdated values are fine for them.
+         */
+
+        /** Time spent waiting in select, ns. */
+        private long selectNanos;
+
+        /** Count of event loop iterations. */
+        private long iterations;
+
+        /** Count of selected keys handled. */
+        private long selectedKeys;
+
+        /** The longest time of handling events of single loop iteration, ns. */
+        private long maxBusyNanos;
+
+        /** Time current loop iteration has started handling events at, ns, or 0 if worker waits in select. */
+        private volatile long processingSince;
+
+        /** Count of stalls reported by watchdog. */
+        private volatile long stalls;
+
+        /** Value of {@link #processingSince} of the last reported stall. Accessed by watchdog only. */
+        private long stallReported;
+
+        /** Whether worker has been retired. Retired worker hands over all its sessions and stops. */
+        private volatile boolean retired;
+
+        /** Values of {@link #relayedBytes} and {@link #busyNanos} at last check. Accessed by balancer only. */
+        private long lastRelayed, lastBusy;
+
+        /** Count of load checks of the worker. Written by balancer only, each check closes traffic window. */
+        private volatile int loadChecks;
+
+        /** Traffic window of current loop iteration, i.e. value of {@link #loadChecks} seen at its start. */
+        private int window;
+
+        /** Head of queue of sessions that have spent their quantum with data still available. */
+        private Session readyHead;
+
+        /** Tail of queue of sessions that have spent their quantum with data still available. */
+        private Session readyTail;
+
+        /**
+         * @param name  Worker thread name.
+         * @param group Group of the worker.
+         * @param cpus  CPUs to pin worker thread to or {@code null} if thread should not be pinned.
+         */
+        Worker(String name, Group group, int[] cpus) {
+            super(name);
+
+            this.group = group;
+            this.cpus = cpus;
+            this.bufferPool = new BufferPool(group.minBufferSize, group.bufferSize, listener);
+            this.accessRing = accessLog == null ? null : accessLog.newRing();
+            this.captureWriter = capture == null ? null : capture.newWriter(name);
+        }
+
+        /**
+         * Registers channels of given session and its linked session.
+         * Sessions must be linked already.
+         *
+         * @param session Session to register along with its linked one.
+         */
+        void register(Session session) {
+            pending.add(session);
+
+            // worker could retire after it had been chosen
+            if (retired)
+                handOverPending();
+            else
+                wakeup();
+        }
+
+        /**
+         * Retires the worker: it hands over all its sessions to active workers of the group
+         * and stops. Worker must be removed from active workers of the group before.
+         */
+        void retire() {
+            retired = true;
+
+            wakeup();
+        }
+
+        /**
+         * Hands over sessions awaiting registration to active workers of the group.
+         */
+        private void handOverPending() {
+            Session session;
+
+            while ((session = pending.poll()) != null)
+                group.pickWorker().register(session);
+        }
+
+        /**
+         * Hands over all sessions of retired worker to active workers of the group.
+         */
+        private void handOverAll() {
+            for (SelectionKey key : selector.keys()) {
+                Session session = (Session) key.attachment();
+
+                // both keys of the pair are cancelled at once
+                if (!key.isValid() || !session.linked.key.isValid())
+                    continue;
+
+                unschedule(session);
+                unschedule(session.linked);
+
+                session.deregister();
+                session.linked.deregister();
+
+                group.pickWorker().register(session);
+            }
+
+            handOverPending();
+        }
+
+        /**
+         * Requests worker to hand over one of its hot session pairs to another worker.
+         *
+         * @param target   Worker to hand sessions over to.
+         * @param fraction Fraction of the worker traffic that would balance the load.
+         */
+        void migrate(Worker target, double fraction) {
+            // the check that has just closed the window requests migration
+            migration.set(new Migration(target, fraction, loadChecks - 1));
+
+            wakeup();
+        }
+
+        /**
+         * Queues session to read more data in the next scheduling round.
+         *
+         * @param session Session that has spent its quantum.
+         */
+        void schedule(Session session) {
+            session.scheduled = true;
+
+            if (readyTail == null)
+                readyHead = session;
+            else
+                readyTail.nextReady = session;
+
+            readyTail = session;
+        }
+
+        /**
+         * Removes session from scheduling queue. Must be called before session is handed
+         * over to another worker.
+         *
+         * @param session Session to remove.
+         */
+        private void unschedule(Session session) {
+            if (!session.scheduled)
+                return;
+
+            Session prev = null;
+
+            for (Session cur = readyHead; cur != null; prev = cur, cur = cur.nextReady) {
+                if (cur == session) {
+                    if (prev == null)
+                        readyHead = cur.nextReady;
+                    else
+                        prev.nextReady = cur.nextReady;
+
+                    if (readyTail == cur)
+                        readyTail = prev;
+
+                    break;
+                }
+            }
+
+            session.nextReady = null;
+            session.scheduled = false;
+        }
+
+        /**
+         * Performs one scheduling round: each queued session reads its quantum. Sessions
+         * that still have data are queued again, behind the ones that have become readable
+         * meanwhile.
+         */
+        private void serveScheduled() {
+            Session session = readyHead;
+
+            readyHead = readyTail = null;
+
+            while (session != null) {
+                Session next = session.nextReady;
+
+                session.nextReady = null;
+                session.scheduled = false;
+
+                SelectionKey key = session.key;
+
+                // reading might be suspended until linked channel drains pending data
+                if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+                    try {
+                        onRead(key, this);
+                    } catch (IOException e) {
+                        LOGGER.warning("Failed to handle I/O event: " + e);
+
+                        closeSessions(session, errorReason(session), this);
+                    }
+
+                    if (tlsBufferPool != null) {
+                        syncTls(session, this);
+                        syncTls(session.linked, this);
+                    }
+                } else {
+                    session.deficit = 0;
+                }
+
+                session = next;
+            }
+        }
+
+        /**
+         * Wakes up worker selector unless it's already awakened.
+         */
+        private void wakeup() {
+            // it seems that wakeup() performs quite slowly
+            if (awakened.compareAndSet(false, true)) {
+                selector.wakeup();
+
+                if (listener != null)
+                    listener.onWakeup(getName());
+            }
+        }
+
+        /**
+         * Picks session pair which traffic is the closest to required fraction of worker traffic
+         * (but doesn't exceed its double, so the load isn't just moved to another worker) and
+         * hands it over to target worker. Traffic is measured in the window between the two latest
+         * load checks, the same the balancer has measured worker load in.
+         *
+         * @param migration Migration request.
+         */
+        private void migrate(Migration migration) {
+            long total = 0;
+
+            for (SelectionKey key : selector.keys()) {
+                Session session = (Session) key.attachment();
+
+                if (key.isValid())
+                    total += session.windowBytes(migration.window);
+            }
+
+            long limit = (long) (total * migration.fraction * 2);
+
+            Session hottest = null;
+            long hottestBytes = 0;
+
+            for (SelectionKey key : selector.keys()) {
+                Session session = (Session) key.attachment();
+
+                long bytes = session.windowBytes(migration.window) + session.linked.windowBytes(migration.window);
+
+                if (key.isValid() && bytes > hottestBytes && bytes < limit) {
+                    hottest = session;
+                    hottestBytes = bytes;
+                }
+            }
+
+            if (hottest == null || !hottest.linked.key.isValid())
+                return;
+
+            unschedule(hottest);
+            unschedule(hottest.linked);
+
+            hottest.deregister();
+            hottest.linked.deregister();
+
+            migration.target.register(hottest);
+
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.fine("Session pair " + hottest.channel + " has been moved from " + getName() +
+                        " to " + migration.target.getName());
+        }
+
+        @Override
+        public String getGroup() {
+            return group.name;
+        }
+
+        @Override
+        public long getIterations() {
+            return iterations;
+        }
+
+        @Override
+        public long getSelectedKeys() {
+            return selectedKeys;
+        }
+
+        @Override
+        public double getKeysPerIteration() {
+            return iterations == 0 ? 0 : (double) selectedKeys / iterations;
+        }
+
+        @Override
+        public long getSelectNanos() {
+            return selectNanos;
+        }
+
+        @Override
+        public long getProcessNanos() {
+            return busyNanos;
+        }
+
+        @Override
+        public long getMaxProcessNanos() {
+            return maxBusyNanos;
+        }
+
+        @Override
+        public long getRelayedBytes() {
+            return relayedBytes;
+        }
+
+        @Override
+        public long getStalls() {
+            return stalls;
+        }
+
+        @Override
+        public long getAccessLogDrops() {
+            return accessRing == null ? 0 : accessRing.dropped();
+        }
+
+        @Override
+        public boolean isStalled() {
+            long since = processingSince;
+
+            return stallTimeout > 0 && since != 0 && System.nanoTime() - since > stallTimeout;
+        }
+
+        /**
+         * Registers worker management bean.
+         *
+         * @return Name of registered bean or {@code null} if registration failed.
+         */
+        private ObjectName registerMBean() {
+            try {
+                ObjectName name = new ObjectName(MBEAN_DOMAIN + ":type=Worker,name=" + ObjectName.quote(getName()));
+
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(this, WorkerMXBean.class, true), name);
+
+                return name;
+            } catch (JMException e) {
+                // e.g. worker of another server in the same JVM has the same name
+                LOGGER.fine("Failed to register management bean of worker " + getName() + ": " + e);
+
+                return null;
+            }
+        }
+
+        /**
+         * Handles ready events of selected key.
+         *
+         * @param key Selected key.
+         */
+        private void process(SelectionKey key) {
+            Session session = (Session) key.attachment();
+
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    onConnect(key);
+                }
+
+                // queued session reads in its turn
+                if (key.isValid() && key.isReadable() && !((Session) key.attachment()).scheduled) {
+                    onRead(key, this);
+                }
+
+                if (key.isValid() && key.isWritable()) {
+                    onWrite(key, this);
+                }
+            } catch (IOException e) {
+                LOGGER.warning("Failed to handle I/O event: " + e);
+
+                closeSessions(session, errorReason(session), this);
+            }
+
+            if (tlsBufferPool != null) {
+                syncTls(session, this);
+                syncTls(session.linked, this);
+            }
+        }
+
+        @Override
+        public void run() {
+            // must be done before worker touches any buffer memory
+            if (cpus != null)
+                ThreadAffinity.pin(cpus);
+
+            ObjectName mbeanName = registerMBean();
+
+            if (tlsBufferSize > 0)
+                tlsBufferPool = new BufferPool(tlsBufferSize, tlsBufferSize, listener);
+
+            try {
+                selector = socketFactory.provider().openSelector();
+
+                // array-backed set makes steady-state loop allocation-free
+                SelectedKeySet selectedKeys = SelectedKeySet.inject(selector);
+
+                initLatch.countDown();
+
+                long selectStart = System.nanoTime();
+
+                while (!isInterrupted()) {
+                    awakened.set(false);
+
+                    processingSince = 0;
+
+                    // don't block while there are sessions waiting for their turn
+                    if (readyHead != null)
+                        selector.selectNow();
+                    else
+                        selector.select();
+
+                    if (isInterrupted())
+                        break;
+
+                    long start = System.nanoTime();
+
+                    processingSince = start;
+
+                    window = loadChecks;
+
+                    selectNanos += start - selectStart;
+
+                    if (selectedKeys != null) {
+                        int size = selectedKeys.size();
+
+                        for (int i = 0; i < size; i++)
+                            process(selectedKeys.get(i));
+
+                        selectedKeys.clear();
+
+                        this.selectedKeys += size;
+                    } else {
+                        for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
+                            final SelectionKey key = iter.next();
+
+                            iter.remove();
+
+                            process(key);
+
+                            this.selectedKeys++;
+                        }
+                    }
+
+                    serveScheduled();
+
+                    Session session;
+
+                    while ((session = pending.poll()) != null) {
+                        if (session.maxSizeClass < 0) {
+                            session.maxSizeClass = session.linked.maxSizeClass =
+                                    (byte) bufferPool.sizeClass(session.mapping.bufferSize());
+                        }
+
+                        try {
+                            session.register(selector);
+                            session.linked.register(selector);
+                        } catch (ClosedChannelException e) {
+                            closeSessions(session, errorReason(session), this);
+                        }
+
+                        // connected upstream starts handshake at once
+                        if (tlsBufferPool != null) {
+                            syncTls(session, this);
+                            syncTls(session.linked, this);
+                        }
+                    }
+
+                    Migration migration0 = migration.getAndSet(null);
+
+                    if (migration0 != null)
+                        migrate(migration0);
+
+                    if (retired) {
+                        handOverAll();
+
+                        LOGGER.info("Worker " + getName() + " has been retired");
+
+                        break;
+                    }
+
+                    selectStart = System.nanoTime();
+
+                    long elapsed = selectStart - start;
+
+                    busy += elapsed;
+
+                    if (elapsed > maxBusyNanos)
+                        maxBusyNanos = elapsed;
+
+                    iterations++;
+
+                    relayedBytes = relayed;
+                    busyNanos = busy;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Unexpected I/O error occurs", e);
+            } finally {
+                processingSince = 0;
+
+                if (mbeanName != null) {
+                    try {
+                        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                    } catch (JMException e) {
+                        LOGGER.fine("Failed to unregister management bean of worker " + getName() + ": " + e);
+                    }
+                }
+
+                if (selector != null) {
+                    // keys of sessions handed over to other workers are cancelled
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid())
+                            closeSessions((Session) key.attachment(), CloseReason.SHUTDOWN, this);
+                    }
+
+                    try {
+                        selector.close();
+                    } catch (IOException e) {
+                        LOGGER.warning("Failed to close selector: " + e);
+                    }
+                }
+
+                if (accessRing != null)
+                    accessRing.close();
+
+                if (captureWriter != null)
+                    captureWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Group of workers that serves mappings assigned to it.
+     */
+    private class Group {
+        /** Group name. */
+        final String name;
+
+        /** Transfer buffer size. */
+        final int bufferSize;
+
+        /**
+         * Minimal transfer buffer size. Lowered on start to the smallest transfer buffer
+         * of mappings of the group, before workers are created.
+         */
+        int minBufferSize;
+
+        /** Count of workers created on start. */
+        final int initWorkers;
+
+        /** Minimal count of workers. */
+        final int minWorkers;
+
+        /** Maximal count of workers. */
+        final int maxWorkers;
+
+        /** Active workers. Array is replaced as a whole when workers are added or retired. */
+        volatile Worker[] workers;
+
+        /**
+         * Count of successive utilization checks above (positive) or below (negative) thresholds.
+         * Accessed by balancer only.
+         */
+        int scaleVotes;
+
+        /**
+         * @param name          Group name.
+         * @param workers       Initial count of workers.
+         * @param bufferSize    Transfer buffer size.
+         * @param minBufferSize Minimal transfer buffer size.
+         * @param minWorkers    Minimal count of workers.
+         * @param maxWorkers    Maximal count of workers.
+         */
+        Group(String name, int workers, int bufferSize, int minBufferSize, int minWorkers, int maxWorkers) {
+            this.name = name;
+            this.bufferSize = bufferSize;
+            this.minBufferSize = minBufferSize;
+            this.initWorkers = Math.min(Math.max(workers, minWorkers), maxWorkers);
+            this.minWorkers = minWorkers;
+            this.maxWorkers = maxWorkers;
+            this.workers = new Worker[0];
+        }
+
+        /**
+         * Creates initial workers of the group. Workers are not started.
+         */
+        void createWorkers() {
+            Worker[] workers0 = new Worker[initWorkers];
+
+            for (int i = 0; i < workers0.length; i++)
+                workers0[i] = newWorker();
+
+            this.workers = workers0;
+        }
+
+        /**
+         * Creates new worker of the group. Worker is not started.
          *
-         * @param channel1 First channel.
-         * @param session1 First channel session.
-         * @param channel2 Linked channel.
-         * @param session2 Linked channel session.
+         * @return New worker.
          */
-        void register(SocketChannel channel1, Session session1, SocketChannel channel2, Session session2) {
-            pending.add(new Registration(channel1, session1, channel2, session2));
+        Worker newWorker() {
+            int idx = workerSeq.getAndIncrement();
 
-            // it seems that wakeup() performs quite slowly
-            if (awakened.compareAndSet(false, true))
-                selector.wakeup();
+            int[] cpus = workerCpus == null ? null : new int[]{workerCpus[idx % workerCpus.length]};
+
+            String prefix = WorkerGroup.DEFAULT.equals(name) ?
+                    "Proxy TCP Dispatcher-" :
+                    "Proxy TCP Dispatcher-" + name + '-';
+
+            return new Worker(prefix + idx, this, cpus);
+        }
+
+        /**
+         * @return Randomly chosen worker among active ones.
+         */
+        Worker pickWorker() {
+            Worker[] workers0 = workers;
+
+            return workers0[ThreadLocalRandom.current().nextInt(workers0.length)];
+        }
+    }
+
+    /**
+     * Request to hand over part of worker load to another worker.
+     */
+    private static class Migration {
+        /** Worker to hand sessions over to. */
+        final Worker target;
+
+        /** Fraction of worker traffic to hand over. */
+        final double fraction;
+
+        /** Traffic window the load has been measured in. */
+        final int window;
+
+        Migration(Worker target, double fraction, int window) {
+            this.target = target;
+            this.fraction = fraction;
+            this.window = window;
+        }
+    }
+
+    /**
+     * Mapping attached to its listening channel along with everything needed to handle
+     * accepted connections, so acceptor doesn't look them up for each connection.
+     */
+    private static class Route implements TunnelTarget {
+        /** Port mapping. */
+        final PortMapping mapping;
+
+        /** Worker group that serves the mapping. */
+        final Group group;
+
+        /** Factory that applies options to client connections. */
+        final NetworkChannelFactory<SocketChannel> clientFactory;
+
+        /** Factory that opens connections to remote endpoint. */
+        final NetworkChannelFactory<SocketChannel> upstreamFactory;
+
+        /** Backends of the mapping. */
+        final SocketAddress[] backends;
+
+        /** Consistent hash table of backends or {@code null} if mapping has single backend. */
+        final MaglevTable backendTable;
+
+        /** Factory that opens connections to shadow backend or {@code null} if mapping is not mirrored. */
+        final NetworkChannelFactory<SocketChannel> mirrorFactory;
+
+        /** Tunnel connections to peer proxy or {@code null} if mapping is not connecting side of tunnel. */
+        final Tunneling.Pool tunnelPool;
+
+        Route(PortMapping mapping, Group group, NetworkChannelFactory<SocketChannel> clientFactory,
+              NetworkChannelFactory<SocketChannel> upstreamFactory, MaglevTable backendTable,
+              NetworkChannelFactory<SocketChannel> mirrorFactory, Tunneling.Pool tunnelPool) {
+            this.mapping = mapping;
+            this.group = group;
+            this.clientFactory = clientFactory;
+            this.upstreamFactory = upstreamFactory;
+            this.backends = mapping.remoteAddresses().toArray(new SocketAddress[0]);
+            this.backendTable = backendTable;
+            this.mirrorFactory = mirrorFactory;
+            this.tunnelPool = tunnelPool;
+        }
+
+        /**
+         * Chooses backend of client by consistent hashing of its IP address. Doesn't allocate.
+         *
+         * @param client Client address.
+         * @return Backend address.
+         */
+        SocketAddress backend(SocketAddress client) {
+            if (backendTable == null)
+                return backends[0];
+
+            return backends[backendTable.lookup(MaglevTable.hash(client))];
         }
 
         @Override
-        public void run() {
+        public SocketChannel connect(SocketAddress client) throws IOException {
+            SocketChannel channel = upstreamFactory.newChannel();
+
             try {
-                selector = Selector.open();
+                channel.configureBlocking(false);
+                channel.connect(backend(client));
+            } catch (IOException e) {
+                close(channel);
 
-                initLatch.countDown();
+                throw e;
+            }
+
+            return channel;
+        }
+    }
+
+    /**
+     * Reports workers that handle events of single loop iteration longer than stall timeout,
+     * e.g. due to GC pause, slow system call or lock contention. All sessions of stalled worker
+     * freeze, so its thread stack is logged to find out the cause. Each stall is reported once.
+     */
+    private class Watchdog extends Thread {
+        /** Stall timeout, ms. */
+        private final long timeout;
+
+        /**
+         * @param timeout Stall timeout, ms.
+         */
+        Watchdog(long timeout) {
+            super("Proxy Watchdog");
+
+            setDaemon(true);
 
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void run() {
+            try {
                 while (!isInterrupted()) {
-                    awakened.set(false);
+                    // check often enough to report stall soon after timeout
+                    Thread.sleep(Math.max(1, timeout / 4));
+
+                    for (Worker worker : workers())
+                        check(worker);
+                }
+            } catch (InterruptedException e) {
+                // just exit
+            }
+        }
 
-                    selector.select();
+        /**
+         * Reports worker if it's stalled.
+         *
+         * @param worker Worker to check.
+         */
+        private void check(Worker worker) {
+            long since = worker.processingSince;
 
-                    if (isInterrupted())
-                        break;
+            if (since == 0 || since == worker.stallReported || System.nanoTime() - since <= stallTimeout)
+                return;
 
-                    for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
-                        final SelectionKey key = iter.next();
+            worker.stallReported = since;
+            worker.stalls++;
 
-                        iter.remove();
+            StringBuilder msg = new StringBuilder("Worker ").append(worker.getName())
+                    .append(" has not advanced its event loop for more than ").append(timeout).append(" ms");
 
-                        try {
-                            if (key.isValid() && key.isConnectable()) {
-                                onConnect(key);
-                            }
+            for (StackTraceElement element : worker.getStackTrace())
+                msg.append(System.lineSeparator()).append("\tat ").append(element);
+
+            LOGGER.warning(msg.toString());
+        }
+    }
+
+    /**
+     * Balances load of workers within each group. Periodically compares relay rates of workers and asks the most
+     * loaded worker to hand over hot session pair to the least loaded one, when their rates differ
+     * significantly. Each worker moves sessions itself, so balancer never touches sessions directly.
+     * <p/>
+     * Also adapts count of workers to the load: if average share of time workers spend on handling
+     * events (not waiting in select) stays above threshold, new worker is started; if it stays below
+     * another threshold, the least loaded worker is retired and hands over its sessions to others.
+     */
+    private class Balancer extends Thread {
+        /** Interval between load checks, ms (0 if rebalancing is disabled). */
+        private final long rebalanceInterval;
+
+        /** Ratio between the most and the least loaded workers that triggers rebalancing. */
+        private final double ratio;
+
+        /** Interval between utilization checks, ms (0 if scaling is disabled). */
+        private final long scaleInterval;
 
-                            if (key.isValid() && key.isReadable()) {
-                                onRead(key);
-                            }
+        /** Utilization above which new worker is started. */
+        private final double scaleUpThreshold;
 
-                            if (key.isValid() && key.isWritable()) {
-                                onWrite(key);
-                            }
-                        } catch (IOException e) {
-                            LOGGER.warning("Failed to handle I/O event: " + e);
+        /** Utilization below which one of workers is retired. */
+        private final double scaleDownThreshold;
 
-                            Session session = (Session) key.attachment();
+        /**
+         * @param rebalanceInterval  Interval between load checks, ms (0 to disable rebalancing).
+         * @param ratio              Ratio between the most and the least loaded workers that triggers rebalancing.
+         * @param scaleInterval      Interval between utilization checks, ms (0 to disable scaling).
+         * @param scaleUpThreshold   Utilization above which new worker is started.
+         * @param scaleDownThreshold Utilization below which one of workers is retired.
+         */
+        Balancer(long rebalanceInterval, double ratio,
+                 long scaleInterval, double scaleUpThreshold, double scaleDownThreshold) {
+            super("Proxy Balancer");
+
+            setDaemon(true);
+
+            this.rebalanceInterval = rebalanceInterval;
+            this.ratio = ratio;
+            this.scaleInterval = scaleInterval;
+            this.scaleUpThreshold = scaleUpThreshold;
+            this.scaleDownThreshold = scaleDownThreshold;
+        }
+
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+
+            long nextRebalance = rebalanceInterval > 0 ? now + rebalanceInterval : Long.MAX_VALUE;
+            long nextScale = scaleInterval > 0 ? now + scaleInterval : Long.MAX_VALUE;
+
+            try {
+                while (!isInterrupted()) {
+                    Thread.sleep(Math.max(1, Math.min(nextRebalance, nextScale) - System.currentTimeMillis()));
+
+                    now = System.currentTimeMillis();
+
+                    if (now >= nextRebalance) {
+                        for (Group group : groups.values())
+                            rebalance(group);
+
+                        nextRebalance = now + rebalanceInterval;
+                    }
 
-                            close(session.channel);
-                            close(session.linked.channel);
+                    if (now >= nextScale) {
+                        for (Group group : groups.values()) {
+                            if (group.maxWorkers > group.minWorkers)
+                                scale(group);
                         }
+
+                        nextScale = now + scaleInterval;
                     }
+                }
+            } catch (InterruptedException e) {
+                // just exit
+            }
+        }
 
-                    Registration registration;
+        /**
+         * Asks the most loaded worker of the group to hand over part of its load to the least loaded one.
+         *
+         * @param group Worker group.
+         */
+        private void rebalance(Group group) {
+            Worker[] workers0 = group.workers;
 
-                    while ((registration = pending.poll()) != null) {
-                        SocketChannel channel1 = registration.channel1;
+            Worker max = null;
+            Worker min = null;
 
-                        channel1.register(
-                                selector,
-                                channel1.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,
-                                registration.session1
-                        );
+            long maxRate = 0;
+            long minRate = Long.MAX_VALUE;
 
-                        SocketChannel channel2 = registration.channel2;
+            for (Worker worker : workers0) {
+                long bytes = worker.relayedBytes;
 
-                        channel2.register(
-                                selector,
-                                channel2.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,
-                                registration.session2
-                        );
-                    }
+                long rate = (bytes - worker.lastRelayed) * 1000 / rebalanceInterval;
+
+                worker.lastRelayed = bytes;
+
+                worker.loadChecks++;
+
+                if (max == null || rate > maxRate) {
+                    max = worker;
+                    maxRate = rate;
                 }
-            } catch (IOException e) {
-                LOGGER.log(Level.SEVERE, "Unexpected I/O error occurs", e);
-            } finally {
-                if (selector != null) {
-                    for (SelectionKey key : selector.keys())
-                        close(key.channel());
 
-                    try {
-                        selector.close();
-                    } catch (IOException e) {
-                        LOGGER.warning("Failed to close selector: " + e);
-                    }
+                if (min == null || rate < minRate) {
+                    min = worker;
+                    minRate = rate;
+                }
+            }
+
+            if (max == min || maxRate - minRate < MIN_REBALANCE_RATE || maxRate < minRate * ratio)
+                return;
+
+            max.migrate(min, (maxRate - minRate) / 2.0 / maxRate);
+        }
+
+        /**
+         * Checks utilization of workers of the group and starts or retires worker if it has been
+         * out of bounds long enough.
+         *
+         * @param group Worker group.
+         */
+        private void scale(Group group) {
+            Worker[] workers0 = group.workers;
+
+            double total = 0;
+
+            Worker idlest = null;
+            double idlestUtil = Double.MAX_VALUE;
+
+            for (Worker worker : workers0) {
+                long busy = worker.busyNanos;
+
+                double util = (busy - worker.lastBusy) / (scaleInterval * 1e6);
+
+                worker.lastBusy = busy;
+
+                total += util;
+
+                if (util < idlestUtil) {
+                    idlest = worker;
+                    idlestUtil = util;
+                }
+            }
+
+            double util = total / workers0.length;
+
+            if (util > scaleUpThreshold && workers0.length < group.maxWorkers)
+                group.scaleVotes = Math.max(group.scaleVotes, 0) + 1;
+            else if (util < scaleDownThreshold && workers0.length > group.minWorkers)
+                group.scaleVotes = Math.min(group.scaleVotes, 0) - 1;
+            else
+                group.scaleVotes = 0;
+
+            if (group.scaleVotes == SCALE_CHECKS) {
+                Worker worker = group.newWorker();
+
+                worker.start();
+
+                try {
+                    worker.initLatch.await();
+                } catch (InterruptedException e) {
+                    worker.interrupt();
+
+                    Thread.currentThread().interrupt();
+
+                    return;
+                }
+
+                Worker[] workers1 = Arrays.copyOf(workers0, workers0.length + 1);
+
+                workers1[workers0.length] = worker;
+
+                group.workers = workers1;
+
+                group.scaleVotes = 0;
+
+                LOGGER.info(String.format("Worker %s has been started (utilization %.2f, workers %d)",
+                        worker.getName(), util, workers1.length));
+            } else if (group.scaleVotes == -SCALE_CHECKS) {
+                Worker[] workers1 = new Worker[workers0.length - 1];
+
+                int i = 0;
+
+                for (Worker worker : workers0) {
+                    if (worker != idlest)
+                        workers1[i++] = worker;
                 }
+
+                group.workers = workers1;
+
+                idlest.retire();
+
+                group.scaleVotes = 0;
+
+                LOGGER.info(String.format("Worker %s is retiring (utilization %.2f, workers %d)",
+                        idlest.getName(), util, workers1.length));
             }
         }
     }
@@ -487,20 +2823,99 @@ public class ProxyServer {
      * concurrent queue and further handling in single thread.
      */
     private static class Session {
+        /** Count of successive small reads after which read buffer shrinks. */
+        private static final int SHRINK_READS = 8;
+
+        /** Marker of interest set saved on handover. */
+        private static final int HANDOVER = 1 << 31;
+
         /** Channel this session belongs to. */
         private final SocketChannel channel;
 
+        /** Port mapping of the connection. */
+        private final PortMapping mapping;
+
+        /** Whether channel is connected to remote endpoint rather than to client. */
+        private final boolean upstream;
+
+        /** Key of the channel. Set once channel has been registered by worker. */
+        private SelectionKey key;
+
         /** Pending buffer awaiting write to related channel. */
         private ByteBuffer pending;
 
         /** Linked session (another part of proxy pipeline). */
         private Session linked;
 
+        /** Size class of buffers for reading from the channel. */
+        private byte sizeClass;
+
+        /** Mirror of client stream or {@code null}. Set for client session only. */
+        private Mirroring.Mirror mirror;
+
+        /** TLS layer of the channel or {@code null} if channel is not encrypted. */
+        private TlsConnection tls;
+
+        /** Backend chosen for the connection. Set for upstream session only. */
+        private SocketAddress backend;
+
+        /** Identifier of the connection in captured traffic. Set if capture is enabled. */
+        private long captureId;
+
+        /** Segment file the connection has been described in last. Set on client session only. */
+        private long captureSegment;
+
+        /** Count of bytes captured from the channel, i.e. offset of the next captured chunk. */
+        private long captureOffset;
+
+        /** The largest size class allowed by the mapping or -1 until the session is registered first time. */
+        private byte maxSizeClass = -1;
+
+        /** Count of successive reads that would fit into smaller buffer. */
+        private byte smallReads;
+
+        /**
+         * Interest set to restore when session is registered with another worker.
+         * Marked with {@link #HANDOVER} bit, since interest set may be empty.
+         */
+        private int handoverOps;
+
+        /** Count of bytes read from the channel in traffic window {@link #window}. */
+        private long windowBytes;
+
+        /** Count of bytes read from the channel in the window preceding {@link #window}. */
+        private long prevWindowBytes;
+
+        /** Traffic window of the worker read bytes have been counted in last. */
+        private int window;
+
+        /** Count of bytes session may read in current scheduling round, negative if overspent. */
+        private int deficit;
+
+        /** Whether session is queued to read in the next scheduling round. */
+        private boolean scheduled;
+
+        /** Next session in scheduling queue of the worker. */
+        private Session nextReady;
+
+        /** Count of bytes read from the channel. */
+        private long readBytes;
+
+        /** Time connection was accepted at, ns. Set on client session if event listener is set. */
+        private long openedAt;
+
+        /** Time pending data has blocked reading of linked channel at, ns. Set if event listener is set. */
+        private long stalledAt;
+
         /**
-         * @param channel Channel this session belongs to.
+         * @param channel  Channel this session belongs to.
+         * @param mapping  Port mapping of the connection.
+         * @param upstream Whether channel is connected to remote endpoint rather than to client.
          */
-        private Session(SocketChannel channel) {
+        private Session(SocketChannel channel, PortMapping mapping, boolean upstream) {
             this.channel = channel;
+            this.mapping = mapping;
+            this.upstream = upstream;
         }
 
         /**
@@ -512,6 +2927,89 @@ public class ProxyServer {
             linked = session;
             session.linked = this;
         }
+
+        /**
+         * Registers session channel with given selector. Connected channel is registered
+         * for reading, otherwise for connection establishment. Session handed over by
+         * another worker restores its previous interest set.
+         *
+         * @param selector Selector to register with.
+         * @throws ClosedChannelException If channel is closed.
+         */
+        void register(Selector selector) throws ClosedChannelException {
+            int ops;
+
+            if (handoverOps != 0)
+                ops = handoverOps & ~HANDOVER;
+            else
+                ops = channel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+
+            key = channel.register(selector, ops, this);
+
+            handoverOps = 0;
+        }
+
+        /**
+         * Cancels session key keeping its interest set, so the session could be registered
+         * with selector of another worker. Pending data stays with the session.
+         */
+        void deregister() {
+            handoverOps = key.interestOps() | HANDOVER;
+
+            key.cancel();
+        }
+
+        /**
+         * Counts bytes read in current traffic window of the worker. Previous window is kept,
+         * so it's still known after load check has closed it.
+         *
+         * @param read    Count of bytes read.
+         * @param current Current traffic window of the worker.
+         */
+        void countWindow(int read, int current) {
+            if (window != current) {
+                prevWindowBytes = window == current - 1 ? windowBytes : 0;
+                windowBytes = 0;
+                window = current;
+            }
+
+            windowBytes += read;
+        }
+
+        /**
+         * @param window0 Traffic window of the worker.
+         * @return Count of bytes read from the channel in given window, if it's known.
+         */
+        long windowBytes(int window0) {
+            if (window == window0)
+                return windowBytes;
+
+            return window == window0 + 1 ? prevWindowBytes : 0;
+        }
+
+        /**
+         * Adapts size class of read buffers to observed traffic. Class grows at once
+         * when read fills the whole buffer and shrinks after several successive reads
+         * that would fit into buffer of quarter size. Class never grows over the limit of the mapping.
+         *
+         * @param read     Count of bytes read.
+         * @param capacity Capacity of buffer used for read.
+         */
+        void adjustSizeClass(int read, int capacity) {
+            if (read == capacity) {
+                smallReads = 0;
+
+                if (sizeClass < maxSizeClass)
+                    sizeClass++;
+            } else if (read <= capacity >> 2 && sizeClass > 0) {
+                if (++smallReads == SHRINK_READS) {
+                    smallReads = 0;
+                    sizeClass--;
+                }
+            } else {
+                smallReads = 0;
+            }
+        }
     }
 
     /**
@@ -572,8 +3070,13 @@ public class ProxyServer {
             System.exit(1);
         }
 
+        SelectorProvider provider = SelectorProviders.forName(
+                System.getProperty("tcproxy.transport", SelectorProviders.DEFAULT));
+
+        logger.info("Using transport " + provider.getClass().getName());
+
         NetworkChannelFactory.Builder<ServerSocketChannelFactory> serverFactoryBuilder =
-                ServerSocketChannelFactory.create();
+                ServerSocketChannelFactory.create().provider(provider);
 
         String reuseAddr = System.getProperty("tcproxy.accept.reuseAddress");
 
@@ -581,30 +3084,150 @@ public class ProxyServer {
             serverFactoryBuilder.option(StandardSocketOptions.SO_REUSEADDR, "true".equals(reuseAddr));
 
         NetworkChannelFactory.Builder<SocketChannelFactory> socketFactoryBuilder =
-                SocketChannelFactory.create();
+                SocketChannelFactory.create().provider(provider);
+
+        try {
+            String sendBufSize = System.getProperty("tcproxy.conn.sendBuf");
 
-        String sendBufSize = System.getProperty("tcproxy.conn.sendBuf");
+            if (sendBufSize != null)
+                socketFactoryBuilder.option(StandardSocketOptions.SO_SNDBUF, Integer.valueOf(sendBufSize));
 
-        if (sendBufSize != null)
-            socketFactoryBuilder.option(StandardSocketOptions.SO_SNDBUF, Integer.valueOf(sendBufSize));
+            String rcvBufSize = System.getProperty("tcproxy.conn.receiveBuf");
 
-        String rcvBufSize = System.getProperty("tcproxy.conn.receiveBuf");
+            if (rcvBufSize != null)
+                socketFactoryBuilder.option(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(rcvBufSize));
+        } catch (NumberFormatException e) {
+            logger.log(Level.SEVERE, "Configuration error", e);
 
-        if (rcvBufSize != null)
-            socketFactoryBuilder.option(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(rcvBufSize));
+            System.exit(1);
+        }
 
         socketFactoryBuilder
                 .option(StandardSocketOptions.TCP_NODELAY, Boolean.getBoolean("tcproxy.conn.noDelay"))
                 .option(StandardSocketOptions.SO_KEEPALIVE, Boolean.getBoolean("tcproxy.conn.keepAlive"));
 
-        final ProxyServer server = new ProxyServer(
-                serverFactoryBuilder.build(),
-                socketFactoryBuilder.build(),
-                Integer.getInteger("tcproxy.accept.backlog", DEFAULT_BACKLOG),
-                Integer.getInteger("tcproxy.conn.transferBuf", DEFAULT_BUFFER_SIZE),
-                Integer.getInteger("tcproxy.workers", DEFAULT_WORKERS_COUNT),
-                Boolean.getBoolean("tcproxy.accept.blocking")
-        );
+        int[] workerCpus = null;
+        int[] acceptorCpus = null;
+
+        try {
+            String workerCpus0 = System.getProperty("tcproxy.workers.cpus");
+
+            if (workerCpus0 != null)
+                workerCpus = ThreadAffinity.parse(workerCpus0);
+
+            String acceptorCpus0 = System.getProperty("tcproxy.accept.cpus");
+
+            if (acceptorCpus0 != null)
+                acceptorCpus = ThreadAffinity.parse(acceptorCpus0);
+        } catch (IllegalArgumentException e) {
+            logger.log(Level.SEVERE, "Configuration error", e);
+
+            System.exit(1);
+        }
+
+        ProxyEventListener listener = null;
+
+        String listenerCls = System.getProperty("tcproxy.events.listener");
+
+        if (listenerCls != null) {
+            try {
+                listener = Class.forName(listenerCls).asSubclass(ProxyEventListener.class)
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                logger.log(Level.SEVERE, "Failed to create event listener " + listenerCls, e);
+
+                System.exit(1);
+            }
+        }
+
+        AccessLog accessLog = null;
+
+        String accessLogFile = System.getProperty("tcproxy.accessLog.file");
+
+        if (accessLogFile != null) {
+            try {
+                accessLog = new AccessLog(accessLogFile,
+                        Long.getLong("tcproxy.accessLog.fileSize", AccessLog.DEFAULT_FILE_SIZE),
+                        Integer.getInteger("tcproxy.accessLog.files", AccessLog.DEFAULT_FILES),
+                        Integer.getInteger("tcproxy.accessLog.ringSize", AccessLog.DEFAULT_RING_SIZE));
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.SEVERE, "Configuration error", e);
+
+                System.exit(1);
+            }
+        }
+
+        Capture capture = null;
+
+        String captureDir = System.getProperty("tcproxy.capture.dir");
+
+        if (captureDir != null) {
+            List<String> captured = new ArrayList<>();
+
+            for (String title : System.getProperty("tcproxy.capture.mappings", "").split(",")) {
+                if (!title.trim().isEmpty())
+                    captured.add(title.trim());
+            }
+
+            try {
+                capture = new Capture(captureDir,
+                        Long.getLong("tcproxy.capture.segmentSize", Capture.DEFAULT_SEGMENT_SIZE),
+                        Integer.getInteger("tcproxy.capture.segments", Capture.DEFAULT_SEGMENTS),
+                        captured);
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.SEVERE, "Configuration error", e);
+
+                System.exit(1);
+            }
+        }
+
+        ProxyServer server0 = null;
+
+        try {
+            Builder builder = create()
+                    .serverSocketFactory(serverFactoryBuilder.build())
+                    .socketFactory(socketFactoryBuilder.build())
+                    .backlog(Integer.getInteger("tcproxy.accept.backlog", DEFAULT_BACKLOG))
+                    .bufferSize(Integer.getInteger("tcproxy.conn.transferBuf", DEFAULT_BUFFER_SIZE))
+                    .minBufferSize(Integer.getInteger("tcproxy.conn.minTransferBuf", 0))
+                    .workers(Integer.getInteger("tcproxy.workers", DEFAULT_WORKERS_COUNT))
+                    .blockingAcceptor(Boolean.getBoolean("tcproxy.accept.blocking"))
+                    .readBatch(Integer.getInteger("tcproxy.conn.readBatch", DEFAULT_READ_BATCH))
+                    .quantum(Integer.getInteger("tcproxy.conn.quantum", DEFAULT_QUANTUM))
+                    .stallTimeout(Long.getLong("tcproxy.workers.stallTimeout", DEFAULT_STALL_TIMEOUT))
+                    .listener(listener)
+                    .accessLog(accessLog)
+                    .capture(capture)
+                    .udp(Integer.getInteger("tcproxy.udp.forwarders", DEFAULT_UDP_FORWARDERS),
+                            Long.getLong("tcproxy.udp.idleTimeout", DEFAULT_UDP_IDLE_TIMEOUT),
+                            Integer.getInteger("tcproxy.udp.maxSessions", DEFAULT_UDP_MAX_SESSIONS))
+                    .mirrorQueue(Long.getLong("tcproxy.mirror.queue", DEFAULT_MIRROR_QUEUE))
+                    .tunnelThreads(Integer.getInteger("tcproxy.tunnel.threads", DEFAULT_TUNNEL_THREADS))
+                    .workerCpus(workerCpus)
+                    .acceptorCpus(acceptorCpus)
+                    .rebalance(Long.getLong("tcproxy.rebalance.interval", 0),
+                            Double.parseDouble(System.getProperty("tcproxy.rebalance.ratio",
+                                    String.valueOf(DEFAULT_REBALANCE_RATIO))))
+                    .scaling(Integer.getInteger("tcproxy.workers.min", 0),
+                            Integer.getInteger("tcproxy.workers.max", 0),
+                            Long.getLong("tcproxy.workers.scaleInterval", DEFAULT_SCALE_INTERVAL),
+                            Double.parseDouble(System.getProperty("tcproxy.workers.scaleUp",
+                                    String.valueOf(DEFAULT_SCALE_UP_THRESHOLD))),
+                            Double.parseDouble(System.getProperty("tcproxy.workers.scaleDown",
+                                    String.valueOf(DEFAULT_SCALE_DOWN_THRESHOLD))));
+
+            for (WorkerGroup group : config.groups())
+                builder.group(group);
+
+            server0 = builder.build();
+        } catch (IllegalArgumentException e) {
+            // malformed number is reported as well
+            logger.log(Level.SEVERE, "Configuration error", e);
+
+            System.exit(1);
+        }
+
+        final ProxyServer server = server0;
 
         logger.info("Starting TCP proxy server...");
 
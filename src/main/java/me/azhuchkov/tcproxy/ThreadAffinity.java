@@ -0,0 +1,128 @@
+package me.azhuchkov.tcproxy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Binds threads to CPUs. Linux only: thread is pinned with {@code taskset(1)} that calls
+ * {@code sched_setaffinity(2)} for native thread id resolved via {@code /proc/thread-self}.
+ * On other platforms or if pinning fails warning is logged and thread keeps running unpinned.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class ThreadAffinity {
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(ThreadAffinity.class.getName());
+
+    /** Link to the task directory of calling thread. */
+    private static final Path THREAD_SELF = Paths.get("/proc/thread-self");
+
+    /**
+     * Utility class.
+     */
+    private ThreadAffinity() {
+    }
+
+    /**
+     * Parses CPU list in {@code taskset(1)} format, e.g. {@code 0-3,8,10-11}.
+     *
+     * @param cpuList CPU list.
+     * @return Array of CPU numbers in the order they are listed.
+     * @throws IllegalArgumentException If list is malformed or empty.
+     */
+    public static int[] parse(String cpuList) {
+        int[] cpus = new int[16];
+        int count = 0;
+
+        for (String part : cpuList.split(",")) {
+            part = part.trim();
+
+            if (part.isEmpty())
+                continue;
+
+            int dash = part.indexOf('-');
+
+            int from;
+            int to;
+
+            try {
+                from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash).trim());
+                to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid CPU list: " + cpuList, e);
+            }
+
+            if (from < 0 || to < from)
+                throw new IllegalArgumentException("Invalid CPU range: " + part);
+
+            for (int cpu = from; cpu <= to; cpu++) {
+                if (count == cpus.length)
+                    cpus = Arrays.copyOf(cpus, count << 1);
+
+                cpus[count++] = cpu;
+            }
+        }
+
+        if (count == 0)
+            throw new IllegalArgumentException("Empty CPU list: " + cpuList);
+
+        return Arrays.copyOf(cpus, count);
+    }
+
+    /**
+     * Pins calling thread to given CPUs.
+     *
+     * @param cpus CPU numbers.
+     * @return {@code true} if thread has been pinned.
+     */
+    public static boolean pin(int... cpus) {
+        StringBuilder cpuList = new StringBuilder();
+
+        for (int cpu : cpus) {
+            if (cpuList.length() > 0)
+                cpuList.append(',');
+
+            cpuList.append(cpu);
+        }
+
+        String thread = Thread.currentThread().getName();
+
+        try {
+            // link target looks like <pid>/task/<tid>
+            Path task = Files.readSymbolicLink(THREAD_SELF);
+
+            String tid = task.getFileName().toString();
+
+            Process process = new ProcessBuilder("taskset", "-p", "-c", cpuList.toString(), tid)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(Paths.get("/dev/null").toFile()))
+                    .start();
+
+            int code = process.waitFor();
+
+            if (code != 0) {
+                LOGGER.warning("Failed to pin thread '" + thread + "' to CPUs " + cpuList +
+                        ": taskset exited with code " + code);
+
+                return false;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warning("Failed to pin thread '" + thread + "' to CPUs " + cpuList + ": " + e);
+
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+
+        LOGGER.info("Thread '" + thread + "' pinned to CPUs " + cpuList);
+
+        return true;
+    }
+}
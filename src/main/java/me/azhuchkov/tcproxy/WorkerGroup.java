@@ -0,0 +1,97 @@
+package me.azhuchkov.tcproxy;
+
+/**
+ * Named group of workers. Sessions of mappings assigned to the group are served by its workers only,
+ * so latency-sensitive mappings can be isolated from bulk ones.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class WorkerGroup {
+    /** Name of the group that serves mappings without explicit group. */
+    public static final String DEFAULT = "default";
+
+    /**
+     * Group name.
+     */
+    private final String name;
+
+    /**
+     * Count of workers.
+     */
+    private final int workers;
+
+    /**
+     * Transfer buffer size or 0 if server default should be used.
+     */
+    private final int bufferSize;
+
+    /**
+     * Minimal transfer buffer size or 0 if server default should be used.
+     */
+    private final int minBufferSize;
+
+    /**
+     * Creates new worker group.
+     *
+     * @param name          Group name.
+     * @param workers       Count of workers.
+     * @param bufferSize    Transfer buffer size or 0 if server default should be used.
+     * @param minBufferSize Minimal transfer buffer size or 0 if server default should be used.
+     * @throws java.lang.NullPointerException     if name is {@code null}.
+     * @throws java.lang.IllegalArgumentException if count of workers or buffer sizes are invalid.
+     */
+    public WorkerGroup(String name, int workers, int bufferSize, int minBufferSize) {
+        if (name == null)
+            throw new NullPointerException();
+
+        if (workers <= 0)
+            throw new IllegalArgumentException("invalid workers count: " + workers);
+
+        if (bufferSize < 0 || minBufferSize < 0 || (bufferSize > 0 && minBufferSize > bufferSize))
+            throw new IllegalArgumentException("invalid buffer sizes: " + minBufferSize + ".." + bufferSize);
+
+        this.name = name;
+        this.workers = workers;
+        this.bufferSize = bufferSize;
+        this.minBufferSize = minBufferSize;
+    }
+
+    /**
+     * @return Group name.
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return Count of workers.
+     */
+    public int workers() {
+        return workers;
+    }
+
+    /**
+     * @return Transfer buffer size or 0 if server default should be used.
+     */
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return Minimal transfer buffer size or 0 if server default should be used.
+     */
+    public int minBufferSize() {
+        return minBufferSize;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkerGroup{" +
+                "name='" + name + '\'' +
+                ", workers=" + workers +
+                ", bufferSize=" + bufferSize +
+                ", minBufferSize=" + minBufferSize +
+                '}';
+    }
+}
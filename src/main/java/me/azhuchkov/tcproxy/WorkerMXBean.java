@@ -0,0 +1,67 @@
+package me.azhuchkov.tcproxy;
+
+/**
+ * Management interface of proxy worker. Each worker is registered in platform MBean server
+ * under name {@code me.azhuchkov.tcproxy:type=Worker,name=<thread name>} while it runs.
+ * <p/>
+ * Counters are cumulative since worker start and are updated once per event loop iteration.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public interface WorkerMXBean {
+    /**
+     * @return Name of worker group.
+     */
+    String getGroup();
+
+    /**
+     * @return Count of event loop iterations.
+     */
+    long getIterations();
+
+    /**
+     * @return Count of selected keys handled.
+     */
+    long getSelectedKeys();
+
+    /**
+     * @return Average count of selected keys per loop iteration.
+     */
+    double getKeysPerIteration();
+
+    /**
+     * @return Time spent waiting in select, ns.
+     */
+    long getSelectNanos();
+
+    /**
+     * @return Time spent on handling events, ns.
+     */
+    long getProcessNanos();
+
+    /**
+     * @return The longest time spent on handling events of single loop iteration, ns.
+     */
+    long getMaxProcessNanos();
+
+    /**
+     * @return Count of bytes relayed.
+     */
+    long getRelayedBytes();
+
+    /**
+     * @return Count of stalls reported by watchdog.
+     */
+    long getStalls();
+
+    /**
+     * @return Count of access records dropped since access log ring of the worker was full.
+     */
+    long getAccessLogDrops();
+
+    /**
+     * @return {@code true} if current loop iteration takes longer than stall timeout.
+     */
+    boolean isStalled();
+}
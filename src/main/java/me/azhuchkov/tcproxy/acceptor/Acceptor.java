@@ -1,21 +1,23 @@
 package me.azhuchkov.tcproxy.acceptor;
 
 import java.nio.channels.ServerSocketChannel;
-import java.util.Collection;
+import java.util.Map;
 
 /**
  * Accepts incoming connections form given server sockets.
  *
+ * @param <A> Type of objects listening channels are attached to.
  * @author Andrey Zhuchkov
  *         Date: 18.08.14
  */
-public interface Acceptor {
+public interface Acceptor<A> {
     /**
      * Starts the acceptor.
      *
-     * @param channels Channels to listen for incoming connection.
+     * @param channels Channels to listen for incoming connection along with objects they are attached to.
+     *                 Attachment is passed to connection handler with each connection accepted from the channel.
      */
-    void start(Collection<ServerSocketChannel> channels);
+    void start(Map<ServerSocketChannel, A> channels);
 
     /**
      * Sends stop signal to acceptor.
@@ -1,10 +1,14 @@
 package me.azhuchkov.tcproxy.acceptor;
 
+import me.azhuchkov.tcproxy.ThreadAffinity;
+
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,53 +16,65 @@ import java.util.logging.Logger;
  * Acceptor that listens for incoming connection using blocking I/O.
  * Each socket handled by separate thread.
  *
+ * @param <A> Type of objects listening channels are attached to.
  * @author Andrey Zhuchkov
  *         Date: 11.08.14
  */
-public class BlockingAcceptor implements Acceptor {
+public class BlockingAcceptor<A> implements Acceptor<A> {
     /** Logger. */
     private final static Logger LOGGER = Logger.getLogger(BlockingAcceptor.class.getName());
 
     /** Handler to pass new connection to. */
-    private final ConnectionHandler handler;
+    private final ConnectionHandler<A> handler;
 
     /** Prefix for acceptor threads. */
     private final String prefix;
 
-    /** Array of acceptor threads. */
-    private volatile Acceptor[] acceptors;
+    /** CPUs to pin acceptor threads to or {@code null}. */
+    private final int[] cpus;
+
+    /** Acceptor threads. */
+    private volatile List<Acceptor> acceptors;
+
+    /**
+     * Creates new acceptor.
+     *
+     * @param prefix  Prefix for acceptor threads.
+     * @param handler Handler to pass new connections to.
+     */
+    public BlockingAcceptor(String prefix, ConnectionHandler<A> handler) {
+        this(prefix, handler, null);
+    }
 
     /**
      * Creates new acceptor.
      *
      * @param prefix  Prefix for acceptor threads.
      * @param handler Handler to pass new connections to.
+     * @param cpus    CPUs to pin acceptor threads to or {@code null} if threads should not be pinned.
      */
-    public BlockingAcceptor(String prefix, ConnectionHandler handler) {
+    public BlockingAcceptor(String prefix, ConnectionHandler<A> handler, int[] cpus) {
         this.handler = handler;
         this.prefix = prefix;
+        this.cpus = cpus;
     }
 
     /** {@inheritDoc} */
     @Override
-    public void start(Collection<ServerSocketChannel> channels) {
+    public void start(Map<ServerSocketChannel, A> channels) {
         if (acceptors != null)
             throw new IllegalStateException("already started");
 
-        Acceptor[] acceptors0;
+        List<Acceptor> acceptors0;
 
         synchronized (this) {
             if (acceptors != null)
                 throw new IllegalStateException("already started");
 
-            int i = 0;
+            acceptors0 = new ArrayList<>(channels.size());
 
-            acceptors0 = new Acceptor[channels.size()];
-
-            for (ServerSocketChannel channel : channels) {
-                acceptors0[i] = new Acceptor(prefix + i, channel);
-                i++;
-            }
+            for (Map.Entry<ServerSocketChannel, A> entry : channels.entrySet())
+                acceptors0.add(new Acceptor(prefix + acceptors0.size(), entry.getKey(), entry.getValue()));
 
             acceptors = acceptors0;
         }
@@ -70,7 +86,7 @@ public class BlockingAcceptor implements Acceptor {
     /** {@inheritDoc} */
     @Override
     public void interrupt() {
-        final Acceptor[] acceptors0 = acceptors;
+        final List<Acceptor> acceptors0 = acceptors;
 
         if (acceptors0 == null)
             throw new IllegalStateException("not started");
@@ -82,7 +98,7 @@ public class BlockingAcceptor implements Acceptor {
     /** {@inheritDoc} */
     @Override
     public void join() throws InterruptedException {
-        final Acceptor[] acceptors0 = acceptors;
+        final List<Acceptor> acceptors0 = acceptors;
 
         if (acceptors0 == null)
             throw new IllegalStateException("not started");
@@ -98,24 +114,32 @@ public class BlockingAcceptor implements Acceptor {
         /** Channel to listen connections. */
         private final ServerSocketChannel channel;
 
+        /** Attachment of the channel. */
+        private final A attachment;
+
         /**
-         * @param name    Thread name.
-         * @param channel Channel to listen connections.
+         * @param name       Thread name.
+         * @param channel    Channel to listen connections.
+         * @param attachment Attachment of the channel.
          */
-        public Acceptor(String name, ServerSocketChannel channel) {
+        public Acceptor(String name, ServerSocketChannel channel, A attachment) {
             super(name);
 
             this.channel = channel;
+            this.attachment = attachment;
         }
 
         @Override
         public void run() {
+            if (cpus != null)
+                ThreadAffinity.pin(cpus);
+
             try {
                 while (!isInterrupted()) {
                     SocketChannel accepted = channel.accept();
 
                     try {
-                        handler.handle(channel, accepted);
+                        handler.handle(attachment, accepted);
                     } catch (Exception e) {
                         LOGGER.severe("Failed to handle new connection: " + e);
 
@@ -1,20 +1,20 @@
 package me.azhuchkov.tcproxy.acceptor;
 
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
 /**
  * Connection handler that acceptors use to pass new connections.
  *
+ * @param <A> Type of objects listening channels are attached to.
  * @author Andrey Zhuchkov
  *         Date: 18.08.14
  */
-public interface ConnectionHandler {
+public interface ConnectionHandler<A> {
     /**
      * Handles new connection.
      *
-     * @param originateChannel Channel that new connection accepted from.
-     * @param acceptedChannel  Accepted connection channel.
+     * @param attachment      Object that listening channel the connection accepted from is attached to.
+     * @param acceptedChannel Accepted connection channel.
      */
-    void handle(ServerSocketChannel originateChannel, SocketChannel acceptedChannel);
+    void handle(A attachment, SocketChannel acceptedChannel);
 }
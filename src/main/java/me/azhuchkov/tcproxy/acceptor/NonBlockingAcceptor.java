@@ -1,30 +1,43 @@
 package me.azhuchkov.tcproxy.acceptor;
 
+import me.azhuchkov.tcproxy.ThreadAffinity;
+import me.azhuchkov.tcproxy.channel.SelectedKeySet;
+
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Collection;
+import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Acceptor that listens for incoming connection using non-blocking I/O.
+ * Attachment of listening channel is kept in its selection key, so it's
+ * passed to handler without any lookup.
  *
+ * @param <A> Type of objects listening channels are attached to.
  * @author Andrey Zhuchkov
  *         Date: 11.08.14
  */
-public class NonBlockingAcceptor extends Thread implements Acceptor {
+public class NonBlockingAcceptor<A> extends Thread implements Acceptor<A> {
     /** Logger. */
     private final static Logger LOGGER = Logger.getLogger(NonBlockingAcceptor.class.getName());
 
     /** Handler to pass new connection to. */
-    private final ConnectionHandler handler;
+    private final ConnectionHandler<A> handler;
+
+    /** Provider of acceptor selector. */
+    private final SelectorProvider provider;
+
+    /** CPUs to pin acceptor thread to or {@code null}. */
+    private final int[] cpus;
 
-    /** Channels that acceptor should listen for new connections. */
-    private volatile Collection<ServerSocketChannel> channels;
+    /** Channels that acceptor should listen for new connections along with their attachments. */
+    private volatile Map<ServerSocketChannel, A> channels;
 
     /**
      * Creates new acceptor.
@@ -32,15 +45,29 @@ public class NonBlockingAcceptor extends Thread implements Acceptor {
      * @param name    Acceptor thread name.
      * @param handler Connection handler.
      */
-    public NonBlockingAcceptor(String name, ConnectionHandler handler) {
+    public NonBlockingAcceptor(String name, ConnectionHandler<A> handler) {
+        this(name, handler, SelectorProvider.provider(), null);
+    }
+
+    /**
+     * Creates new acceptor.
+     *
+     * @param name     Acceptor thread name.
+     * @param handler  Connection handler.
+     * @param provider Provider to open selector with. Must be the same that opened listening channels.
+     * @param cpus     CPUs to pin acceptor thread to or {@code null} if thread should not be pinned.
+     */
+    public NonBlockingAcceptor(String name, ConnectionHandler<A> handler, SelectorProvider provider, int[] cpus) {
         super(name);
 
         this.handler = handler;
+        this.provider = provider;
+        this.cpus = cpus;
     }
 
     /** {@inheritDoc} */
     @Override
-    public void start(Collection<ServerSocketChannel> channels) {
+    public void start(Map<ServerSocketChannel, A> channels) {
         if (this.channels != null)
             throw new IllegalThreadStateException("already started");
 
@@ -54,16 +81,47 @@ public class NonBlockingAcceptor extends Thread implements Acceptor {
         start();
     }
 
+    /**
+     * Accepts new connection from channel of given key and passes it to handler.
+     *
+     * @param key Selected key of listening channel.
+     * @throws IOException If accept failed.
+     */
+    @SuppressWarnings("unchecked")
+    private void accept(SelectionKey key) throws IOException {
+        final ServerSocketChannel channel = (ServerSocketChannel) key.channel();
+        final SocketChannel accepted = channel.accept();
+
+        if (accepted != null) try {
+            handler.handle((A) key.attachment(), accepted);
+        } catch (Exception e) {
+            LOGGER.severe("Failed to handle new connection: " + e);
+
+            try {
+                accepted.close();
+            } catch (IOException e1) {
+                LOGGER.severe("Failed to close connection: " + e1);
+            }
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public void run() {
         if (channels == null)
             throw new IllegalStateException("channels must be provided");
 
-        try (Selector selector = Selector.open()) {
-            for (ServerSocketChannel channel : channels) {
+        if (cpus != null)
+            ThreadAffinity.pin(cpus);
+
+        try (Selector selector = provider.openSelector()) {
+            SelectedKeySet selectedKeys = SelectedKeySet.inject(selector);
+
+            for (Map.Entry<ServerSocketChannel, A> entry : channels.entrySet()) {
+                ServerSocketChannel channel = entry.getKey();
+
                 channel.configureBlocking(false);
-                channel.register(selector, SelectionKey.OP_ACCEPT);
+                channel.register(selector, SelectionKey.OP_ACCEPT, entry.getValue());
             }
 
             while (!isInterrupted()) {
@@ -72,24 +130,18 @@ public class NonBlockingAcceptor extends Thread implements Acceptor {
                 if (isInterrupted())
                     break;
 
-                for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
-                    SelectionKey key = iter.next();
-
-                    iter.remove();
+                if (selectedKeys != null) {
+                    for (int i = 0; i < selectedKeys.size(); i++)
+                        accept(selectedKeys.get(i));
 
-                    final ServerSocketChannel channel = (ServerSocketChannel) key.channel();
-                    final SocketChannel accepted = channel.accept();
+                    selectedKeys.clear();
+                } else {
+                    for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
+                        SelectionKey key = iter.next();
 
-                    if (accepted != null) try {
-                        handler.handle(channel, accepted);
-                    } catch (Exception e) {
-                        LOGGER.severe("Failed to handle new connection: " + e);
+                        iter.remove();
 
-                        try {
-                            accepted.close();
-                        } catch (IOException e1) {
-                            LOGGER.severe("Failed to close connection: " + e1);
-                        }
+                        accept(key);
                     }
                 }
             }
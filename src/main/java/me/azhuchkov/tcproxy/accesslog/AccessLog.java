@@ -0,0 +1,361 @@
+package me.azhuchkov.tcproxy.accesslog;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Access log of proxied connections. Each worker publishes records into its own {@link AccessLogRing},
+ * and background writer drains the rings into memory-mapped text file, so workers never block on I/O.
+ * <p/>
+ * Each line describes one connection: close time, mapping, client address, remote endpoint address,
+ * bytes sent by client, bytes received by client, lifetime in milliseconds and close reason, separated
+ * by spaces. When the file is full, it's renamed to {@code <file>.1} (older files are shifted up to
+ * the configured count) and new file is started. Mapped file is allocated in full at once and truncated
+ * to the written length when it's rotated or closed, so after a crash its tail is filled with zeros.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class AccessLog {
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(AccessLog.class.getName());
+
+    /** Default size of log file. */
+    public static final long DEFAULT_FILE_SIZE = 64L << 20;
+
+    /** Default count of rotated files to keep. */
+    public static final int DEFAULT_FILES = 5;
+
+    /** Default count of records in ring of each worker. */
+    public static final int DEFAULT_RING_SIZE = 4096;
+
+    /** Interval between drains of rings, ms. */
+    private static final long DRAIN_INTERVAL = 100;
+
+    /** Log file. */
+    private final Path path;
+
+    /** Size of log file. */
+    private final long fileSize;
+
+    /** Count of rotated files to keep. */
+    private final int files;
+
+    /** Count of records in ring of each worker. */
+    private final int ringSize;
+
+    /** Rings of workers. */
+    private final List<AccessLogRing> rings = new CopyOnWriteArrayList<>();
+
+    /** Format of close time. Used by writer thread only. */
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+    /** Builder of log lines. Used by writer thread only. */
+    private final StringBuilder line = new StringBuilder();
+
+    /** Consumer of records drained from rings. */
+    private final AccessLogRing.Consumer consumer = new AccessLogRing.Consumer() {
+        @Override
+        public void accept(AccessRecord record) {
+            write(record);
+        }
+    };
+
+    /** Writer thread. */
+    private final Thread writer = new Thread("Proxy Access Log") {
+        @Override
+        public void run() {
+            writeLoop();
+        }
+    };
+
+    /** Channel of current log file. */
+    private FileChannel channel;
+
+    /** Mapped region of current log file. */
+    private MappedByteBuffer buffer;
+
+    /** Count of records dropped by producers whose rings have been released. */
+    private final AtomicLong releasedDrops = new AtomicLong();
+
+    /** Total count of dropped records last reported. */
+    private long reportedDrops;
+
+    /** Whether write error has been reported already. */
+    private boolean errorReported;
+
+    /**
+     * Creates access log.
+     *
+     * @param path     Log file.
+     * @param fileSize Size of log file.
+     * @param files    Count of rotated files to keep.
+     * @param ringSize Count of records in ring of each worker.
+     * @throws IllegalArgumentException If sizes are invalid.
+     */
+    public AccessLog(String path, long fileSize, int files, int ringSize) {
+        if (fileSize <= 0 || fileSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid access log file size: " + fileSize);
+
+        if (files < 0)
+            throw new IllegalArgumentException("invalid count of access log files: " + files);
+
+        if (ringSize <= 0)
+            throw new IllegalArgumentException("invalid access log ring size: " + ringSize);
+
+        this.path = Paths.get(path);
+        this.fileSize = fileSize;
+        this.files = files;
+        this.ringSize = ringSize;
+
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Creates ring for new producer.
+     *
+     * @return New ring.
+     */
+    public AccessLogRing newRing() {
+        AccessLogRing ring = new AccessLogRing(ringSize);
+
+        rings.add(ring);
+
+        return ring;
+    }
+
+    /**
+     * Opens log file and starts writer.
+     *
+     * @throws IOException If log file can't be opened.
+     */
+    public void start() throws IOException {
+        open();
+
+        writer.start();
+    }
+
+    /**
+     * Stops writer once all published records are written and closes log file.
+     *
+     * @throws InterruptedException If interrupted.
+     */
+    public void stop() throws InterruptedException {
+        writer.interrupt();
+        writer.join();
+    }
+
+    /**
+     * @return Total count of records dropped since rings were full.
+     */
+    public long dropped() {
+        long dropped = releasedDrops.get();
+
+        for (AccessLogRing ring : rings)
+            dropped += ring.dropped();
+
+        return dropped;
+    }
+
+    /**
+     * Periodically drains rings until interrupted.
+     */
+    private void writeLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(DRAIN_INTERVAL);
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                drain();
+            }
+        } finally {
+            drain();
+
+            try {
+                close();
+            } catch (IOException e) {
+                LOGGER.warning("Failed to close access log: " + e);
+            }
+        }
+    }
+
+    /**
+     * Writes records of all rings and releases rings of stopped producers.
+     */
+    private void drain() {
+        for (AccessLogRing ring : rings) {
+            // read flag before draining, so no record published before closing is missed
+            boolean closed = ring.isClosed();
+
+            ring.drain(consumer);
+
+            if (closed) {
+                releasedDrops.addAndGet(ring.dropped());
+
+                rings.remove(ring);
+            }
+        }
+
+        long dropped = dropped();
+
+        if (dropped > reportedDrops) {
+            LOGGER.warning((dropped - reportedDrops) + " access records have been dropped since rings are full");
+
+            reportedDrops = dropped;
+        }
+    }
+
+    /**
+     * Writes access record as a line of log file. If log file can't be written, record is lost.
+     *
+     * @param record Access record.
+     */
+    private void write(AccessRecord record) {
+        line.setLength(0);
+
+        line.append(dateFormat.format(new Date(record.closedAt))).append(' ')
+                .append(record.mapping.title()).append(' ')
+                .append(address(record.client)).append(' ')
+                .append(address(record.backend)).append(' ')
+                .append(record.sentBytes).append(' ')
+                .append(record.receivedBytes).append(' ')
+                .append(TimeUnit.NANOSECONDS.toMillis(record.duration)).append(' ')
+                .append(record.reason).append('\n');
+
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+
+        try {
+            if (buffer == null)
+                open();
+
+            if (bytes.length > buffer.remaining())
+                rotate();
+
+            if (bytes.length <= buffer.remaining())
+                buffer.put(bytes);
+
+            errorReported = false;
+        } catch (IOException e) {
+            // record is lost, but workers go on
+            if (!errorReported) {
+                LOGGER.log(Level.SEVERE, "Failed to write access log", e);
+
+                errorReported = true;
+            }
+        }
+    }
+
+    /**
+     * @param address Socket address or {@code null}.
+     * @return Address in {@code host:port} form or {@code -} if unknown.
+     */
+    private static String address(SocketAddress address) {
+        if (address == null)
+            return "-";
+
+        String str = address.toString();
+
+        // InetSocketAddress prints itself as 'hostname/literal:port'
+        int slash = str.indexOf('/');
+
+        return slash < 0 ? str : str.substring(slash + 1);
+    }
+
+    /**
+     * Opens new log file. Existing file is rotated first.
+     *
+     * @throws IOException If failed.
+     */
+    private void open() throws IOException {
+        if (Files.exists(path) && Files.size(path) > 0)
+            shift();
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+    }
+
+    /**
+     * Closes current log file truncating it to the written length.
+     *
+     * @throws IOException If failed.
+     */
+    private void close() throws IOException {
+        if (channel == null)
+            return;
+
+        try {
+            buffer.force();
+
+            channel.truncate(buffer.position());
+        } finally {
+            channel.close();
+
+            channel = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * Closes current log file and starts new one.
+     *
+     * @throws IOException If failed.
+     */
+    private void rotate() throws IOException {
+        close();
+        open();
+    }
+
+    /**
+     * Renames log file to {@code <file>.1} shifting older files. The oldest file is deleted.
+     *
+     * @throws IOException If failed.
+     */
+    private void shift() throws IOException {
+        if (files == 0) {
+            Files.delete(path);
+
+            return;
+        }
+
+        for (int i = files - 1; i >= 1; i--) {
+            Path older = rotated(i);
+
+            if (Files.exists(older))
+                Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param idx Index of rotated file.
+     * @return Path of rotated file.
+     */
+    private Path rotated(int idx) {
+        return path.resolveSibling(path.getFileName() + "." + idx);
+    }
+}
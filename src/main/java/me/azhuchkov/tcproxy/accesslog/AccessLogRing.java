@@ -0,0 +1,149 @@
+package me.azhuchkov.tcproxy.accesslog;
+
+import me.azhuchkov.tcproxy.PortMapping;
+import me.azhuchkov.tcproxy.event.CloseReason;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer ring of access records. Producer (worker thread)
+ * fills preallocated records in place, so publishing neither allocates nor blocks: if the ring
+ * is full, record is dropped and counted. Consumer is access log writer.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class AccessLogRing {
+    /** Preallocated records. */
+    private final AccessRecord[] records;
+
+    /** Mask of record index. */
+    private final int mask;
+
+    /** Sequence of the next record to publish. Written by producer only. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Sequence of the next record to consume. Written by consumer only. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Producer's copy of {@link #head}, so it reads shared counter only when ring looks full. */
+    private long cachedHead;
+
+    /** Count of dropped records. Written by producer only. */
+    private volatile long dropped;
+
+    /** Whether producer won't publish records any more. */
+    private volatile boolean closed;
+
+    /**
+     * @param capacity Count of records, rounded up to power of two.
+     */
+    AccessLogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+
+        records = new AccessRecord[size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++)
+            records[i] = new AccessRecord();
+    }
+
+    /**
+     * Publishes access record. Must be called by producer thread only.
+     *
+     * @param mapping       Port mapping of the connection.
+     * @param client        Client address.
+     * @param backend       Remote endpoint address.
+     * @param sentBytes     Count of bytes relayed from client to remote endpoint.
+     * @param receivedBytes Count of bytes relayed from remote endpoint to client.
+     * @param duration      Connection lifetime, ns.
+     * @param reason        Close reason.
+     * @return {@code false} if ring is full and record has been dropped.
+     */
+    public boolean publish(PortMapping mapping, SocketAddress client, SocketAddress backend,
+                           long sentBytes, long receivedBytes, long duration, CloseReason reason) {
+        long seq = tail.get();
+
+        if (seq - cachedHead == records.length) {
+            cachedHead = head.get();
+
+            if (seq - cachedHead == records.length) {
+                dropped++;
+
+                return false;
+            }
+        }
+
+        AccessRecord record = records[(int) seq & mask];
+
+        record.closedAt = System.currentTimeMillis();
+        record.mapping = mapping;
+        record.client = client;
+        record.backend = backend;
+        record.sentBytes = sentBytes;
+        record.receivedBytes = receivedBytes;
+        record.duration = duration;
+        record.reason = reason;
+
+        // ordered store makes record visible to consumer along with sequence
+        tail.lazySet(seq + 1);
+
+        return true;
+    }
+
+    /**
+     * @return Count of records dropped since ring is full.
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Notifies consumer that producer won't publish records any more,
+     * so the ring can be released once drained.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * @return Whether producer has closed the ring.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Consumes all published records. Must be called by consumer thread only.
+     *
+     * @param consumer Consumer of records. Records must not be used once consumer returns.
+     * @return Count of consumed records.
+     */
+    int drain(Consumer consumer) {
+        long from = head.get();
+        long to = tail.get();
+
+        for (long seq = from; seq < to; seq++) {
+            AccessRecord record = records[(int) seq & mask];
+
+            consumer.accept(record);
+
+            record.clear();
+        }
+
+        head.lazySet(to);
+
+        return (int) (to - from);
+    }
+
+    /**
+     * Consumer of access records.
+     */
+    interface Consumer {
+        /**
+         * @param record Access record.
+         */
+        void accept(AccessRecord record);
+    }
+}
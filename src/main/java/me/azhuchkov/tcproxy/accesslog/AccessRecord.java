@@ -0,0 +1,49 @@
+package me.azhuchkov.tcproxy.accesslog;
+
+import me.azhuchkov.tcproxy.PortMapping;
+import me.azhuchkov.tcproxy.event.CloseReason;
+
+import java.net.SocketAddress;
+
+/**
+ * Access record of single proxied connection. Records are preallocated by {@link AccessLogRing}
+ * and reused, so they refer to objects that connection already has instead of copying them.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+class AccessRecord {
+    /** Time connection was closed at, ms since epoch. */
+    long closedAt;
+
+    /** Port mapping of the connection. */
+    PortMapping mapping;
+
+    /** Client address. */
+    SocketAddress client;
+
+    /** Remote endpoint address. */
+    SocketAddress backend;
+
+    /** Count of bytes relayed from client to remote endpoint. */
+    long sentBytes;
+
+    /** Count of bytes relayed from remote endpoint to client. */
+    long receivedBytes;
+
+    /** Connection lifetime, ns. */
+    long duration;
+
+    /** Close reason. */
+    CloseReason reason;
+
+    /**
+     * Drops references, so they don't keep objects of closed connection reachable.
+     */
+    void clear() {
+        mapping = null;
+        client = null;
+        backend = null;
+        reason = null;
+    }
+}
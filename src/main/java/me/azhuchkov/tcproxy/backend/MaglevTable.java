@@ -0,0 +1,171 @@
+package me.azhuchkov.tcproxy.backend;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash lookup table of backends (Maglev hashing). Each backend fills table slots following
+ * its own permutation of the table, taking turns with other backends, so backends get almost equal
+ * shares of slots, and change of backend set remaps little more than the share of changed backend.
+ * <p/>
+ * Backend is identified by its {@code host:port}, so the same backend keeps its slots across restarts
+ * and configuration changes. Lookup is a single array access and doesn't allocate.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class MaglevTable {
+    /** Default table size. Prime, so that each permutation covers the whole table. */
+    public static final int DEFAULT_SIZE = 65537;
+
+    /** Backend indexes by table slots. */
+    private final int[] slots;
+
+    /**
+     * Creates table of {@link #DEFAULT_SIZE} slots.
+     *
+     * @param backends Backends addresses.
+     * @throws IllegalArgumentException If there are no backends.
+     */
+    public MaglevTable(List<? extends SocketAddress> backends) {
+        this(backends, DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates table.
+     *
+     * @param backends Backends addresses.
+     * @param size     Table size. Must be prime and much greater than count of backends
+     *                 to keep shares of backends even.
+     * @throws IllegalArgumentException If there are no backends, size is not prime or less than their count.
+     */
+    public MaglevTable(List<? extends SocketAddress> backends, int size) {
+        int count = backends.size();
+
+        if (count == 0)
+            throw new IllegalArgumentException("no backends");
+
+        if (size < count || !BigInteger.valueOf(size).isProbablePrime(32))
+            throw new IllegalArgumentException("invalid table size: " + size);
+
+        long[] offsets = new long[count];
+        long[] skips = new long[count];
+        long[] next = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            byte[] key = key(backends.get(i)).getBytes(StandardCharsets.UTF_8);
+
+            offsets[i] = (hash(key, 0) & Long.MAX_VALUE) % size;
+            skips[i] = (hash(key, 0x9e3779b97f4a7c15L) & Long.MAX_VALUE) % (size - 1) + 1;
+        }
+
+        slots = new int[size];
+
+        Arrays.fill(slots, -1);
+
+        for (int filled = 0; ; ) {
+            for (int i = 0; i < count; i++) {
+                int slot;
+
+                do {
+                    slot = (int) ((offsets[i] + next[i] * skips[i]) % size);
+
+                    next[i]++;
+                } while (slots[slot] >= 0);
+
+                slots[slot] = i;
+
+                if (++filled == size)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * @return Count of table slots.
+     */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Looks up backend by key hash.
+     *
+     * @param hash Key hash.
+     * @return Index of backend in the list table has been created of.
+     */
+    public int lookup(long hash) {
+        return slots[(int) ((hash & Long.MAX_VALUE) % slots.length)];
+    }
+
+    /**
+     * Hashes client IP address (port is ignored, so all connections of the client go to the
+     * same backend). Doesn't allocate.
+     *
+     * @param client Client address.
+     * @return Hash of IP address or 0 if address is not IP one.
+     */
+    public static long hash(SocketAddress client) {
+        if (!(client instanceof InetSocketAddress))
+            return 0;
+
+        InetAddress address = ((InetSocketAddress) client).getAddress();
+
+        return address == null ? 0 : mix(address.hashCode());
+    }
+
+    /**
+     * @param backend Backend address.
+     * @return Stable identity of backend.
+     */
+    private static String key(SocketAddress backend) {
+        if (backend instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) backend;
+
+            return address.getHostString() + ':' + address.getPort();
+        }
+
+        return backend.toString();
+    }
+
+    /**
+     * FNV-1a hash of bytes finalized by {@link #mix(long)}.
+     *
+     * @param bytes Bytes to hash.
+     * @param seed  Seed to derive independent hashes of the same bytes.
+     * @return 64-bit hash.
+     */
+    private static long hash(byte[] bytes, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        return mix(h);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads bits of value evenly.
+     *
+     * @param value Value.
+     * @return Mixed value.
+     */
+    private static long mix(long value) {
+        long h = value;
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
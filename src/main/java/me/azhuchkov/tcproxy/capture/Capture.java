@@ -0,0 +1,230 @@
+package me.azhuchkov.tcproxy.capture;
+
+import me.azhuchkov.tcproxy.PortMapping;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-demand capture of relayed traffic of chosen mappings. Each worker appends relayed chunks
+ * to its own {@link CaptureWriter}, so capture needs neither locks nor extra threads, and chunks
+ * are copied straight from transfer buffers into memory-mapped segment files.
+ * <p/>
+ * Capture of a mapping is turned on and off at runtime through {@link CaptureMXBean}. While no mapping
+ * is captured, workers pay a single volatile read per relayed chunk. Segment files are read by
+ * {@link CaptureReader}.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class Capture implements CaptureMXBean {
+    /** Default size of segment file. */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    /** Default count of segment files kept by each worker. */
+    public static final int DEFAULT_SEGMENTS = 8;
+
+    /** The smallest size of segment file. */
+    private static final long MIN_SEGMENT_SIZE = 64 << 10;
+
+    /** Directory of segment files. */
+    private final Path dir;
+
+    /** Size of segment file. */
+    private final long segmentSize;
+
+    /** Count of segment files kept by each worker. */
+    private final int segments;
+
+    /** Titles of captured mappings. Replaced on change, so readers don't lock. */
+    private volatile Set<String> mappings = Collections.emptySet();
+
+    /** Generator of session identifiers. Seeded with current time, so identifiers are unique across restarts. */
+    private final AtomicLong sessionIds = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    /** Wall clock time the capture has been created at, us. Shared by all writers, so their timestamps agree. */
+    private final long baseMicros = System.currentTimeMillis() * 1000;
+
+    /** Monotonic time the capture has been created at, ns. */
+    private final long baseNanos = System.nanoTime();
+
+    /** Generator of segment identifiers, unique across writers. */
+    private final AtomicLong segmentIds = new AtomicLong();
+
+    /** Writers of workers. */
+    private final List<CaptureWriter> writers = new CopyOnWriteArrayList<>();
+
+    /** Count of payload bytes captured by closed writers. */
+    private final AtomicLong closedCaptured = new AtomicLong();
+
+    /** Count of payload bytes lost by closed writers. */
+    private final AtomicLong closedLost = new AtomicLong();
+
+    /**
+     * Creates capture.
+     *
+     * @param dir         Directory of segment files.
+     * @param segmentSize Size of segment file.
+     * @param segments    Count of segment files kept by each worker. Older files are deleted.
+     * @param mappings    Titles of mappings captured from the start.
+     * @throws IllegalArgumentException If segment size or count is invalid.
+     */
+    public Capture(String dir, long segmentSize, int segments, Collection<String> mappings) {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid capture segment size: " + segmentSize);
+
+        if (segments <= 0)
+            throw new IllegalArgumentException("invalid count of capture segments: " + segments);
+
+        this.dir = Paths.get(dir);
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+
+        if (!mappings.isEmpty())
+            this.mappings = Collections.unmodifiableSet(new HashSet<>(mappings));
+    }
+
+    /**
+     * Creates directory of segment files unless it exists.
+     *
+     * @throws IOException If directory can't be created.
+     */
+    public void start() throws IOException {
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * @param mapping Port mapping.
+     * @return Whether traffic of the mapping is captured.
+     */
+    public boolean isEnabled(PortMapping mapping) {
+        Set<String> mappings0 = mappings;
+
+        return !mappings0.isEmpty() && mappings0.contains(mapping.title());
+    }
+
+    /**
+     * @return Identifier of new session.
+     */
+    public long nextSessionId() {
+        return sessionIds.incrementAndGet();
+    }
+
+    /**
+     * Creates writer for new worker.
+     *
+     * @param name Worker name. Prefixes names of segment files of the writer.
+     * @return New writer.
+     */
+    public CaptureWriter newWriter(String name) {
+        CaptureWriter writer = new CaptureWriter(this, name);
+
+        writers.add(writer);
+
+        return writer;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void enable(String mapping) {
+        Set<String> mappings0 = new HashSet<>(mappings);
+
+        mappings0.add(mapping);
+
+        mappings = Collections.unmodifiableSet(mappings0);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void disable(String mapping) {
+        Set<String> mappings0 = new HashSet<>(mappings);
+
+        mappings0.remove(mapping);
+
+        mappings = mappings0.isEmpty() ? Collections.<String>emptySet() : Collections.unmodifiableSet(mappings0);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String[] getMappings() {
+        return mappings.toArray(new String[0]);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getCapturedBytes() {
+        long captured = closedCaptured.get();
+
+        for (CaptureWriter writer : writers)
+            captured += writer.captured();
+
+        return captured;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLostBytes() {
+        long lost = closedLost.get();
+
+        for (CaptureWriter writer : writers)
+            lost += writer.lost();
+
+        return lost;
+    }
+
+    /**
+     * @return Directory of segment files.
+     */
+    Path dir() {
+        return dir;
+    }
+
+    /**
+     * @return Current time, us since epoch, on the time base shared by all writers.
+     */
+    long timestamp() {
+        return baseMicros + (System.nanoTime() - baseNanos) / 1000;
+    }
+
+    /**
+     * @return Identifier of new segment file, greater than 0.
+     */
+    long nextSegmentId() {
+        return segmentIds.incrementAndGet();
+    }
+
+    /**
+     * @return Size of segment file.
+     */
+    long segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return Count of segment files kept by each worker.
+     */
+    int segments() {
+        return segments;
+    }
+
+    /**
+     * Forgets closed writer keeping its counters.
+     *
+     * @param writer Closed writer.
+     */
+    void release(CaptureWriter writer) {
+        closedCaptured.addAndGet(writer.captured());
+        closedLost.addAndGet(writer.lost());
+
+        writers.remove(writer);
+    }
+}
@@ -0,0 +1,40 @@
+package me.azhuchkov.tcproxy.capture;
+
+/**
+ * Management interface of traffic capture. Registered in platform MBean server under name
+ * {@code me.azhuchkov.tcproxy:type=Capture} while the server runs, so capture of a mapping
+ * can be turned on and off without restart.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public interface CaptureMXBean {
+    /**
+     * Starts capturing traffic of mapping. Connections that are already open are captured too.
+     *
+     * @param mapping Mapping title.
+     */
+    void enable(String mapping);
+
+    /**
+     * Stops capturing traffic of mapping.
+     *
+     * @param mapping Mapping title.
+     */
+    void disable(String mapping);
+
+    /**
+     * @return Titles of captured mappings.
+     */
+    String[] getMappings();
+
+    /**
+     * @return Count of payload bytes captured.
+     */
+    long getCapturedBytes();
+
+    /**
+     * @return Count of payload bytes lost since segment file couldn't be written.
+     */
+    long getLostBytes();
+}
@@ -0,0 +1,365 @@
+package me.azhuchkov.tcproxy.capture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Reads segment files written by {@link CaptureWriter}. Usage:
+ * <pre>
+ * CaptureReader &lt;dir&gt;                          - lists captured sessions
+ * CaptureReader &lt;dir&gt; &lt;session&gt;                - dumps both directions of session as hex
+ * CaptureReader &lt;dir&gt; &lt;session&gt; client|server  - writes raw stream of one direction to stdout
+ * </pre>
+ * Records of all segment files in the directory are ordered by timestamp, since session may move
+ * between workers. Exported stream is ordered by offsets of records in it, so it's intact even if
+ * timestamps of workers tie. Segment files of format version 1 have no offsets and are ordered
+ * by timestamps only.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class CaptureReader {
+    /** Size of record header of format version 1, which has no stream offset. */
+    private static final int V1_RECORD_HEADER_SIZE = 21;
+
+    /** Count of bytes per line of hex dump. */
+    private static final int DUMP_WIDTH = 16;
+
+    /** Format of record time. */
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
+    /** Records of all segment files in file order. */
+    private final List<Record> records = new ArrayList<>();
+
+    /**
+     * Reads all segment files in directory.
+     *
+     * @param dir Directory of segment files.
+     * @throws IOException If directory can't be read.
+     */
+    public CaptureReader(Path dir) throws IOException {
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        List<Path> files = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + CaptureWriter.EXTENSION)) {
+            for (Path file : stream)
+                files.add(file);
+        }
+
+        // writer's files sort by their sequence numbers
+        Collections.sort(files);
+
+        for (Path file : files)
+            read(file);
+
+        // stable sort keeps order of records split across segments
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record r1, Record r2) {
+                return Long.compare(r1.timestamp, r2.timestamp);
+            }
+        });
+    }
+
+    /**
+     * Prints captured sessions: identifier, first record time, description and
+     * bytes sent by client and by remote endpoint.
+     *
+     * @param out Output.
+     */
+    public void list(PrintStream out) {
+        Map<Long, Session> sessions = new LinkedHashMap<>();
+
+        for (Record record : records) {
+            Session session = sessions.get(record.session);
+
+            if (session == null) {
+                session = new Session(record.timestamp);
+
+                sessions.put(record.session, session);
+            }
+
+            if (record.type == CaptureWriter.OPEN)
+                session.description = StandardCharsets.UTF_8.decode(record.payload()).toString();
+            else if (record.type == CaptureWriter.CLIENT)
+                session.clientBytes += record.length;
+            else if (record.type == CaptureWriter.SERVER)
+                session.serverBytes += record.length;
+        }
+
+        for (Map.Entry<Long, Session> e : sessions.entrySet()) {
+            Session session = e.getValue();
+
+            out.println(e.getKey() + " " + time(session.startedAt) + " " + session.description + " " +
+                    session.clientBytes + " " + session.serverBytes);
+        }
+    }
+
+    /**
+     * Prints records of session as hex dump.
+     *
+     * @param session Session identifier.
+     * @param out     Output.
+     */
+    public void dump(long session, PrintStream out) {
+        StringBuilder line = new StringBuilder();
+
+        boolean described = false;
+
+        for (Record record : records) {
+            if (record.session != session)
+                continue;
+
+            ByteBuffer payload = record.payload();
+
+            // description is repeated in each segment file
+            if (record.type == CaptureWriter.OPEN) {
+                if (!described)
+                    out.println(time(record.timestamp) + " " + StandardCharsets.UTF_8.decode(payload));
+
+                described = true;
+
+                continue;
+            }
+
+            out.println(time(record.timestamp) + (record.type == CaptureWriter.CLIENT ? " client " : " server ") +
+                    record.length + " bytes" + (record.offset >= 0 ? " at " + record.offset : ""));
+
+            for (int offset = 0; offset < record.length; offset += DUMP_WIDTH) {
+                int count = Math.min(DUMP_WIDTH, record.length - offset);
+
+                line.setLength(0);
+                line.append(String.format("%08x  ", offset));
+
+                for (int i = 0; i < DUMP_WIDTH; i++) {
+                    if (i < count)
+                        line.append(String.format("%02x ", payload.get(offset + i) & 0xff));
+                    else
+                        line.append("   ");
+                }
+
+                line.append(' ');
+
+                for (int i = 0; i < count; i++) {
+                    int b = payload.get(offset + i) & 0xff;
+
+                    line.append(b >= 0x20 && b < 0x7f ? (char) b : '.');
+                }
+
+                out.println(line);
+            }
+        }
+    }
+
+    /**
+     * Writes raw stream of one direction of session.
+     *
+     * @param session Session identifier.
+     * @param type    {@link CaptureWriter#CLIENT} or {@link CaptureWriter#SERVER}.
+     * @param out     Output.
+     * @throws IOException If output can't be written.
+     */
+    public void export(long session, byte type, OutputStream out) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+
+        List<Record> stream = new ArrayList<>();
+
+        for (Record record : records) {
+            if (record.session == session && record.type == type)
+                stream.add(record);
+        }
+
+        // stable sort keeps timestamp order of records without offsets
+        Collections.sort(stream, new Comparator<Record>() {
+            @Override
+            public int compare(Record r1, Record r2) {
+                return Long.compare(r1.offset, r2.offset);
+            }
+        });
+
+        for (Record record : stream) {
+            ByteBuffer payload = record.payload();
+
+            while (payload.hasRemaining())
+                channel.write(payload);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Reads records of segment file. Reading stops at zero tail or at truncated record.
+     *
+     * @param file Segment file.
+     * @throws IOException If file can't be read.
+     */
+    private void read(Path file) throws IOException {
+        ByteBuffer buf;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buf.remaining() < CaptureWriter.FILE_HEADER_SIZE || buf.getInt() != CaptureWriter.MAGIC) {
+            System.err.println("Skipping " + file + ": not a capture segment");
+
+            return;
+        }
+
+        int version = buf.getInt();
+
+        if (version != CaptureWriter.VERSION && version != 1) {
+            System.err.println("Skipping " + file + ": unsupported version " + version);
+
+            return;
+        }
+
+        int headerSize = version == 1 ? V1_RECORD_HEADER_SIZE : CaptureWriter.RECORD_HEADER_SIZE;
+
+        while (buf.remaining() >= headerSize) {
+            int length = buf.getInt();
+
+            if (length <= 0)
+                break;
+
+            byte type = buf.get();
+            long session = buf.getLong();
+            long offset = version == 1 ? -1 : buf.getLong();
+            long timestamp = buf.getLong();
+
+            if (buf.remaining() < length)
+                break;
+
+            records.add(new Record(buf, buf.position(), length, type, session, offset, timestamp));
+
+            buf.position(buf.position() + length);
+        }
+    }
+
+    /**
+     * @param micros Timestamp, us since epoch.
+     * @return Formatted UTC time with microseconds.
+     */
+    private String time(long micros) {
+        return dateFormat.format(new Date(micros / 1000)) + String.format("%03dZ", micros % 1000);
+    }
+
+    /**
+     * Entry point.
+     *
+     * @param args Command line arguments.
+     * @throws IOException If failed.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: CaptureReader <dir> [<session> [client|server]]");
+
+            System.exit(1);
+        }
+
+        CaptureReader reader = new CaptureReader(Paths.get(args[0]));
+
+        if (args.length == 1)
+            reader.list(System.out);
+        else if (args.length == 2)
+            reader.dump(Long.parseLong(args[1]), System.out);
+        else if ("client".equals(args[2]))
+            reader.export(Long.parseLong(args[1]), CaptureWriter.CLIENT, System.out);
+        else if ("server".equals(args[2]))
+            reader.export(Long.parseLong(args[1]), CaptureWriter.SERVER, System.out);
+        else {
+            System.err.println("Unknown direction: " + args[2]);
+
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Record of segment file.
+     */
+    private static class Record {
+        /** Mapped segment file. */
+        final ByteBuffer file;
+
+        /** Position of payload in the file. */
+        final int position;
+
+        /** Payload length. */
+        final int length;
+
+        /** Record type. */
+        final byte type;
+
+        /** Session identifier. */
+        final long session;
+
+        /** Offset of payload in the stream of its direction or -1 if it's unknown. */
+        final long offset;
+
+        /** Timestamp, us since epoch. */
+        final long timestamp;
+
+        Record(ByteBuffer file, int position, int length, byte type, long session, long offset, long timestamp) {
+            this.file = file;
+            this.position = position;
+            this.length = length;
+            this.type = type;
+            this.session = session;
+            this.offset = offset;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return Payload of the record.
+         */
+        ByteBuffer payload() {
+            ByteBuffer payload = file.duplicate();
+
+            payload.limit(position + length).position(position);
+
+            return payload.slice();
+        }
+    }
+
+    /**
+     * Summary of captured session.
+     */
+    private static class Session {
+        /** Time of the first record, us since epoch. */
+        final long startedAt;
+
+        /** Session description or {@code -} if capture started after the session. */
+        String description = "-";
+
+        /** Count of bytes sent by client. */
+        long clientBytes;
+
+        /** Count of bytes sent by remote endpoint. */
+        long serverBytes;
+
+        Session(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+}
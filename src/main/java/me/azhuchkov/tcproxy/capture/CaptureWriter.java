@@ -0,0 +1,252 @@
+package me.azhuchkov.tcproxy.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends captured chunks of single worker to memory-mapped segment files. Must be used by the worker
+ * thread only. Chunk is copied from transfer buffer directly into mapped segment, so capture costs
+ * one memory copy and no allocation per chunk.
+ * <p/>
+ * Segment file starts with {@link #MAGIC} and {@link #VERSION} ints followed by records. Record is
+ * payload length (int), record type (byte), session identifier (long), offset of payload in the stream
+ * of its direction (long), timestamp in microseconds since epoch (long) and payload, all big-endian.
+ * Offsets order data of session regardless of the worker that has captured it, timestamps of all
+ * writers of a capture share one time base. Chunk that doesn't fit into the rest of segment is
+ * split into records of the same timestamp. Segment is allocated in full at once and truncated to the
+ * written length when it's rotated or closed, so after a crash its tail is filled with zeros.
+ * Files are named {@code <worker>-<start time>-<seq>.cap}, the oldest ones are deleted.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class CaptureWriter {
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(CaptureWriter.class.getName());
+
+    /** Magic number of segment file. */
+    public static final int MAGIC = 0x54435043;
+
+    /** Version of segment file format. */
+    public static final int VERSION = 2;
+
+    /** Size of segment file header. */
+    public static final int FILE_HEADER_SIZE = 8;
+
+    /** Size of record header. */
+    public static final int RECORD_HEADER_SIZE = 29;
+
+    /** Record type of session description: mapping, client and remote endpoint. */
+    public static final byte OPEN = 0;
+
+    /** Record type of data sent by client. */
+    public static final byte CLIENT = 1;
+
+    /** Record type of data sent by remote endpoint. */
+    public static final byte SERVER = 2;
+
+    /** Extension of segment files. */
+    public static final String EXTENSION = ".cap";
+
+    /** Capture the writer belongs to. */
+    private final Capture capture;
+
+    /** Prefix of segment file names. */
+    private final String prefix;
+
+    /** Segment files of the writer, the oldest first. */
+    private final Deque<Path> files = new ArrayDeque<>();
+
+    /** Sequence number of the next segment file. */
+    private int seq;
+
+    /** Channel of current segment file. */
+    private FileChannel channel;
+
+    /** Mapped region of current segment file. */
+    private MappedByteBuffer buffer;
+
+    /** Identifier of current segment file or 0 if there is none yet. */
+    private long segment;
+
+    /** Count of payload bytes captured. Written by owner only. */
+    private volatile long captured;
+
+    /** Count of payload bytes lost since segment file couldn't be written. Written by owner only. */
+    private volatile long lost;
+
+    /** Whether write error has been reported already. */
+    private boolean errorReported;
+
+    /**
+     * @param capture Capture the writer belongs to.
+     * @param name    Worker name.
+     */
+    CaptureWriter(Capture capture, String name) {
+        this.capture = capture;
+        this.prefix = name.replaceAll("[^A-Za-z0-9]+", "_") + '-' + System.currentTimeMillis();
+    }
+
+    /**
+     * Writes description of session. Should be written to each segment the session has data in,
+     * see {@link #segment()}, so the description outlives rotation of older segments.
+     *
+     * @param session     Session identifier.
+     * @param description Session description.
+     */
+    public void open(long session, String description) {
+        write(session, OPEN, 0, ByteBuffer.wrap(description.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Writes remaining data of given buffer. Buffer position is not changed.
+     * If segment file can't be written, data is lost and counted.
+     *
+     * @param session Session identifier.
+     * @param type    Record type.
+     * @param offset  Offset of the data in the stream of its direction.
+     * @param data    Data.
+     */
+    public void write(long session, byte type, long offset, ByteBuffer data) {
+        int position = data.position();
+        int limit = data.limit();
+
+        long timestamp = capture.timestamp();
+
+        try {
+            while (data.hasRemaining()) {
+                if (buffer == null || buffer.remaining() <= RECORD_HEADER_SIZE)
+                    rotate();
+
+                int length = Math.min(data.remaining(), buffer.remaining() - RECORD_HEADER_SIZE);
+
+                buffer.putInt(length).put(type).putLong(session).putLong(offset + data.position() - position)
+                        .putLong(timestamp);
+
+                data.limit(data.position() + length);
+
+                buffer.put(data);
+
+                data.limit(limit);
+            }
+
+            captured += limit - position;
+
+            errorReported = false;
+        } catch (IOException e) {
+            lost += limit - data.position();
+
+            // data is lost, but worker goes on
+            if (!errorReported) {
+                LOGGER.log(Level.SEVERE, "Failed to write capture segment", e);
+
+                errorReported = true;
+            }
+        } finally {
+            data.limit(limit);
+            data.position(position);
+        }
+    }
+
+    /**
+     * @return Identifier of current segment file, unique across writers of the capture, or 0 if
+     * nothing has been written yet. Changes when segment is rotated.
+     */
+    public long segment() {
+        return segment;
+    }
+
+    /**
+     * Closes current segment file. May be called by interrupted thread.
+     */
+    public void close() {
+        // interrupted thread can't do file channel I/O, and worker is interrupted on shutdown
+        boolean interrupted = Thread.interrupted();
+
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close capture segment: " + e);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        capture.release(this);
+    }
+
+    /**
+     * @return Count of payload bytes captured.
+     */
+    long captured() {
+        return captured;
+    }
+
+    /**
+     * @return Count of payload bytes lost since segment file couldn't be written.
+     */
+    long lost() {
+        return lost;
+    }
+
+    /**
+     * Closes current segment file and starts new one deleting the oldest file if there are too many.
+     *
+     * @throws IOException If failed.
+     */
+    private void rotate() throws IOException {
+        closeSegment();
+
+        Path path = capture.dir().resolve(String.format("%s-%06d%s", prefix, seq++, EXTENSION));
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capture.segmentSize());
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+
+            throw e;
+        }
+
+        buffer.putInt(MAGIC).putInt(VERSION);
+
+        segment = capture.nextSegmentId();
+
+        files.add(path);
+
+        while (files.size() > capture.segments())
+            Files.deleteIfExists(files.poll());
+    }
+
+    /**
+     * Closes current segment file truncating it to the written length.
+     *
+     * @throws IOException If failed.
+     */
+    private void closeSegment() throws IOException {
+        if (channel == null)
+            return;
+
+        try {
+            channel.truncate(buffer.position());
+        } finally {
+            channel.close();
+
+            channel = null;
+            buffer = null;
+        }
+    }
+}
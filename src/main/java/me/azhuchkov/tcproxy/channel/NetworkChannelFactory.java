@@ -3,6 +3,7 @@ package me.azhuchkov.tcproxy.channel;
 import java.io.IOException;
 import java.net.SocketOption;
 import java.nio.channels.NetworkChannel;
+import java.nio.channels.spi.SelectorProvider;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -23,6 +24,12 @@ public abstract class NetworkChannelFactory<T extends NetworkChannel> {
      */
     protected final Map<SocketOption<Object>, Object> options;
 
+    /**
+     * Provider that opens channels. Channels registered with the same selector
+     * must be opened by the same provider.
+     */
+    protected SelectorProvider provider = SelectorProvider.provider();
+
     /**
      * Constructor that allows subclasses to pass predefined channel options
      * using specific {@link java.util.Map} implementation.
@@ -33,6 +40,13 @@ public abstract class NetworkChannelFactory<T extends NetworkChannel> {
         this.options = options;
     }
 
+    /**
+     * @return Provider that opens channels of this factory.
+     */
+    public SelectorProvider provider() {
+        return provider;
+    }
+
     /**
      * Instantiates appropriate socket channel instance.
      *
@@ -77,6 +91,9 @@ public abstract class NetworkChannelFactory<T extends NetworkChannel> {
             SocketOption<Object> option = entry.getKey();
             Object value = entry.getValue();
 
+            if (!isApplicable(option))
+                continue;
+
             try {
                 channel.setOption(option, value);
             } catch (IllegalArgumentException | UnsupportedOperationException e) {
@@ -87,17 +104,30 @@ public abstract class NetworkChannelFactory<T extends NetworkChannel> {
         }
     }
 
+    /**
+     * Checks whether option makes sense for channels of this factory. Options that don't
+     * are skipped silently, e.g. TCP options that are copied from TCP factory to factory of
+     * another socket type.
+     *
+     * @param option Socket option.
+     * @return {@code true} by default.
+     */
+    protected boolean isApplicable(SocketOption<?> option) {
+        return true;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + '{' +
                 "options=" + options +
+                ", provider=" + provider.getClass().getName() +
                 '}';
     }
 
     /**
      * Factory builder. Should be used in subclasses to provided convenient way to pass socket options.
      */
-    public static class Builder<T extends NetworkChannelFactory> {
+    public static class Builder<T extends NetworkChannelFactory<?>> {
         private final T factory;
 
         protected Builder(T factory) {
@@ -114,7 +144,36 @@ public abstract class NetworkChannelFactory<T extends NetworkChannel> {
          */
         @SuppressWarnings("unchecked")
         public <V> Builder<T> option(SocketOption<V> name, V value) {
-            factory.options.put(name, value);
+            // map is keyed by options of any value type, value matches its option by construction
+            factory.options.put((SocketOption<Object>) (SocketOption<?>) name, value);
+            return this;
+        }
+
+        /**
+         * Sets all options of given factory. Options set before are overridden
+         * if given factory has them too.
+         *
+         * @param source Factory to copy options from or {@code null} to copy nothing.
+         * @return {@code this} builder.
+         */
+        public Builder<T> options(NetworkChannelFactory<?> source) {
+            if (source != null)
+                factory.options.putAll(source.options);
+            return this;
+        }
+
+        /**
+         * Sets provider that opens channels of the factory.
+         *
+         * @param provider Selector provider.
+         * @return {@code this} builder.
+         * @see SelectorProviders#forName(String)
+         */
+        public Builder<T> provider(SelectorProvider provider) {
+            if (provider == null)
+                throw new NullPointerException();
+
+            factory.provider = provider;
             return this;
         }
 
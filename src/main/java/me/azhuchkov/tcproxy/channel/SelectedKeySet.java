@@ -0,0 +1,152 @@
+package me.azhuchkov.tcproxy.channel;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * Array-backed set of selected keys. JDK selector keeps selected keys in {@link java.util.HashSet}
+ * that allocates entry on each readiness event and iterator on each pass. This set doesn't allocate
+ * anything once its array has grown enough, so it's injected into selector instead of default one
+ * where JDK permits.
+ * <p/>
+ * Set relies on selector never adding the same key twice during one selection, so {@link #contains(Object)}
+ * always returns {@code false}. It's not thread-safe and must be used by selecting thread only.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class SelectedKeySet extends AbstractSet<SelectionKey> {
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(SelectedKeySet.class.getName());
+
+    /** Initial capacity of keys array. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Selected keys. */
+    private SelectionKey[] keys = new SelectionKey[INITIAL_CAPACITY];
+
+    /** Count of selected keys. */
+    private int size;
+
+    /**
+     * Use {@link #inject(java.nio.channels.Selector)} instead.
+     */
+    private SelectedKeySet() {
+    }
+
+    /**
+     * Replaces selected keys set of given selector with array-backed one.
+     * Should be called right after selector is opened.
+     *
+     * @param selector Selector to inject set into.
+     * @return Injected set or {@code null} if selector implementation doesn't allow it.
+     */
+    public static SelectedKeySet inject(Selector selector) {
+        SelectedKeySet set = new SelectedKeySet();
+
+        try {
+            Class<?> cls = Class.forName("sun.nio.ch.SelectorImpl", false, null);
+
+            if (!cls.isInstance(selector))
+                return null;
+
+            Field selectedKeys = cls.getDeclaredField("selectedKeys");
+            Field publicSelectedKeys = cls.getDeclaredField("publicSelectedKeys");
+
+            selectedKeys.setAccessible(true);
+            publicSelectedKeys.setAccessible(true);
+
+            selectedKeys.set(selector, set);
+            publicSelectedKeys.set(selector, set);
+
+            return set;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // e.g. module system restricts access to sun.nio.ch
+            LOGGER.fine("Selected keys set can't be injected into " + selector.getClass().getName() + ": " + e);
+
+            return null;
+        }
+    }
+
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null)
+            return false;
+
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, size << 1);
+
+        keys[size++] = key;
+
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns selected key by its index.
+     *
+     * @param index Key index in range [0..size).
+     * @return Selected key.
+     */
+    public SelectionKey get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+
+        return keys[index];
+    }
+
+    /**
+     * Removes all keys. Should be called once selected keys have been handled.
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+
+        size = 0;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int idx;
+
+            @Override
+            public boolean hasNext() {
+                return idx < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                return keys[idx++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
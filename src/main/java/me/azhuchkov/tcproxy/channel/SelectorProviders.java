@@ -0,0 +1,99 @@
+package me.azhuchkov.tcproxy.channel;
+
+import java.nio.channels.spi.SelectorProvider;
+import java.util.logging.Logger;
+
+/**
+ * Resolves selector providers (transports) by name. The provider defines how readiness
+ * of the channels is polled, e.g. {@code epoll} on Linux, {@code kqueue} on BSD systems.
+ * All channels and selectors of the server must be opened by the same provider.
+ * <p/>
+ * Only selector providers shipped with JDK are available, they're all level-triggered.
+ * Native edge-triggered epoll transport is not provided, since it needs native calls.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class SelectorProviders {
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(SelectorProviders.class.getName());
+
+    /** Name of default platform transport. */
+    public static final String DEFAULT = "nio";
+
+    /** Package of built-in transports. */
+    private static final String JDK_PACKAGE = "sun.nio.ch.";
+
+    /**
+     * Utility class.
+     */
+    private SelectorProviders() {
+    }
+
+    /**
+     * Resolves provider by transport name. Known names are {@value #DEFAULT} (platform default),
+     * {@code epoll}, {@code kqueue}, {@code devpoll} and {@code poll}. Otherwise name is treated
+     * as a fully qualified name of {@link SelectorProvider} implementation.
+     * <p/>
+     * If requested transport is unavailable on this platform, warning is logged and
+     * platform default provider is returned.
+     * <p/>
+     * Built-in transports live in {@code sun.nio.ch} package, which is not exported since JDK 9,
+     * so they are available only if JVM is started with
+     * {@code --add-exports java.base/sun.nio.ch=ALL-UNNAMED}.
+     *
+     * @param name Transport name.
+     * @return Selector provider, never {@code null}.
+     */
+    public static SelectorProvider forName(String name) {
+        SelectorProvider defaultProvider = SelectorProvider.provider();
+
+        if (name == null || DEFAULT.equals(name))
+            return defaultProvider;
+
+        String className;
+
+        switch (name) {
+            case "epoll":
+                className = "sun.nio.ch.EPollSelectorProvider";
+                break;
+
+            case "kqueue":
+                className = "sun.nio.ch.KQueueSelectorProvider";
+                break;
+
+            case "devpoll":
+                className = "sun.nio.ch.DevPollSelectorProvider";
+                break;
+
+            case "poll":
+                className = "sun.nio.ch.PollSelectorProvider";
+                break;
+
+            default:
+                className = name;
+        }
+
+        // platform default is already the requested one
+        if (defaultProvider.getClass().getName().equals(className))
+            return defaultProvider;
+
+        try {
+            Class<?> cls = Class.forName(className);
+
+            if (!SelectorProvider.class.isAssignableFrom(cls))
+                throw new ClassCastException(className + " is not a selector provider");
+
+            return (SelectorProvider) cls.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError | SecurityException e) {
+            // JDK 9+ refuses access to non-exported package
+            String hint = e instanceof IllegalAccessException && className.startsWith(JDK_PACKAGE) ?
+                    ", start JVM with --add-exports java.base/sun.nio.ch=ALL-UNNAMED to use it" : "";
+
+            LOGGER.warning("Transport '" + name + "' is unavailable, falling back to " +
+                    defaultProvider.getClass().getName() + " (" + e + ")" + hint);
+
+            return defaultProvider;
+        }
+    }
+}
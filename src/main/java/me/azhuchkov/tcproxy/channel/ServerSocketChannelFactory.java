@@ -36,6 +36,6 @@ public final class ServerSocketChannelFactory extends NetworkChannelFactory<Serv
 
     @Override
     protected ServerSocketChannel newChannel0() throws IOException {
-        return ServerSocketChannel.open();
+        return provider.openServerSocketChannel();
     }
 }
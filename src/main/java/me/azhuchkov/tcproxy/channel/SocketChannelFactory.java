@@ -36,6 +36,6 @@ public final class SocketChannelFactory extends NetworkChannelFactory<SocketChan
 
     @Override
     protected SocketChannel newChannel0() throws IOException {
-        return SocketChannel.open();
+        return provider.openSocketChannel();
     }
 }
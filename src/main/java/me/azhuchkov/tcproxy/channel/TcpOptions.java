@@ -0,0 +1,67 @@
+package me.azhuchkov.tcproxy.channel;
+
+import java.lang.reflect.Field;
+import java.net.SocketOption;
+import java.util.logging.Logger;
+
+/**
+ * Resolves platform specific TCP options by name. Options are looked up in
+ * {@code jdk.net.ExtendedSocketOptions}, so they are available only on JDK and OS that support them,
+ * e.g. {@code TCP_QUICKACK} and keep-alive tuning on Linux. {@code TCP_FASTOPEN_CONNECT},
+ * {@code TCP_NOTSENT_LOWAT} and {@code TCP_USER_TIMEOUT} are not exposed by any JDK, so they're not supported.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class TcpOptions {
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(TcpOptions.class.getName());
+
+    /** Class that declares extended options. */
+    private static final String EXTENDED_OPTIONS = "jdk.net.ExtendedSocketOptions";
+
+    /**
+     * Disables delayed ACKs. Linux may turn delayed ACKs on again later,
+     * so the option is a hint applied when connection is set up.
+     */
+    public static final String QUICKACK = "TCP_QUICKACK";
+
+    /** Idle time before the first keep-alive probe, s. */
+    public static final String KEEPIDLE = "TCP_KEEPIDLE";
+
+    /** Interval between keep-alive probes, s. */
+    public static final String KEEPINTERVAL = "TCP_KEEPINTERVAL";
+
+    /** Count of unanswered keep-alive probes before connection is dropped. */
+    public static final String KEEPCOUNT = "TCP_KEEPCOUNT";
+
+    /**
+     * Utility class.
+     */
+    private TcpOptions() {
+    }
+
+    /**
+     * Resolves option by its name in {@code jdk.net.ExtendedSocketOptions}.
+     * If option is unavailable on this platform, warning is logged.
+     *
+     * @param name Option name, e.g. {@value #QUICKACK}.
+     * @return Socket option or {@code null} if it's unavailable.
+     */
+    public static SocketOption<?> forName(String name) {
+        try {
+            Field field = Class.forName(EXTENDED_OPTIONS).getField(name);
+
+            Object option = field.get(null);
+
+            if (option instanceof SocketOption)
+                return (SocketOption<?>) option;
+        } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+            // falls through to the warning
+        }
+
+        LOGGER.warning("TCP option " + name + " is unavailable on this platform and will be ignored");
+
+        return null;
+    }
+}
@@ -0,0 +1,202 @@
+package me.azhuchkov.tcproxy.channel;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Path;
+
+/**
+ * Access to Unix domain sockets of JDK 16+. Since the sources target older JDK, classes and methods
+ * are resolved via reflection once, and all methods throw {@link UnsupportedOperationException}
+ * if running JVM lacks them.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class UnixDomainSockets {
+    /** {@code StandardProtocolFamily.UNIX} or {@code null} if unsupported. */
+    private static final ProtocolFamily UNIX;
+
+    /** {@code UnixDomainSocketAddress} class or {@code null} if unsupported. */
+    private static final Class<?> ADDRESS_CLASS;
+
+    /** {@code UnixDomainSocketAddress.of(String)}. */
+    private static final Method ADDRESS_OF;
+
+    /** {@code UnixDomainSocketAddress.getPath()}. */
+    private static final Method ADDRESS_PATH;
+
+    /** {@code SelectorProvider.openSocketChannel(ProtocolFamily)}. */
+    private static final Method OPEN_SOCKET_CHANNEL;
+
+    /** {@code SelectorProvider.openServerSocketChannel(ProtocolFamily)}. */
+    private static final Method OPEN_SERVER_SOCKET_CHANNEL;
+
+    static {
+        ProtocolFamily unix = null;
+        Class<?> addressClass = null;
+        Method addressOf = null;
+        Method addressPath = null;
+        Method openSocketChannel = null;
+        Method openServerSocketChannel = null;
+
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+            addressOf = addressClass.getMethod("of", String.class);
+            addressPath = addressClass.getMethod("getPath");
+            openSocketChannel = SelectorProvider.class.getMethod("openSocketChannel", ProtocolFamily.class);
+            openServerSocketChannel = SelectorProvider.class.getMethod("openServerSocketChannel", ProtocolFamily.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            unix = null;
+            addressClass = null;
+        }
+
+        UNIX = unix;
+        ADDRESS_CLASS = addressClass;
+        ADDRESS_OF = addressOf;
+        ADDRESS_PATH = addressPath;
+        OPEN_SOCKET_CHANNEL = openSocketChannel;
+        OPEN_SERVER_SOCKET_CHANNEL = openServerSocketChannel;
+    }
+
+    /**
+     * Utility class.
+     */
+    private UnixDomainSockets() {
+    }
+
+    /**
+     * @return Whether running JVM supports Unix domain socket channels.
+     */
+    public static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /**
+     * @param address Socket address.
+     * @return Whether given address is Unix domain socket address.
+     */
+    public static boolean isUnixAddress(SocketAddress address) {
+        return ADDRESS_CLASS != null && ADDRESS_CLASS.isInstance(address);
+    }
+
+    /**
+     * Creates Unix domain socket address.
+     *
+     * @param path Socket file path.
+     * @return Socket address.
+     * @throws UnsupportedOperationException If Unix domain sockets are unsupported.
+     * @throws IllegalArgumentException      If path is invalid.
+     */
+    public static SocketAddress address(String path) {
+        checkSupported();
+
+        return (SocketAddress) invoke(ADDRESS_OF, null, path);
+    }
+
+    /**
+     * @param address Unix domain socket address.
+     * @return Socket file path.
+     */
+    public static Path path(SocketAddress address) {
+        checkSupported();
+
+        return (Path) invoke(ADDRESS_PATH, address);
+    }
+
+    /**
+     * Opens Unix domain socket channel.
+     *
+     * @param provider Provider to open channel with.
+     * @return New channel.
+     * @throws IOException                   If I/O error occurs.
+     * @throws UnsupportedOperationException If Unix domain sockets are unsupported.
+     */
+    public static SocketChannel openSocketChannel(SelectorProvider provider) throws IOException {
+        checkSupported();
+
+        return (SocketChannel) open(OPEN_SOCKET_CHANNEL, provider);
+    }
+
+    /**
+     * Opens Unix domain server socket channel.
+     *
+     * @param provider Provider to open channel with.
+     * @return New channel.
+     * @throws IOException                   If I/O error occurs.
+     * @throws UnsupportedOperationException If Unix domain sockets are unsupported.
+     */
+    public static ServerSocketChannel openServerSocketChannel(SelectorProvider provider) throws IOException {
+        checkSupported();
+
+        return (ServerSocketChannel) open(OPEN_SERVER_SOCKET_CHANNEL, provider);
+    }
+
+    /**
+     * @throws UnsupportedOperationException If Unix domain sockets are unsupported.
+     */
+    private static void checkSupported() {
+        if (UNIX == null)
+            throw new UnsupportedOperationException("Unix domain sockets require JDK 16 or later");
+    }
+
+    /**
+     * Opens channel of Unix protocol family.
+     *
+     * @param method   Provider method.
+     * @param provider Selector provider.
+     * @return New channel.
+     * @throws IOException If I/O error occurs.
+     */
+    private static Object open(Method method, SelectorProvider provider) throws IOException {
+        try {
+            return method.invoke(provider, UNIX);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw rethrow(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Invokes method that throws no checked exceptions.
+     *
+     * @param method Method.
+     * @param target Target object or {@code null} for static method.
+     * @param args   Arguments.
+     * @return Method result.
+     */
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw rethrow(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param e Exception thrown by invoked method.
+     * @return Unchecked cause to throw.
+     */
+    private static RuntimeException rethrow(InvocationTargetException e) {
+        if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+
+        if (e.getCause() instanceof Error)
+            throw (Error) e.getCause();
+
+        return new IllegalStateException(e.getCause());
+    }
+}
@@ -0,0 +1,44 @@
+package me.azhuchkov.tcproxy.channel;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
+
+/**
+ * Unix domain server socket channel factory. Requires JDK 16 or later at runtime.
+ * Options that Unix domain sockets lack (e.g. {@code SO_REUSEADDR}) are skipped,
+ * so the factory may share options with TCP one.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ * @see UnixDomainSockets
+ */
+public final class UnixServerSocketChannelFactory extends NetworkChannelFactory<ServerSocketChannel> {
+    /**
+     * Use {@link #create()} factory method instead.
+     */
+    private UnixServerSocketChannelFactory() {
+        super(new HashMap<SocketOption<Object>, Object>());
+    }
+
+    /**
+     * Creates new factory builder.
+     *
+     * @return Factory builder instance.
+     */
+    public static Builder<UnixServerSocketChannelFactory> create() {
+        return new Builder<>(new UnixServerSocketChannelFactory());
+    }
+
+    @Override
+    protected ServerSocketChannel newChannel0() throws IOException {
+        return UnixDomainSockets.openServerSocketChannel(provider);
+    }
+
+    @Override
+    protected boolean isApplicable(SocketOption<?> option) {
+        return option == StandardSocketOptions.SO_RCVBUF;
+    }
+}
@@ -0,0 +1,45 @@
+package me.azhuchkov.tcproxy.channel;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+
+/**
+ * Unix domain socket channel factory. Requires JDK 16 or later at runtime.
+ * Options that Unix domain sockets lack (e.g. {@code TCP_NODELAY}) are skipped,
+ * so the factory may share options with TCP one.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ * @see UnixDomainSockets
+ */
+public final class UnixSocketChannelFactory extends NetworkChannelFactory<SocketChannel> {
+    /**
+     * Use {@link #create()} factory method instead.
+     */
+    private UnixSocketChannelFactory() {
+        super(new HashMap<SocketOption<Object>, Object>());
+    }
+
+    /**
+     * Creates new factory builder.
+     *
+     * @return Factory builder instance.
+     */
+    public static Builder<UnixSocketChannelFactory> create() {
+        return new Builder<>(new UnixSocketChannelFactory());
+    }
+
+    @Override
+    protected SocketChannel newChannel0() throws IOException {
+        return UnixDomainSockets.openSocketChannel(provider);
+    }
+
+    @Override
+    protected boolean isApplicable(SocketOption<?> option) {
+        return option == StandardSocketOptions.SO_SNDBUF || option == StandardSocketOptions.SO_RCVBUF ||
+                option == StandardSocketOptions.SO_LINGER;
+    }
+}
@@ -1,34 +1,70 @@
 package me.azhuchkov.tcproxy.config;
 
 import me.azhuchkov.tcproxy.PortMapping;
+import me.azhuchkov.tcproxy.WorkerGroup;
+import me.azhuchkov.tcproxy.channel.NetworkChannelFactory;
+import me.azhuchkov.tcproxy.channel.SocketChannelFactory;
+import me.azhuchkov.tcproxy.channel.TcpOptions;
+import me.azhuchkov.tcproxy.channel.UnixDomainSockets;
+import me.azhuchkov.tcproxy.tls.TlsSettings;
+import me.azhuchkov.tcproxy.tunnel.TunnelSettings;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.URL;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * TCP Mapper configuration. It contains mappings between local ports and remote endpoints.
+ * TCP Mapper configuration. It contains mappings between local ports and remote endpoints
+ * and named worker groups that serve them.
  *
  * @author Andrey Zhuchkov
  *         Date: 09.08.14
  */
 public final class Configuration {
+    /**
+     * Names of platform specific TCP options of mapping and names of corresponding {@link TcpOptions}.
+     */
+    private static final String[][] TCP_OPTIONS = {
+            {"quickAck", TcpOptions.QUICKACK},
+            {"keepIdle", TcpOptions.KEEPIDLE},
+            {"keepInterval", TcpOptions.KEEPINTERVAL},
+            {"keepCount", TcpOptions.KEEPCOUNT}
+    };
+
+    /**
+     * Names of TCP options that can't be set, since no JDK exposes them.
+     */
+    private static final String[] UNSUPPORTED_TCP_OPTIONS = {"fastOpenConnect", "notSentLowat", "userTimeout"};
+
     /**
      * TCP port mappings.
      */
     private final Collection<PortMapping> mappings;
 
+    /**
+     * Named worker groups.
+     */
+    private final Collection<WorkerGroup> groups;
+
     /**
      * For internal usage only. Use factory-methods instead.
      *
      * @param mappings Collection of port mappings.
+     * @param groups   Collection of worker groups.
      */
-    private Configuration(Collection<PortMapping> mappings) {
+    private Configuration(Collection<PortMapping> mappings, Collection<WorkerGroup> groups) {
         this.mappings = mappings;
+        this.groups = groups;
     }
 
     /**
@@ -40,6 +76,15 @@ public final class Configuration {
         return Collections.unmodifiableCollection(mappings);
     }
 
+    /**
+     * Returns named worker groups.
+     *
+     * @return Unmodifiable view of worker groups.
+     */
+    public Collection<WorkerGroup> groups() {
+        return Collections.unmodifiableCollection(groups);
+    }
+
     /**
      * Parses properties file located at the given URL address.
      * Uses the same rules as {@link #parse(java.io.InputStream)}.
@@ -60,6 +105,51 @@ public final class Configuration {
      * Parses properties configuration from the given stream. Searches for options that describes
      * local ports to bind and then finds the rest of configuration for them. Other lines would
      * be ignored.
+     * <p/>
+     * Local port may be given as a range {@code <from>-<to>}, e.g. {@code 10000-10999}. Then each
+     * port of the range is mapped to the port at the same offset of remote port range of the same size,
+     * or to single remote port. Remote host is resolved once per mapping.
+     * <p/>
+     * Unix domain socket (JDK 16 or later) is set with {@code <title>.localPath} instead of local port
+     * and with {@code <title>.remotePath} instead of remote host and port.
+     * <p/>
+     * Mapping may have several backends {@code <title>.backends = <host>:<port>, <host>:<port>, ...}
+     * instead of remote host and port. Then backend of each client is chosen by consistent hashing
+     * of client IP address, so the same client reaches the same backend.
+     * <p/>
+     * Client stream of TCP mapping is copied to shadow backend {@code <title>.mirror = <host>:<port>}
+     * if it's set. Responses of shadow backend are discarded.
+     * <p/>
+     * TCP mapping with {@code <title>.tunnel = connect} carries its client connections over
+     * {@code <title>.tunnel.connections} persistent connections to peer proxy, which is remote endpoint
+     * of the mapping, optionally compressed with {@code <title>.tunnel.compression = deflate}. Mapping
+     * of peer proxy with {@code <title>.tunnel = accept} relays carried connections to its remote endpoint.
+     * <p/>
+     * TCP mapping terminates TLS of client connections if {@code <title>.client.tls.keyStore} is set
+     * along with {@code keyStorePassword} and optional {@code keyStoreType}. It originates TLS to remote
+     * endpoint with {@code <title>.upstream.tls = true}, certificate of remote endpoint is verified with
+     * optional {@code trustStore}, {@code trustStorePassword} and {@code trustStoreType} against
+     * {@code serverName} (remote host by default, host of each backend for mapping with several backends)
+     * unless {@code verifyHostname = false}. Mapping to Unix domain socket must set {@code serverName} or turn
+     * verification off. Both sides accept
+     * {@code protocols}, {@code sessionCacheSize} and {@code sessionTimeout} (seconds) under their prefix.
+     * <p/>
+     * Mapping forwards TCP connections unless {@code <title>.protocol = udp} is set. UDP mapping
+     * relays datagrams of each client address through its own upstream socket. Socket options and
+     * transfer buffer size of mapping apply to TCP only.
+     * <p/>
+     * Worker groups are described as {@code group.<name>.workers} with optional
+     * {@code group.<name>.transferBuf} and {@code group.<name>.minTransferBuf}. Mapping is assigned
+     * to the group with {@code <title>.group = <name>}, otherwise it's served by default group.
+     * <p/>
+     * Mapping may override server socket options separately for client connections and connections
+     * to remote endpoint with {@code <title>.client.<option>} and {@code <title>.upstream.<option>},
+     * where option is one of {@code sendBuf}, {@code receiveBuf}, {@code noDelay} and {@code keepAlive}
+     * or platform specific {@code quickAck}, {@code keepIdle}, {@code keepInterval} and {@code keepCount}.
+     * Platform specific options that are unavailable are ignored with warning. {@code fastOpenConnect},
+     * {@code notSentLowat} and {@code userTimeout} are rejected, since no JDK exposes them.
+     * Maximal transfer buffer size of the mapping is set with {@code <title>.transferBuf}, it's
+     * limited by buffer size of the worker group.
      *
      * @param input Configuration input stream. The stream contains data in properties format.
      * @return Configuration object according to properties file.
@@ -72,49 +162,587 @@ public final class Configuration {
 
         properties.load(input);
 
-        final Pattern localPortPattern = Pattern.compile("(?<title>.*)\\.localPort");
+        Map<String, WorkerGroup> groups = parseGroups(properties);
+
+        final Pattern localPattern = Pattern.compile("(?<title>.*)\\.local(?<kind>Port|Path)");
 
+        // TCP and UDP mappings go first ordered by protocol and port, then Unix domain socket ones ordered by path
         Collection<PortMapping> result = new TreeSet<>(new Comparator<PortMapping>() {
             @Override
             public int compare(PortMapping o1, PortMapping o2) {
-                Integer port1 = o1.localAddress().getPort();
-                Integer port2 = o2.localAddress().getPort();
+                SocketAddress address1 = o1.localAddress();
+                SocketAddress address2 = o2.localAddress();
 
-                return port1.compareTo(port2);
+                boolean tcp1 = address1 instanceof InetSocketAddress;
+                boolean tcp2 = address2 instanceof InetSocketAddress;
+
+                if (tcp1 && tcp2) {
+                    int cmp = o1.protocol().compareTo(o2.protocol());
+
+                    if (cmp != 0)
+                        return cmp;
+
+                    Integer port1 = ((InetSocketAddress) address1).getPort();
+                    Integer port2 = ((InetSocketAddress) address2).getPort();
+
+                    return port1.compareTo(port2);
+                }
+
+                if (tcp1 != tcp2)
+                    return tcp1 ? -1 : 1;
+
+                return address1.toString().compareTo(address2.toString());
             }
         });
 
         for (String name : properties.stringPropertyNames()) {
-            Matcher matcher = localPortPattern.matcher(name);
+            Matcher matcher = localPattern.matcher(name);
 
             if (!matcher.matches())
                 continue;
 
-            int localPort = parsePort(properties.getProperty(name));
-
             String title = matcher.group("title");
 
+            boolean localUnix = "Path".equals(matcher.group("kind"));
+
+            if (localUnix && properties.getProperty(title + ".localPort") != null)
+                throw new ConfigurationException("Both local port and path are set for mapping: " + title);
+
+            int[] localPorts = localUnix ? new int[]{0, 0} : parsePortRange(properties.getProperty(name));
+
+            String remotePath = properties.getProperty(title + ".remotePath");
+
+            PortMapping.Protocol protocol = parseProtocol(properties.getProperty(title + ".protocol"), title);
+
+            if (protocol == PortMapping.Protocol.UDP && (localUnix || remotePath != null))
+                throw new ConfigurationException("Unix domain sockets are not supported by UDP mapping: " + title);
+
+            String backends = properties.getProperty(title + ".backends");
+
             String remoteHost = properties.getProperty(title + ".remoteHost");
 
-            if (remoteHost == null)
+            String remotePort0 = properties.getProperty(title + ".remotePort");
+
+            if (backends != null && (remoteHost != null || remotePort0 != null || remotePath != null))
+                throw new ConfigurationException("Both backends and remote address are set for mapping: " + title);
+
+            if (remoteHost == null && remotePath == null && backends == null)
                 throw new ConfigurationException("Remote host must be set for mapping: " + title);
 
-            String remotePort0 = properties.getProperty(title + ".remotePort");
+            if (remoteHost != null && remotePath != null)
+                throw new ConfigurationException("Both remote host and path are set for mapping: " + title);
 
-            if (remotePort0 == null)
+            if (remotePort0 == null && remotePath == null && backends == null)
                 throw new ConfigurationException("Remote port must be set for mapping: " + title);
 
-            int remotePort = parsePort(remotePort0);
+            int[] remotePorts = remotePort0 != null ? parsePortRange(remotePort0) : new int[]{0, 0};
+
+            boolean remoteRange = remotePorts[0] != remotePorts[1];
+
+            if (remoteRange && remotePorts[1] - remotePorts[0] != localPorts[1] - localPorts[0])
+                throw new ConfigurationException("Local and remote port ranges differ in size for mapping: " + title);
+
+            String group = properties.getProperty(title + ".group", WorkerGroup.DEFAULT).trim();
+
+            if (!WorkerGroup.DEFAULT.equals(group) && !groups.containsKey(group))
+                throw new ConfigurationException("Unknown worker group '" + group + "' of mapping: " + title);
+
+            // the whole range shares the same settings
+            NetworkChannelFactory<SocketChannel> clientSocketFactory =
+                    parseSocketOptions(properties, title + ".client");
+            NetworkChannelFactory<SocketChannel> upstreamSocketFactory =
+                    parseSocketOptions(properties, title + ".upstream");
+
+            String bufferSize0 = properties.getProperty(title + ".transferBuf");
+
+            int bufferSize = bufferSize0 == null ? 0 : parsePositive(bufferSize0, title + ".transferBuf");
+
+            String mirror0 = properties.getProperty(title + ".mirror");
+
+            if (mirror0 != null && protocol != PortMapping.Protocol.TCP)
+                throw new ConfigurationException("Mirroring is supported by TCP mappings only: " + title);
+
+            SocketAddress mirror = mirror0 == null ? null : parseAddress(mirror0.trim(), title);
+
+            TunnelSettings tunnel = parseTunnel(properties, title);
+
+            if (tunnel != null && protocol != PortMapping.Protocol.TCP)
+                throw new ConfigurationException("Tunnel is supported by TCP mappings only: " + title);
+
+            if (tunnel != null && mirror != null)
+                throw new ConfigurationException("Mirroring is not supported by tunnel mapping: " + title);
+
+            TlsSettings clientTls = parseClientTls(properties, title);
+            TlsSettings upstreamTls = parseUpstreamTls(properties, title, remoteHost, remotePath != null);
+
+            if ((clientTls != null || upstreamTls != null) && protocol != PortMapping.Protocol.TCP)
+                throw new ConfigurationException("TLS is supported by TCP mappings only: " + title);
+
+            if ((clientTls != null || upstreamTls != null) && tunnel != null)
+                throw new ConfigurationException("TLS is not supported by tunnel mapping: " + title);
+
+            if (localUnix || remotePath != null || backends != null) {
+                List<SocketAddress> remotes;
+
+                if (backends != null)
+                    remotes = parseBackends(backends, title);
+                else if (remotePath != null)
+                    remotes = Collections.singletonList(unixAddress(remotePath, title));
+                else
+                    remotes = Collections.<SocketAddress>singletonList(
+                            new InetSocketAddress(remoteHost, remotePorts[0]));
+
+                for (int localPort = localPorts[0]; localPort <= localPorts[1]; localPort++) {
+                    SocketAddress local = localUnix ? unixAddress(properties.getProperty(name), title) :
+                            new InetSocketAddress(localPort);
+
+                    PortMapping mapping = new PortMapping(title, protocol, local, remotes, group,
+                            clientSocketFactory, upstreamSocketFactory, bufferSize, mirror, tunnel,
+                            clientTls, upstreamTls);
+
+                    if (!result.add(mapping))
+                        throw new ConfigurationException("Duplicated listening address in configuration: " + local);
+                }
+
+                continue;
+            }
+
+            // resolve host once for the whole range
+            InetSocketAddress firstRemote = new InetSocketAddress(remoteHost, remotePorts[0]);
+
+            for (int localPort = localPorts[0]; localPort <= localPorts[1]; localPort++) {
+                int remotePort = remoteRange ? remotePorts[0] + (localPort - localPorts[0]) : remotePorts[0];
+
+                InetSocketAddress remote;
+
+                if (remotePort == firstRemote.getPort())
+                    remote = firstRemote;
+                else if (firstRemote.isUnresolved())
+                    remote = InetSocketAddress.createUnresolved(remoteHost, remotePort);
+                else
+                    remote = new InetSocketAddress(firstRemote.getAddress(), remotePort);
+
+                PortMapping mapping = new PortMapping(title, protocol, new InetSocketAddress(localPort),
+                        Collections.singletonList(remote), group, clientSocketFactory, upstreamSocketFactory,
+                        bufferSize, mirror, tunnel, clientTls, upstreamTls);
+
+                if (!result.add(mapping))
+                    throw new ConfigurationException("Duplicated listening port in configuration: " + localPort);
+            }
+        }
+
+        return new Configuration(result, groups.values());
+    }
+
+    /**
+     * Parses worker groups.
+     *
+     * @param properties Configuration properties.
+     * @return Worker groups by their names.
+     * @throws ConfigurationException If configuration contains errors.
+     */
+    private static Map<String, WorkerGroup> parseGroups(Properties properties) throws ConfigurationException {
+        final Pattern groupPattern = Pattern.compile("group\\.(?<name>[^.]+)\\.workers");
+
+        Map<String, WorkerGroup> groups = new TreeMap<>();
+
+        for (String name : properties.stringPropertyNames()) {
+            Matcher matcher = groupPattern.matcher(name);
+
+            if (!matcher.matches())
+                continue;
+
+            String group = matcher.group("name");
+
+            if (WorkerGroup.DEFAULT.equals(group))
+                throw new ConfigurationException("Group name is reserved: " + group);
+
+            int workers = parsePositive(properties.getProperty(name), name);
+
+            String bufferSize = properties.getProperty("group." + group + ".transferBuf");
+            String minBufferSize = properties.getProperty("group." + group + ".minTransferBuf");
+
+            try {
+                groups.put(group, new WorkerGroup(group, workers,
+                        bufferSize == null ? 0 : parsePositive(bufferSize, "group." + group + ".transferBuf"),
+                        minBufferSize == null ? 0 : parsePositive(minBufferSize, "group." + group + ".minTransferBuf")));
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("Invalid worker group: " + group, e);
+            }
+        }
+
+        return groups;
+    }
+
+    /**
+     * Parses socket options of one side of mapping connections.
+     *
+     * @param properties Configuration properties.
+     * @param prefix     Prefix of option names.
+     * @return Factory with given options or {@code null} if there are no options.
+     * @throws ConfigurationException If configuration contains errors.
+     */
+    private static NetworkChannelFactory<SocketChannel> parseSocketOptions(Properties properties, String prefix)
+            throws ConfigurationException {
+        String sendBuf = properties.getProperty(prefix + ".sendBuf");
+        String receiveBuf = properties.getProperty(prefix + ".receiveBuf");
+        String noDelay = properties.getProperty(prefix + ".noDelay");
+        String keepAlive = properties.getProperty(prefix + ".keepAlive");
+
+        for (String unsupported : UNSUPPORTED_TCP_OPTIONS) {
+            if (properties.getProperty(prefix + "." + unsupported) != null)
+                throw new ConfigurationException("TCP option is not supported: " + prefix + "." + unsupported);
+        }
+
+        boolean tcpOptions = false;
+
+        for (String[] tcpOption : TCP_OPTIONS)
+            tcpOptions |= properties.getProperty(prefix + "." + tcpOption[0]) != null;
+
+        if (sendBuf == null && receiveBuf == null && noDelay == null && keepAlive == null && !tcpOptions)
+            return null;
+
+        NetworkChannelFactory.Builder<SocketChannelFactory> builder = SocketChannelFactory.create();
+
+        if (sendBuf != null)
+            builder.option(StandardSocketOptions.SO_SNDBUF, parsePositive(sendBuf, prefix + ".sendBuf"));
+
+        if (receiveBuf != null)
+            builder.option(StandardSocketOptions.SO_RCVBUF, parsePositive(receiveBuf, prefix + ".receiveBuf"));
+
+        if (noDelay != null)
+            builder.option(StandardSocketOptions.TCP_NODELAY, Boolean.valueOf(noDelay.trim()));
+
+        if (keepAlive != null)
+            builder.option(StandardSocketOptions.SO_KEEPALIVE, Boolean.valueOf(keepAlive.trim()));
+
+        for (String[] tcpOption : TCP_OPTIONS) {
+            String name = prefix + "." + tcpOption[0];
+            String value = properties.getProperty(name);
+
+            if (value == null)
+                continue;
+
+            SocketOption<?> option = TcpOptions.forName(tcpOption[1]);
+
+            if (option != null)
+                setOption(builder, option, value, name);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Parses value of socket option according to its type and sets it to factory.
+     *
+     * @param builder Factory builder.
+     * @param option  Socket option.
+     * @param value   Option value.
+     * @param name    Option name in configuration.
+     * @param <T>     Option value type.
+     * @throws ConfigurationException If value is invalid or option has unknown type.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> void setOption(NetworkChannelFactory.Builder<SocketChannelFactory> builder,
+                                      SocketOption<T> option, String value, String name)
+            throws ConfigurationException {
+        Object parsed;
+
+        if (option.type() == Boolean.class)
+            parsed = Boolean.valueOf(value.trim());
+        else if (option.type() == Integer.class)
+            parsed = parsePositive(value, name);
+        else
+            throw new ConfigurationException("Unsupported type " + option.type().getName() + " of " + name);
+
+        builder.option(option, (T) parsed);
+    }
 
-            PortMapping mapping = new PortMapping(title, new InetSocketAddress(localPort),
-                    new InetSocketAddress(remoteHost, remotePort));
+    /**
+     * Parses positive integer value of option.
+     *
+     * @param value Option value.
+     * @param name  Option name.
+     * @return Parsed value.
+     * @throws ConfigurationException If value is not a positive number.
+     */
+    private static int parsePositive(String value, String name) throws ConfigurationException {
+        int result;
 
-            if (!result.add(mapping))
-                throw new ConfigurationException("Duplicated listening port in configuration: " +
-                        mapping.localAddress().getPort());
+        try {
+            result = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("Invalid value of " + name + ": " + value, e);
         }
 
-        return new Configuration(result);
+        if (result <= 0)
+            throw new ConfigurationException("Invalid value of " + name + ": " + value);
+
+        return result;
+    }
+
+    /**
+     * Parses comma separated list of backends {@code <host>:<port>}. IPv6 host is enclosed
+     * in square brackets. Each host is resolved once.
+     *
+     * @param value Option value.
+     * @param title Mapping title.
+     * @return Backend addresses.
+     * @throws ConfigurationException If value is invalid.
+     */
+    private static List<SocketAddress> parseBackends(String value, String title) throws ConfigurationException {
+        List<SocketAddress> backends = new ArrayList<>();
+
+        for (String backend : value.split(",")) {
+            backend = backend.trim();
+
+            InetSocketAddress address = parseAddress(backend, title);
+
+            if (backends.contains(address))
+                throw new ConfigurationException("Duplicated backend of mapping " + title + ": " + backend);
+
+            backends.add(address);
+        }
+
+        return backends;
+    }
+
+    /**
+     * Parses address {@code <host>:<port>} and resolves it. IPv6 host is enclosed in square brackets.
+     *
+     * @param value Address.
+     * @param title Mapping title.
+     * @return Socket address.
+     * @throws ConfigurationException If value is invalid.
+     */
+    private static InetSocketAddress parseAddress(String value, String title) throws ConfigurationException {
+        int colon = value.lastIndexOf(':');
+
+        if (colon <= 0)
+            throw new ConfigurationException("Invalid address of mapping " + title + ": " + value);
+
+        String host = value.substring(0, colon);
+
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+
+        return new InetSocketAddress(host, parsePort(value.substring(colon + 1)));
+    }
+
+    /**
+     * Parses transport protocol of mapping.
+     *
+     * @param value Option value or {@code null}.
+     * @param title Mapping title.
+     * @return Protocol, TCP by default.
+     * @throws ConfigurationException If protocol is unknown.
+     */
+    private static PortMapping.Protocol parseProtocol(String value, String title) throws ConfigurationException {
+        if (value == null)
+            return PortMapping.Protocol.TCP;
+
+        try {
+            return PortMapping.Protocol.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Unknown protocol of mapping " + title + ": " + value, e);
+        }
+    }
+
+    /**
+     * Parses tunnel settings of mapping.
+     *
+     * @param properties Configuration properties.
+     * @param title      Mapping title.
+     * @return Tunnel settings or {@code null} if mapping is not a tunnel one.
+     * @throws ConfigurationException If settings are invalid.
+     */
+    private static TunnelSettings parseTunnel(Properties properties, String title) throws ConfigurationException {
+        String mode0 = properties.getProperty(title + ".tunnel");
+
+        if (mode0 == null)
+            return null;
+
+        TunnelSettings.Mode mode;
+        TunnelSettings.Compression compression;
+
+        try {
+            mode = TunnelSettings.Mode.valueOf(mode0.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Unknown tunnel mode of mapping " + title + ": " + mode0, e);
+        }
+
+        String compression0 = properties.getProperty(title + ".tunnel.compression", "none");
+
+        try {
+            compression = TunnelSettings.Compression.valueOf(compression0.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Unknown tunnel compression of mapping " + title + ": " +
+                    compression0, e);
+        }
+
+        String connections0 = properties.getProperty(title + ".tunnel.connections");
+
+        int connections = connections0 == null ? TunnelSettings.DEFAULT_CONNECTIONS :
+                parsePositive(connections0, title + ".tunnel.connections");
+
+        return new TunnelSettings(mode, connections, compression);
+    }
+
+    /**
+     * Parses TLS settings of client connections.
+     *
+     * @param properties Configuration properties.
+     * @param title      Mapping title.
+     * @return TLS settings or {@code null} if client connections are not encrypted.
+     * @throws ConfigurationException If settings are invalid or key store can't be loaded.
+     */
+    private static TlsSettings parseClientTls(Properties properties, String title) throws ConfigurationException {
+        String prefix = title + ".client.tls";
+
+        String keyStore = properties.getProperty(prefix + ".keyStore");
+
+        if (keyStore == null)
+            return null;
+
+        String password = properties.getProperty(prefix + ".keyStorePassword");
+
+        if (password == null)
+            throw new ConfigurationException("Key store password must be set for mapping: " + title);
+
+        try {
+            return TlsSettings.server(keyStore.trim(),
+                    properties.getProperty(prefix + ".keyStoreType", KeyStore.getDefaultType()).trim(),
+                    password.toCharArray(),
+                    parseProtocols(properties, prefix),
+                    parseSessionCacheSize(properties, prefix),
+                    parseSessionTimeout(properties, prefix));
+        } catch (IOException | GeneralSecurityException e) {
+            throw new ConfigurationException("Failed to initialize TLS of client connections of mapping: " + title, e);
+        }
+    }
+
+    /**
+     * Parses TLS settings of connections to remote endpoint.
+     *
+     * @param properties Configuration properties.
+     * @param title      Mapping title.
+     * @param remoteHost Remote host or {@code null} if mapping has several backends or Unix domain socket.
+     * @param remoteUnix Whether remote endpoint is Unix domain socket, so it has no host to verify.
+     * @return TLS settings or {@code null} if connections to remote endpoint are not encrypted.
+     * @throws ConfigurationException If settings are invalid or trust store can't be loaded.
+     */
+    private static TlsSettings parseUpstreamTls(Properties properties, String title, String remoteHost,
+                                                boolean remoteUnix)
+            throws ConfigurationException {
+        String prefix = title + ".upstream.tls";
+
+        if (!Boolean.parseBoolean(properties.getProperty(prefix, "false").trim()))
+            return null;
+
+        String trustStore = properties.getProperty(prefix + ".trustStore");
+        String password = properties.getProperty(prefix + ".trustStorePassword");
+
+        // without server name each backend is verified against its own host
+        String serverName = properties.getProperty(prefix + ".serverName", remoteHost);
+
+        boolean verifyHostname =
+                Boolean.parseBoolean(properties.getProperty(prefix + ".verifyHostname", "true").trim());
+
+        if (verifyHostname && serverName == null && remoteUnix)
+            throw new ConfigurationException("Server name must be set to verify Unix domain socket endpoint " +
+                    "of mapping: " + title);
+
+        try {
+            return TlsSettings.client(trustStore == null ? null : trustStore.trim(),
+                    properties.getProperty(prefix + ".trustStoreType", KeyStore.getDefaultType()).trim(),
+                    password == null ? null : password.toCharArray(),
+                    serverName == null ? null : serverName.trim(),
+                    verifyHostname,
+                    parseProtocols(properties, prefix),
+                    parseSessionCacheSize(properties, prefix),
+                    parseSessionTimeout(properties, prefix));
+        } catch (IOException | GeneralSecurityException e) {
+            throw new ConfigurationException("Failed to initialize TLS of upstream connections of mapping: " +
+                    title, e);
+        }
+    }
+
+    /**
+     * @param properties Configuration properties.
+     * @param prefix     Prefix of TLS settings.
+     * @return Enabled protocols or {@code null} for defaults of the platform.
+     */
+    private static String[] parseProtocols(Properties properties, String prefix) {
+        String protocols = properties.getProperty(prefix + ".protocols");
+
+        return protocols == null ? null : protocols.trim().split("\\s*,\\s*");
+    }
+
+    /**
+     * @param properties Configuration properties.
+     * @param prefix     Prefix of TLS settings.
+     * @return Count of cached sessions.
+     * @throws ConfigurationException If value is invalid.
+     */
+    private static int parseSessionCacheSize(Properties properties, String prefix) throws ConfigurationException {
+        String size = properties.getProperty(prefix + ".sessionCacheSize");
+
+        return size == null ? TlsSettings.DEFAULT_SESSION_CACHE_SIZE :
+                parsePositive(size, prefix + ".sessionCacheSize");
+    }
+
+    /**
+     * @param properties Configuration properties.
+     * @param prefix     Prefix of TLS settings.
+     * @return Lifetime of cached session, seconds.
+     * @throws ConfigurationException If value is invalid.
+     */
+    private static int parseSessionTimeout(Properties properties, String prefix) throws ConfigurationException {
+        String timeout = properties.getProperty(prefix + ".sessionTimeout");
+
+        return timeout == null ? TlsSettings.DEFAULT_SESSION_TIMEOUT :
+                parsePositive(timeout, prefix + ".sessionTimeout");
+    }
+
+    /**
+     * Creates Unix domain socket address.
+     *
+     * @param path  Socket file path.
+     * @param title Mapping title.
+     * @return Socket address.
+     * @throws ConfigurationException If path is invalid or Unix domain sockets are unsupported.
+     */
+    private static SocketAddress unixAddress(String path, String title) throws ConfigurationException {
+        try {
+            return UnixDomainSockets.address(path.trim());
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid Unix domain socket path of mapping " + title + ": " + path, e);
+        }
+    }
+
+    /**
+     * Parses port or port range {@code <from>-<to>}.
+     *
+     * @param range Port or port range as a string.
+     * @return Array of the first and the last ports of the range (equal for single port).
+     * @throws ConfigurationException If value is invalid.
+     */
+    private static int[] parsePortRange(String range) throws ConfigurationException {
+        int dash = range.indexOf('-');
+
+        if (dash < 0) {
+            int port = parsePort(range.trim());
+
+            return new int[]{port, port};
+        }
+
+        int from = parsePort(range.substring(0, dash).trim());
+        int to = parsePort(range.substring(dash + 1).trim());
+
+        if (to < from)
+            throw new ConfigurationException("Invalid port range: " + range);
+
+        return new int[]{from, to};
     }
 
     /**
@@ -0,0 +1,27 @@
+package me.azhuchkov.tcproxy.event;
+
+/**
+ * Reason proxied connection has been closed for.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public enum CloseReason {
+    /** Client has closed connection. */
+    CLIENT_CLOSED,
+
+    /** Remote endpoint has closed connection. */
+    SERVER_CLOSED,
+
+    /** I/O error occurred on client connection. */
+    CLIENT_ERROR,
+
+    /** I/O error occurred on remote endpoint connection. */
+    SERVER_ERROR,
+
+    /** Connection to remote endpoint couldn't be established. */
+    CONNECT_FAILED,
+
+    /** Server has been shut down. */
+    SHUTDOWN
+}
@@ -0,0 +1,69 @@
+package me.azhuchkov.tcproxy.event;
+
+import me.azhuchkov.tcproxy.PortMapping;
+
+import java.net.SocketAddress;
+
+/**
+ * Listener of proxy events, e.g. for profiling. Server has no listener by default and doesn't
+ * collect event data at all, so hot path doesn't pay for listening unless listener is set.
+ * <p/>
+ * Methods are called by threads that handle the events (acceptor and workers) right on the hot
+ * path, so implementations must be thread-safe and must not block.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public interface ProxyEventListener {
+    /**
+     * Called when incoming connection has been accepted.
+     *
+     * @param mapping Port mapping of the connection.
+     * @param client  Client address.
+     */
+    void onAccept(PortMapping mapping, SocketAddress client);
+
+    /**
+     * Called when connection to remote endpoint has been established.
+     *
+     * @param mapping  Port mapping of the connection.
+     * @param remote   Remote endpoint address.
+     * @param duration Time since incoming connection was accepted, ns.
+     */
+    void onConnect(PortMapping mapping, SocketAddress remote, long duration);
+
+    /**
+     * Called when proxied connection has been closed.
+     *
+     * @param mapping       Port mapping of the connection.
+     * @param sentBytes     Count of bytes relayed from client to remote endpoint.
+     * @param receivedBytes Count of bytes relayed from remote endpoint to client.
+     * @param duration      Time since incoming connection was accepted, ns.
+     * @param reason        Close reason.
+     */
+    void onClose(PortMapping mapping, long sentBytes, long receivedBytes, long duration, CloseReason reason);
+
+    /**
+     * Called when reading from one side of connection is resumed after it had been suspended
+     * since other side couldn't accept data.
+     *
+     * @param mapping  Port mapping of the connection.
+     * @param upstream {@code true} if writing to remote endpoint stalled, {@code false} if writing to client.
+     * @param duration Time reading was suspended for, ns.
+     */
+    void onWriteStall(PortMapping mapping, boolean upstream, long duration);
+
+    /**
+     * Called when buffer pool has no cached buffer and allocates new one.
+     *
+     * @param capacity Capacity of allocated buffer.
+     */
+    void onBufferAllocate(int capacity);
+
+    /**
+     * Called when worker selector is woken up to register new sessions or handle other request.
+     *
+     * @param worker Worker name.
+     */
+    void onWakeup(String worker);
+}
@@ -0,0 +1,102 @@
+package me.azhuchkov.tcproxy.mirror;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer ring of buffers. Slots are preallocated, so neither
+ * side allocates and neither blocks: producer is told when the ring is full.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+final class BufferRing {
+    /** Ring slots. */
+    private final ByteBuffer[] slots;
+
+    /** Mask of slot index. */
+    private final int mask;
+
+    /** Sequence of the next buffer to offer. Written by producer only. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Sequence of the next buffer to poll. Written by consumer only. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Producer's copy of {@link #head}, so it reads shared counter only when ring looks full. */
+    private long cachedHead;
+
+    /** Consumer's copy of {@link #tail}, so it reads shared counter only when ring looks empty. */
+    private long cachedTail;
+
+    /**
+     * @param capacity Count of slots, rounded up to power of two.
+     */
+    BufferRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+
+        slots = new ByteBuffer[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds buffer to the ring. Must be called by producer thread only.
+     *
+     * @param buffer Buffer.
+     * @return {@code false} if ring is full.
+     */
+    boolean offer(ByteBuffer buffer) {
+        long seq = tail.get();
+
+        if (seq - cachedHead == slots.length) {
+            cachedHead = head.get();
+
+            if (seq - cachedHead == slots.length)
+                return false;
+        }
+
+        slots[(int) seq & mask] = buffer;
+
+        // ordered store makes buffer visible to consumer along with sequence
+        tail.lazySet(seq + 1);
+
+        return true;
+    }
+
+    /**
+     * Returns the oldest buffer without removing it. Must be called by consumer thread only.
+     *
+     * @return Buffer or {@code null} if ring is empty.
+     */
+    ByteBuffer peek() {
+        long seq = head.get();
+
+        if (seq == cachedTail) {
+            cachedTail = tail.get();
+
+            if (seq == cachedTail)
+                return null;
+        }
+
+        return slots[(int) seq & mask];
+    }
+
+    /**
+     * Removes the oldest buffer. Must be called by consumer thread only.
+     *
+     * @return Buffer or {@code null} if ring is empty.
+     */
+    ByteBuffer poll() {
+        ByteBuffer buffer = peek();
+
+        if (buffer != null) {
+            long seq = head.get();
+
+            slots[(int) seq & mask] = null;
+
+            head.lazySet(seq + 1);
+        }
+
+        return buffer;
+    }
+}
@@ -0,0 +1,484 @@
+package me.azhuchkov.tcproxy.mirror;
+
+import me.azhuchkov.tcproxy.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies client streams to shadow backends. Workers copy relayed data into pooled buffers and queue
+ * them to {@link Mirror} of the connection, and this thread writes queues to shadow connections.
+ * Responses of shadow backends are discarded.
+ * <p/>
+ * Queue of mirror is a preallocated ring, and written buffers go back to the worker through another
+ * one, so steady mirroring allocates nothing on worker and buffers stay with the worker that fills them.
+ * <p/>
+ * Mirroring never slows down or blocks workers: if queue of mirror exceeds the limit, e.g. since shadow
+ * backend is slow or unreachable, the mirror is dropped and counted, while proxied connection goes on.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class Mirroring extends Thread {
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(Mirroring.class.getName());
+
+    /** Size of the smallest buffer of queued data. */
+    private static final int MIN_BUFFER_SIZE = 1024;
+
+    /** Size of the largest buffer of queued data. */
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    /** Maximal count of buffers queued to single mirror. */
+    private static final int MAX_QUEUE_BUFFERS = 4096;
+
+    /** Count of written buffers kept by single mirror for the next copies. */
+    private static final int SPARE_BUFFERS = 16;
+
+    /** Selector of shadow connections. */
+    private final Selector selector;
+
+    /**
+     * Pool of buffers of queued data. Workers take buffers, and this thread returns them to
+     * the shared queue of the pool rather than to its own cache, where no worker would find them.
+     */
+    private final BufferPool bufferPool = new BufferPool(MIN_BUFFER_SIZE, MAX_BUFFER_SIZE);
+
+    /** Maximal count of bytes queued to single mirror. */
+    private final long queueLimit;
+
+    /** Capacity of queue of single mirror in buffers, enough for the limit in the smallest buffers. */
+    private final int queueBuffers;
+
+    /** Mirrors to register with selector. */
+    private final Queue<Mirror> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Stack of mirrors which queue has become non-empty or which have been closed, linked through
+     * {@link Mirror#nextReady}, so signalling doesn't allocate.
+     */
+    private final AtomicReference<Mirror> ready = new AtomicReference<>();
+
+    /** Buffer to read discarded responses into. */
+    private final ByteBuffer discard = ByteBuffer.allocateDirect(MAX_BUFFER_SIZE);
+
+    /** Count of mirrors dropped since their queues exceeded the limit or shadow connection failed. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates mirroring thread.
+     *
+     * @param name       Thread name.
+     * @param provider   Provider to open selector with. Shadow channels must be opened by the same provider.
+     * @param queueLimit Maximal count of bytes queued to single mirror.
+     * @throws IOException              If selector can't be opened.
+     * @throws IllegalArgumentException If queue limit is not positive.
+     */
+    public Mirroring(String name, SelectorProvider provider, long queueLimit) throws IOException {
+        super(name);
+
+        if (queueLimit <= 0)
+            throw new IllegalArgumentException("invalid mirror queue limit: " + queueLimit);
+
+        this.selector = provider.openSelector();
+        this.queueLimit = queueLimit;
+        this.queueBuffers = (int) Math.min(MAX_QUEUE_BUFFERS, (queueLimit + MIN_BUFFER_SIZE - 1) / MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Starts mirroring to given shadow connection.
+     *
+     * @param channel Non-blocking channel that has been connected or is connecting to shadow backend.
+     * @return Mirror of the connection.
+     */
+    public Mirror mirror(SocketChannel channel) {
+        Mirror mirror = new Mirror(channel);
+
+        pending.add(mirror);
+
+        selector.wakeup();
+
+        return mirror;
+    }
+
+    /**
+     * @return Count of mirrors dropped since their queues exceeded the limit or shadow connection failed.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                selector.select();
+
+                Mirror mirror;
+
+                while ((mirror = pending.poll()) != null) {
+                    try {
+                        mirror.key = mirror.channel.register(selector,
+                                mirror.channel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, mirror);
+                    } catch (ClosedChannelException e) {
+                        drop(mirror);
+                    }
+
+                    // data might be queued before registration
+                    update(mirror);
+                }
+
+                mirror = ready.getAndSet(null);
+
+                while (mirror != null) {
+                    Mirror next = mirror.nextReady;
+
+                    mirror.nextReady = null;
+
+                    // cleared before update, so that data queued after it is signalled again
+                    mirror.signalled.set(false);
+
+                    update(mirror);
+
+                    mirror = next;
+                }
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+
+                    it.remove();
+
+                    mirror = (Mirror) key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isConnectable() && mirror.channel.finishConnect())
+                            key.interestOps(SelectionKey.OP_READ);
+
+                        if (key.isValid() && key.isReadable())
+                            onRead(mirror);
+
+                        if (key.isValid() && key.isWritable())
+                            onWrite(mirror);
+                    } catch (IOException e) {
+                        LOGGER.fine("Shadow connection failed: " + e);
+
+                        drop(mirror);
+                    }
+
+                    if (key.isValid())
+                        update(mirror);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Mirroring failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys())
+                release((Mirror) key.attachment());
+
+            Mirror mirror;
+
+            while ((mirror = pending.poll()) != null)
+                release(mirror);
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warning("Failed to close selector: " + e);
+            }
+        }
+    }
+
+    /**
+     * Updates interest set of mirror according to its queue or closes it if it's closed and drained.
+     *
+     * @param mirror Mirror.
+     */
+    private void update(Mirror mirror) {
+        SelectionKey key = mirror.key;
+
+        if (key == null || !key.isValid())
+            return;
+
+        if (mirror.dropped) {
+            drop(mirror);
+
+            return;
+        }
+
+        boolean empty = mirror.queuedBytes.get() == 0;
+
+        if (empty && mirror.closed) {
+            release(mirror);
+
+            return;
+        }
+
+        if (!mirror.channel.isConnected())
+            return;
+
+        key.interestOps(empty ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Discards response of shadow backend.
+     *
+     * @param mirror Mirror.
+     * @throws IOException If I/O error occurs.
+     */
+    private void onRead(Mirror mirror) throws IOException {
+        int read;
+
+        do {
+            discard.clear();
+
+            read = mirror.channel.read(discard);
+        } while (read > 0);
+
+        if (read < 0)
+            throw new IOException("shadow backend closed connection");
+    }
+
+    /**
+     * Writes queued data to shadow connection.
+     *
+     * @param mirror Mirror.
+     * @throws IOException If I/O error occurs.
+     */
+    private void onWrite(Mirror mirror) throws IOException {
+        long written = 0;
+
+        ByteBuffer buffer;
+
+        while ((buffer = mirror.queue.peek()) != null) {
+            int remaining = buffer.remaining();
+
+            mirror.channel.write(buffer);
+
+            written += remaining - buffer.remaining();
+
+            if (buffer.hasRemaining())
+                break;
+
+            mirror.queue.poll();
+
+            buffer.clear();
+
+            // worker reuses the buffer for the next copy, unless it doesn't need it any more
+            if (mirror.dropped || mirror.closed || !mirror.spares.offer(buffer))
+                bufferPool.returnShared(buffer);
+        }
+
+        mirror.queuedBytes.addAndGet(-written);
+    }
+
+    /**
+     * Drops mirror counting it.
+     *
+     * @param mirror Mirror.
+     */
+    private void drop(Mirror mirror) {
+        if (release(mirror))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * Closes shadow connection and returns queued buffers to the pool. Spare buffers are returned
+     * by worker, since it's the only reader of them.
+     *
+     * @param mirror Mirror.
+     * @return {@code false} if mirror has been released already.
+     */
+    private boolean release(Mirror mirror) {
+        if (mirror.released)
+            return false;
+
+        mirror.released = true;
+        mirror.dropped = true;
+
+        try {
+            mirror.channel.close();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close shadow connection: " + e);
+        }
+
+        ByteBuffer buffer;
+
+        while ((buffer = mirror.queue.poll()) != null)
+            bufferPool.returnShared(buffer);
+
+        return true;
+    }
+
+    /**
+     * Notifies mirroring thread of mirror which queue has become non-empty or which has been closed.
+     *
+     * @param mirror Mirror.
+     */
+    private void signal(Mirror mirror) {
+        if (!mirror.signalled.compareAndSet(false, true))
+            return;
+
+        Mirror head;
+
+        do {
+            head = ready.get();
+
+            mirror.nextReady = head;
+        } while (!ready.compareAndSet(head, mirror));
+
+        selector.wakeup();
+    }
+
+    /**
+     * Mirror of single client stream. Its methods are called by worker that serves the connection.
+     */
+    public final class Mirror {
+        /** Shadow connection. */
+        private final SocketChannel channel;
+
+        /** Queued data. Produced by worker, consumed by mirroring thread. */
+        private final BufferRing queue = new BufferRing(queueBuffers);
+
+        /** Written buffers to copy next data into. Produced by mirroring thread, consumed by worker. */
+        private final BufferRing spares = new BufferRing(SPARE_BUFFERS);
+
+        /** Count of queued bytes. */
+        private final AtomicLong queuedBytes = new AtomicLong();
+
+        /** Whether mirror is in stack of ready mirrors. */
+        private final AtomicBoolean signalled = new AtomicBoolean();
+
+        /** Next mirror in stack of ready mirrors. */
+        private Mirror nextReady;
+
+        /** Selection key. Used by mirroring thread only. */
+        private SelectionKey key;
+
+        /** Whether mirror has been dropped. Data is not queued any more. */
+        private volatile boolean dropped;
+
+        /** Whether proxied connection has been closed. Mirror is closed once its queue is drained. */
+        private volatile boolean closed;
+
+        /** Whether shadow connection is closed. Used by mirroring thread only. */
+        private boolean released;
+
+        /**
+         * @param channel Shadow connection.
+         */
+        private Mirror(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queues copy of remaining data of given buffer. Buffer position is not changed.
+         * If queue exceeds the limit, or its ring has no room for more chunks, the mirror is dropped.
+         *
+         * @param data Data to mirror.
+         */
+        public void offer(ByteBuffer data) {
+            if (closed)
+                return;
+
+            if (dropped) {
+                releaseSpares();
+
+                return;
+            }
+
+            int length = data.remaining();
+
+            if (queuedBytes.get() + length > queueLimit) {
+                dropFull();
+
+                return;
+            }
+
+            // count before queueing, so that mirroring thread never sees negative count
+            long queued = queuedBytes.getAndAdd(length);
+
+            int position = data.position();
+
+            while (data.hasRemaining()) {
+                ByteBuffer copy = spares.poll();
+
+                if (copy == null)
+                    copy = bufferPool.getBuffer(bufferPool.sizeClass(data.remaining()));
+
+                int limit = data.limit();
+
+                data.limit(data.position() + Math.min(data.remaining(), copy.remaining()));
+
+                copy.put(data);
+                copy.flip();
+
+                data.limit(limit);
+
+                if (!queue.offer(copy)) {
+                    bufferPool.returnBuffer(copy);
+
+                    data.position(position);
+
+                    dropFull();
+
+                    return;
+                }
+            }
+
+            data.position(position);
+
+            if (queued == 0)
+                signal(this);
+        }
+
+        /**
+         * Closes mirror once queued data is written.
+         */
+        public void close() {
+            if (closed)
+                return;
+
+            closed = true;
+
+            releaseSpares();
+
+            signal(this);
+        }
+
+        /**
+         * Drops mirror since its queue is full.
+         */
+        private void dropFull() {
+            dropped = true;
+
+            LOGGER.fine("Mirror to " + channel + " has been dropped since its queue is full");
+
+            releaseSpares();
+
+            signal(this);
+        }
+
+        /**
+         * Returns spare buffers to the pool. Called by worker.
+         */
+        private void releaseSpares() {
+            ByteBuffer buffer;
+
+            while ((buffer = spares.poll()) != null)
+                bufferPool.returnBuffer(buffer);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package me.azhuchkov.tcproxy.tls;
+
+import me.azhuchkov.tcproxy.BufferPool;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TLS layer of non-blocking channel. Reads and writes plain data the same way as the channel does,
+ * handshake is performed on the fly. Must be used by single thread at a time.
+ * <p/>
+ * Connection holds buffers only while they have data: partially received record, encrypted data
+ * not yet written to the channel or decrypted data that didn't fit into caller buffer. They're taken
+ * from pool given by caller and returned once drained, so idle connection holds no memory.
+ * Buffers of the pool must be at least {@link TlsSettings#bufferSize()} large.
+ * <p/>
+ * Caller must keep channel writable while {@link #wantsWrite(boolean)} and read again without waiting
+ * for channel readiness while {@link #hasBufferedInput()}. Delegated tasks of handshake are run
+ * by calling thread.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class TlsConnection {
+    /** Size of TLS record header: content type, protocol version and length of record. */
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    /** Empty buffer to produce handshake data with. */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** TLS engine. */
+    private final SSLEngine engine;
+
+    /** Underlying channel. */
+    private final SocketChannel channel;
+
+    /** Received data not yet unwrapped, in fill mode, or {@code null}. */
+    private ByteBuffer netIn;
+
+    /** Wrapped data not yet written to the channel, in drain mode, or {@code null}. */
+    private ByteBuffer netOut;
+
+    /** Unwrapped data not yet read by caller, in drain mode, or {@code null}. */
+    private ByteBuffer appIn;
+
+    /**
+     * Creates connection and starts handshake. Client side sends its greeting once channel is writable.
+     *
+     * @param engine  TLS engine, see {@link TlsSettings#newEngine(java.net.SocketAddress)}.
+     * @param channel Non-blocking channel, might be not connected yet.
+     * @throws SSLException If handshake can't be started.
+     */
+    public TlsConnection(SSLEngine engine, SocketChannel channel) throws SSLException {
+        this.engine = engine;
+        this.channel = channel;
+
+        engine.beginHandshake();
+    }
+
+    /**
+     * Reads plain data. Reads from the channel until buffer is filled up or the channel is drained.
+     *
+     * @param dst  Buffer to read into.
+     * @param pool Pool of buffers.
+     * @return Count of bytes read, 0 if no complete record is available yet or -1 if
+     * peer has closed the connection.
+     * @throws IOException If I/O error occurs or peer violates the protocol.
+     */
+    public int read(ByteBuffer dst, BufferPool pool) throws IOException {
+        int count = read0(dst, pool);
+
+        if (netIn != null && netIn.position() == 0)
+            releaseNetIn(pool);
+
+        return count;
+    }
+
+    /**
+     * Reads plain data, buffer of received data might be left empty.
+     *
+     * @param dst  Buffer to read into.
+     * @param pool Pool of buffers.
+     * @return Count of bytes read or -1 if peer has closed the connection.
+     * @throws IOException If I/O error occurs or peer violates the protocol.
+     */
+    private int read0(ByteBuffer dst, BufferPool pool) throws IOException {
+        int count = 0;
+
+        if (appIn != null) {
+            count += drainAppIn(dst, pool);
+
+            if (!dst.hasRemaining())
+                return count;
+        }
+
+        if (engine.isInboundDone())
+            return count > 0 ? count : -1;
+
+        while (true) {
+            if (netIn != null && netIn.position() > 0) {
+                boolean direct = dst.remaining() >= engine.getSession().getApplicationBufferSize();
+
+                ByteBuffer target = direct ? dst : (appIn = pool.getBuffer());
+
+                netIn.flip();
+
+                SSLEngineResult result = engine.unwrap(netIn, target);
+
+                netIn.compact();
+
+                if (direct) {
+                    count += result.bytesProduced();
+                } else {
+                    appIn.flip();
+
+                    count += drainAppIn(dst, pool);
+                }
+
+                switch (result.getStatus()) {
+                    case CLOSED:
+                        releaseNetIn(pool);
+
+                        return count > 0 ? count : -1;
+
+                    case BUFFER_OVERFLOW:
+                        throw new SSLException("Record exceeds buffer size");
+
+                    case BUFFER_UNDERFLOW:
+                        if (!netIn.hasRemaining())
+                            throw new SSLException("Record exceeds buffer size");
+
+                        break;
+
+                    default:
+                        // handshake may require a reply, reply is blocked until channel is writable
+                        if (!flush(pool))
+                            return count;
+
+                        if (!dst.hasRemaining())
+                            return count;
+
+                        if (result.bytesConsumed() > 0 || result.bytesProduced() > 0)
+                            continue;
+                }
+            }
+
+            if (netIn == null)
+                netIn = pool.getBuffer();
+
+            int read = channel.read(netIn);
+
+            if (read < 0) {
+                releaseNetIn(pool);
+
+                return count > 0 ? count : -1;
+            }
+
+            if (read == 0)
+                return count;
+        }
+    }
+
+    /**
+     * Writes plain data. Data that has been consumed is either written to the channel or held
+     * by the connection until {@link #flush(BufferPool)}.
+     *
+     * @param src  Buffer to write from.
+     * @param pool Pool of buffers.
+     * @return Count of bytes consumed, 0 if handshake awaits peer or the channel is not writable.
+     * @throws IOException If I/O error occurs or connection is closed.
+     */
+    public int write(ByteBuffer src, BufferPool pool) throws IOException {
+        int count = 0;
+
+        while (src.hasRemaining() && flush(pool) &&
+                engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+            netOut = pool.getBuffer();
+
+            SSLEngineResult result = engine.wrap(src, netOut);
+
+            netOut.flip();
+
+            count += result.bytesConsumed();
+
+            if (result.getStatus() != SSLEngineResult.Status.OK)
+                throw new SSLException("Unexpected wrap status: " + result.getStatus());
+        }
+
+        flush(pool);
+
+        return count;
+    }
+
+    /**
+     * Writes held data to the channel and advances handshake as far as it's possible without reading.
+     *
+     * @param pool Pool of buffers.
+     * @return {@code false} if there is data left unwritten since the channel is not writable.
+     * @throws IOException If I/O error occurs.
+     */
+    public boolean flush(BufferPool pool) throws IOException {
+        boolean closed = false;
+
+        while (true) {
+            if (netOut != null) {
+                channel.write(netOut);
+
+                if (netOut.hasRemaining())
+                    return false;
+
+                pool.returnBuffer(netOut);
+
+                netOut = null;
+            }
+
+            if (closed)
+                return true;
+
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+
+                    break;
+
+                case NEED_WRAP:
+                    netOut = pool.getBuffer();
+
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+
+                    netOut.flip();
+
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        throw new SSLException("Record exceeds buffer size");
+
+                    closed = result.getStatus() == SSLEngineResult.Status.CLOSED;
+
+                    break;
+
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * @param pending Whether caller has plain data to write.
+     * @return Whether caller must wait for the channel to become writable.
+     */
+    public boolean wantsWrite(boolean pending) {
+        if (netOut != null)
+            return true;
+
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP || status == SSLEngineResult.HandshakeStatus.NEED_TASK)
+            return true;
+
+        return pending && status != SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+    }
+
+    /**
+     * @return Whether there is wrapped data not yet written to the channel.
+     */
+    public boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    /**
+     * Partially received record doesn't count, since it can't be read until the rest of it arrives.
+     *
+     * @return Whether there is received data ready to be read, so reading must go on regardless of
+     * channel readiness.
+     */
+    public boolean hasBufferedInput() {
+        if (appIn != null)
+            return true;
+
+        if (netIn == null || netIn.position() < RECORD_HEADER_SIZE)
+            return false;
+
+        int length = (netIn.get(3) & 0xff) << 8 | netIn.get(4) & 0xff;
+
+        return netIn.position() >= RECORD_HEADER_SIZE + length;
+    }
+
+    /**
+     * Sends close notification if the channel accepts it at once and returns all held buffers to pool.
+     * Doesn't close the channel.
+     *
+     * @param pool Pool of buffers.
+     */
+    public void close(BufferPool pool) {
+        engine.closeOutbound();
+
+        try {
+            flush(pool);
+        } catch (IOException e) {
+            // peer has gone already
+        }
+
+        if (netOut != null) {
+            pool.returnBuffer(netOut);
+
+            netOut = null;
+        }
+
+        if (appIn != null) {
+            pool.returnBuffer(appIn);
+
+            appIn = null;
+        }
+
+        releaseNetIn(pool);
+    }
+
+    /**
+     * Moves unwrapped data to caller buffer.
+     *
+     * @param dst  Caller buffer.
+     * @param pool Pool to return drained buffer to.
+     * @return Count of bytes moved.
+     */
+    private int drainAppIn(ByteBuffer dst, BufferPool pool) {
+        int count = Math.min(dst.remaining(), appIn.remaining());
+
+        int limit = appIn.limit();
+
+        appIn.limit(appIn.position() + count);
+
+        dst.put(appIn);
+
+        appIn.limit(limit);
+
+        if (!appIn.hasRemaining()) {
+            pool.returnBuffer(appIn);
+
+            appIn = null;
+        }
+
+        return count;
+    }
+
+    /**
+     * @param pool Pool to return buffer of received data to.
+     */
+    private void releaseNetIn(BufferPool pool) {
+        if (netIn != null) {
+            pool.returnBuffer(netIn);
+
+            netIn = null;
+        }
+    }
+}
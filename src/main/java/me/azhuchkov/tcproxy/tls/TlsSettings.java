@@ -0,0 +1,242 @@
+package me.azhuchkov.tcproxy.tls;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+/**
+ * TLS settings of one side of port mapping. Server side terminates TLS of client connections
+ * with certificate of its key store. Client side originates TLS to remote endpoint and verifies
+ * its certificate with trust store.
+ * <p/>
+ * Each settings object owns single {@link SSLContext}, so all connections of the mapping share its
+ * session cache: server side resumes sessions of returning clients (by session identifier or, on JDK 13
+ * and later, by session ticket), client side resumes sessions with the same backend instead of full handshake.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class TlsSettings {
+    /** Default count of cached sessions. */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+
+    /** Default lifetime of cached session, seconds. */
+    public static final int DEFAULT_SESSION_TIMEOUT = 3600;
+
+    /** Context of the side. */
+    private final SSLContext context;
+
+    /** Whether the side originates TLS to remote endpoint rather than terminates TLS of clients. */
+    private final boolean client;
+
+    /**
+     * Host name remote endpoint is verified against and indicated to (client side) or {@code null}
+     * if host of each endpoint is used.
+     */
+    private final String serverName;
+
+    /** Whether certificate of remote endpoint is verified against host name (client side). */
+    private final boolean verifyHostname;
+
+    /** Enabled protocols or {@code null} for defaults of the platform. */
+    private final String[] protocols;
+
+    /** Size of buffers that hold any TLS record of the context. */
+    private final int bufferSize;
+
+    /**
+     * @param context        Context of the side.
+     * @param client         Whether the side originates TLS to remote endpoint.
+     * @param serverName     Host name remote endpoint is verified against or {@code null}.
+     * @param verifyHostname Whether certificate of remote endpoint is verified against host name.
+     * @param protocols      Enabled protocols or {@code null} for defaults of the platform.
+     */
+    private TlsSettings(SSLContext context, boolean client, String serverName, boolean verifyHostname,
+                        String[] protocols) {
+        this.context = context;
+        this.client = client;
+        this.serverName = serverName;
+        this.verifyHostname = verifyHostname;
+        this.protocols = protocols;
+
+        SSLEngine engine = context.createSSLEngine();
+
+        this.bufferSize = Math.max(engine.getSession().getPacketBufferSize(),
+                engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * Creates settings of side that terminates TLS of client connections.
+     *
+     * @param keyStore         Path of key store with server certificate and its private key.
+     * @param keyStoreType     Type of key store, e.g. {@code PKCS12}.
+     * @param password         Password of key store and its key.
+     * @param protocols        Enabled protocols or {@code null} for defaults of the platform.
+     * @param sessionCacheSize Count of cached sessions, 0 for no limit.
+     * @param sessionTimeout   Lifetime of cached session, seconds.
+     * @return Server side settings.
+     * @throws IOException              If key store can't be read.
+     * @throws GeneralSecurityException If key store or context can't be initialized.
+     */
+    public static TlsSettings server(String keyStore, String keyStoreType, char[] password, String[] protocols,
+                                     int sessionCacheSize, int sessionTimeout)
+            throws IOException, GeneralSecurityException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+
+        kmf.init(loadKeyStore(keyStore, keyStoreType, password), password);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+
+        context.init(kmf.getKeyManagers(), null, null);
+
+        configureCache(context.getServerSessionContext(), sessionCacheSize, sessionTimeout);
+
+        return new TlsSettings(context, false, null, false, protocols);
+    }
+
+    /**
+     * Creates settings of side that originates TLS to remote endpoint.
+     *
+     * @param trustStore       Path of trust store or {@code null} to trust certificates the platform trusts.
+     * @param trustStoreType   Type of trust store, e.g. {@code PKCS12}.
+     * @param password         Password of trust store or {@code null}.
+     * @param serverName       Host name remote endpoint is verified against and indicated to,
+     *                         or {@code null} to use host of each endpoint, e.g. of each backend.
+     * @param verifyHostname   Whether certificate of remote endpoint is verified against host name.
+     * @param protocols        Enabled protocols or {@code null} for defaults of the platform.
+     * @param sessionCacheSize Count of cached sessions, 0 for no limit.
+     * @param sessionTimeout   Lifetime of cached session, seconds.
+     * @return Client side settings.
+     * @throws IOException              If trust store can't be read.
+     * @throws GeneralSecurityException If trust store or context can't be initialized.
+     */
+    public static TlsSettings client(String trustStore, String trustStoreType, char[] password, String serverName,
+                                     boolean verifyHostname, String[] protocols, int sessionCacheSize,
+                                     int sessionTimeout)
+            throws IOException, GeneralSecurityException {
+        TrustManagerFactory tmf = null;
+
+        if (trustStore != null) {
+            tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+
+            tmf.init(loadKeyStore(trustStore, trustStoreType, password));
+        }
+
+        SSLContext context = SSLContext.getInstance("TLS");
+
+        context.init(null, tmf == null ? null : tmf.getTrustManagers(), null);
+
+        configureCache(context.getClientSessionContext(), sessionCacheSize, sessionTimeout);
+
+        return new TlsSettings(context, true, serverName, verifyHostname, protocols);
+    }
+
+    /**
+     * @param path     Path of key store.
+     * @param type     Type of key store.
+     * @param password Password of key store or {@code null}.
+     * @return Loaded key store.
+     * @throws IOException              If key store can't be read.
+     * @throws GeneralSecurityException If key store can't be loaded.
+     */
+    private static KeyStore loadKeyStore(String path, String type, char[] password)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(type);
+
+        try (InputStream in = new FileInputStream(path)) {
+            keyStore.load(in, password);
+        }
+
+        return keyStore;
+    }
+
+    /**
+     * @param sessions         Session context.
+     * @param sessionCacheSize Count of cached sessions, 0 for no limit.
+     * @param sessionTimeout   Lifetime of cached session, seconds.
+     */
+    private static void configureCache(SSLSessionContext sessions, int sessionCacheSize, int sessionTimeout) {
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeout);
+    }
+
+    /**
+     * Creates engine of new connection. Client side engine is bound to remote endpoint, so session
+     * established with it is resumed by later connections to the same endpoint. Without server name
+     * the endpoint is verified against its own host.
+     *
+     * @param remote Remote endpoint of connection (client side) or {@code null}.
+     * @return New engine.
+     * @throws IllegalArgumentException If host name must be verified, but there is neither server name
+     *                                  nor host of remote endpoint, e.g. it's Unix domain socket.
+     */
+    public SSLEngine newEngine(SocketAddress remote) {
+        SSLEngine engine;
+
+        if (client) {
+            int port = remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getPort() : 0;
+
+            String host = serverName != null ? serverName :
+                    remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getHostString() : null;
+
+            if (host == null && verifyHostname)
+                throw new IllegalArgumentException("no host name to verify remote endpoint against: " + remote);
+
+            engine = host != null ? context.createSSLEngine(host, port) : context.createSSLEngine();
+
+            engine.setUseClientMode(true);
+
+            if (verifyHostname) {
+                SSLParameters params = engine.getSSLParameters();
+
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+
+                engine.setSSLParameters(params);
+            }
+        } else {
+            engine = context.createSSLEngine();
+
+            engine.setUseClientMode(false);
+        }
+
+        if (protocols != null)
+            engine.setEnabledProtocols(protocols);
+
+        return engine;
+    }
+
+    /**
+     * @return Whether the side originates TLS to remote endpoint rather than terminates TLS of clients.
+     */
+    public boolean isClient() {
+        return client;
+    }
+
+    /**
+     * @return Size of buffers that hold any TLS record of the side.
+     */
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public String toString() {
+        return "TlsSettings{" +
+                (client ? "client" : "server") +
+                (serverName != null ? ", serverName='" + serverName + '\'' : "") +
+                (client && !verifyHostname ? ", verifyHostname=false" : "") +
+                (protocols != null ? ", protocols=" + Arrays.toString(protocols) : "") +
+                '}';
+    }
+}
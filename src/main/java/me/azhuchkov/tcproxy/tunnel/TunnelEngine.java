@@ -0,0 +1,1332 @@
+package me.azhuchkov.tcproxy.tunnel;
+
+import me.azhuchkov.tcproxy.BufferPool;
+import me.azhuchkov.tcproxy.channel.NetworkChannelFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static me.azhuchkov.tcproxy.tunnel.TunnelProtocol.*;
+
+/**
+ * Thread that serves tunnel connections and their streams with single selector. Frames of all streams
+ * of a connection are gathered into its output buffer and written once per loop iteration, so many
+ * small writes of streams become few large writes of the connection. Uncompressed data is read
+ * from stream channel directly into output buffer of the connection.
+ * <p/>
+ * Stream stops reading when its window is spent or when output buffer of the connection is full,
+ * and resumes when peer acknowledges data or buffer is drained. Connecting side reconnects failed
+ * tunnel connection after a delay, streams of failed connection are closed.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+final class TunnelEngine extends Thread {
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(TunnelEngine.class.getName());
+
+    /** Delay before failed tunnel connection is reconnected, ms. */
+    private static final long RECONNECT_DELAY = 1000;
+
+    /** Size of output buffer of tunnel connection. */
+    private static final int OUTPUT_BUFFER = 256 * 1024;
+
+    /** Size of input buffer of tunnel connection. Holds at least one frame of maximal size. */
+    private static final int INPUT_BUFFER = 2 * (HEADER_SIZE + MAX_PAYLOAD);
+
+    /** Space of output buffer reserved for control frames. */
+    private static final int CONTROL_RESERVE = 1024;
+
+    /** Minimal space of output buffer worth reading stream data into. */
+    private static final int MIN_DATA_ROOM = 1024;
+
+    /** Space reserved for expansion of incompressible data. */
+    private static final int COMPRESSION_SLACK = 256;
+
+    /** Count of unacknowledged bytes after which receiver acknowledges them. */
+    private static final int WINDOW_UPDATE = INITIAL_WINDOW / 4;
+
+    /** Maximal count of data frames read from stream per readiness event. */
+    private static final int READ_BATCH = 4;
+
+    /** Selector of tunnel connections and streams. */
+    private final Selector selector;
+
+    /** Tasks submitted by other threads. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /** Tunnel connections served by the engine. */
+    private final List<Connection> connections = new ArrayList<>();
+
+    /** Connections with frames to write at the end of loop iteration. */
+    private final List<Connection> dirty = new ArrayList<>();
+
+    /** Pool of buffers of data queued to stream channels. */
+    private final BufferPool bufferPool = new BufferPool(1024, MAX_DATA);
+
+    /** Uncompressed data of compressed frame. */
+    private final byte[] raw = new byte[MAX_DATA];
+
+    /** View of {@link #raw}. */
+    private final ByteBuffer rawBuffer = ByteBuffer.wrap(raw);
+
+    /** Compressed data of compressed frame. */
+    private final byte[] packed = new byte[MAX_DATA + COMPRESSION_SLACK];
+
+    /** Payload of window frame. */
+    private final ByteBuffer windowPayload = ByteBuffer.allocate(4);
+
+    /** Whether engine has stopped. Tasks submitted after that just close their channels. */
+    private boolean stopped;
+
+    /**
+     * @param name     Thread name.
+     * @param provider Provider to open selector with. Channels must be opened by the same provider.
+     * @throws IOException If selector can't be opened.
+     */
+    TunnelEngine(String name, SelectorProvider provider) throws IOException {
+        super(name);
+
+        this.selector = provider.openSelector();
+    }
+
+    /**
+     * Creates tunnel connection to peer proxy. The engine keeps connection open until it's stopped.
+     *
+     * @param peer        Peer proxy address.
+     * @param factory     Factory of tunnel connection channels.
+     * @param compression Compression of data sent to peer.
+     * @return Tunnel connection.
+     */
+    Connection connect(SocketAddress peer, NetworkChannelFactory<SocketChannel> factory,
+                       TunnelSettings.Compression compression) {
+        final Connection connection = new Connection(peer, factory, compression, null);
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (stopped)
+                    return;
+
+                connections.add(connection);
+
+                reconnect(connection);
+            }
+        });
+
+        return connection;
+    }
+
+    /**
+     * Serves tunnel connection accepted from peer proxy.
+     *
+     * @param channel Non-blocking accepted channel.
+     * @param target  Remote endpoint of streams.
+     */
+    void accept(final SocketChannel channel, TunnelTarget target) {
+        final Connection connection = new Connection(channel.socket().getRemoteSocketAddress(), null,
+                TunnelSettings.Compression.NONE, target);
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (stopped) {
+                    close(channel);
+
+                    return;
+                }
+
+                try {
+                    connection.channel = channel;
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    return;
+                }
+
+                connections.add(connection);
+
+                connection.up = true;
+
+                hello(connection);
+            }
+        });
+    }
+
+    /**
+     * Submits task to the engine thread.
+     *
+     * @param task Task.
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                selector.select(RECONNECT_DELAY);
+
+                Runnable task;
+
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+
+                    it.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.attachment() instanceof Connection)
+                        process((Connection) key.attachment(), key);
+                    else
+                        process((Stream) key.attachment(), key);
+                }
+
+                long now = System.nanoTime();
+
+                for (Connection connection : connections) {
+                    if (connection.reconnectAt != 0 && now - connection.reconnectAt >= 0)
+                        reconnect(connection);
+                }
+
+                for (int i = 0; i < dirty.size(); i++) {
+                    Connection connection = dirty.get(i);
+
+                    connection.dirty = false;
+
+                    try {
+                        flush(connection);
+                    } catch (IOException e) {
+                        fail(connection, e);
+                    }
+                }
+
+                dirty.clear();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Tunnel engine failed", e);
+        } finally {
+            for (Connection connection : connections) {
+                closeStreams(connection);
+
+                if (connection.channel != null)
+                    close(connection.channel);
+
+                connection.up = false;
+            }
+
+            stopped = true;
+
+            Runnable task;
+
+            // close channels handed over after stop
+            while ((task = tasks.poll()) != null)
+                task.run();
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warning("Failed to close selector: " + e);
+            }
+        }
+    }
+
+    /**
+     * Handles ready events of tunnel connection.
+     *
+     * @param connection Tunnel connection.
+     * @param key        Selected key.
+     */
+    private void process(Connection connection, SelectionKey key) {
+        try {
+            if (key.isConnectable() && connection.channel.finishConnect()) {
+                LOGGER.info("Tunnel connection to " + connection.peer + " has been established");
+
+                connection.failureReported = false;
+
+                markDirty(connection);
+            }
+
+            if (key.isValid() && key.isReadable())
+                read(connection);
+
+            if (key.isValid() && key.isWritable())
+                flush(connection);
+        } catch (IOException e) {
+            fail(connection, e);
+        }
+    }
+
+    /**
+     * Handles ready events of stream.
+     *
+     * @param stream Stream.
+     * @param key    Selected key.
+     */
+    private void process(Stream stream, SelectionKey key) {
+        if (key.isConnectable()) {
+            try {
+                if (!stream.channel.finishConnect())
+                    return;
+            } catch (IOException e) {
+                LOGGER.fine("Failed to connect stream " + stream.id + " of tunnel from " +
+                        stream.connection.peer + ": " + e);
+
+                closeStream(stream, true);
+
+                return;
+            }
+
+            stream.connected = true;
+        }
+
+        if (key.isValid() && stream.connected && !stream.queue.isEmpty())
+            write(stream);
+
+        if (key.isValid() && key.isReadable())
+            read(stream);
+
+        if (key.isValid())
+            updateInterest(stream);
+    }
+
+    /**
+     * Opens channel of connecting side and queues hello frame.
+     *
+     * @param connection Tunnel connection.
+     */
+    private void reconnect(Connection connection) {
+        connection.reconnectAt = 0;
+
+        SocketChannel channel = null;
+
+        try {
+            channel = connection.factory.newChannel();
+            channel.configureBlocking(false);
+
+            boolean connected = channel.connect(connection.peer);
+
+            connection.channel = channel;
+            connection.key = channel.register(selector,
+                    connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+        } catch (IOException e) {
+            if (channel != null)
+                close(channel);
+
+            connection.channel = null;
+
+            reportFailure(connection, e);
+
+            connection.reconnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY);
+
+            return;
+        }
+
+        if (connection.compression == TunnelSettings.Compression.DEFLATE)
+            connection.deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+        connection.up = true;
+
+        hello(connection);
+    }
+
+    /**
+     * Closes failed tunnel connection along with its streams. Connecting side reconnects after a delay.
+     *
+     * @param connection Tunnel connection.
+     * @param e          Failure.
+     */
+    private void fail(Connection connection, IOException e) {
+        if (connection.channel == null)
+            return;
+
+        reportFailure(connection, e);
+
+        closeStreams(connection);
+
+        close(connection.channel);
+
+        connection.up = false;
+        connection.channel = null;
+        connection.key = null;
+        connection.helloReceived = false;
+
+        connection.in.clear();
+        connection.out.clear();
+        connection.overflow.clear();
+        connection.blocked.clear();
+
+        if (connection.deflater != null) {
+            connection.deflater.end();
+            connection.deflater = null;
+        }
+
+        if (connection.inflater != null) {
+            connection.inflater.end();
+            connection.inflater = null;
+        }
+
+        if (connection.target == null)
+            connection.reconnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY);
+        else
+            connections.remove(connection);
+    }
+
+    /**
+     * Logs failure of tunnel connection. Repeated failures of reconnecting are logged at fine level.
+     *
+     * @param connection Tunnel connection.
+     * @param e          Failure.
+     */
+    private static void reportFailure(Connection connection, IOException e) {
+        if (connection.target != null && e instanceof EOFException) {
+            LOGGER.info("Tunnel connection from " + connection.peer + " has been closed");
+
+            return;
+        }
+
+        if (connection.failureReported) {
+            LOGGER.fine("Tunnel connection to " + connection.peer + " failed: " + e);
+
+            return;
+        }
+
+        LOGGER.warning("Tunnel connection " + (connection.target == null ? "to " : "from ") +
+                connection.peer + " failed: " + e);
+
+        connection.failureReported = connection.target == null;
+    }
+
+    /**
+     * Reads frames of tunnel connection.
+     *
+     * @param connection Tunnel connection.
+     * @throws IOException If connection fails or peer violates protocol.
+     */
+    private void read(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+
+        if (connection.channel.read(in) < 0)
+            throw new EOFException("tunnel connection closed by peer");
+
+        in.flip();
+
+        while (in.remaining() >= HEADER_SIZE) {
+            int pos = in.position();
+            int length = in.getShort(pos + 6) & 0xffff;
+
+            if (in.remaining() < HEADER_SIZE + length)
+                break;
+
+            int limit = in.limit();
+
+            in.position(pos + HEADER_SIZE);
+            in.limit(pos + HEADER_SIZE + length);
+
+            onFrame(connection, in.getInt(pos), in.get(pos + 4), in.get(pos + 5), in);
+
+            in.limit(limit);
+            in.position(pos + HEADER_SIZE + length);
+        }
+
+        in.compact();
+    }
+
+    /**
+     * Handles frame of tunnel connection.
+     *
+     * @param connection Tunnel connection.
+     * @param streamId   Stream identifier.
+     * @param type       Frame type.
+     * @param flags      Frame flags.
+     * @param payload    Frame payload.
+     * @throws IOException If peer violates protocol.
+     */
+    private void onFrame(Connection connection, int streamId, byte type, byte flags, ByteBuffer payload)
+            throws IOException {
+        if (!connection.helloReceived && type != HELLO)
+            throw new IOException("tunnel protocol error: frame before hello");
+
+        switch (type) {
+            case HELLO:
+                onHello(connection, payload);
+
+                break;
+
+            case OPEN:
+                onOpen(connection, streamId, payload);
+
+                break;
+
+            case DATA:
+                onData(connection, streamId, flags, payload);
+
+                break;
+
+            case WINDOW:
+                onWindow(connection, streamId, payload);
+
+                break;
+
+            case CLOSE:
+                onClose(connection, streamId);
+
+                break;
+
+            default:
+                throw new IOException("tunnel protocol error: unknown frame type " + type);
+        }
+    }
+
+    /**
+     * Handles hello frame. Accepting side compresses its data if connecting side does.
+     *
+     * @param connection Tunnel connection.
+     * @param payload    Frame payload.
+     * @throws IOException If peer is not a tunnel peer of the same protocol version.
+     */
+    private void onHello(Connection connection, ByteBuffer payload) throws IOException {
+        if (connection.helloReceived || payload.remaining() < 6 || payload.getInt() != MAGIC)
+            throw new IOException("tunnel protocol error: invalid hello");
+
+        byte version = payload.get();
+
+        if (version != VERSION)
+            throw new IOException("tunnel protocol error: unsupported version " + version);
+
+        byte compression = payload.get();
+
+        if (connection.target != null && compression == COMPRESSION_DEFLATE)
+            connection.deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+        connection.helloReceived = true;
+    }
+
+    /**
+     * Handles stream opening. Accepting side connects new stream to remote endpoint.
+     *
+     * @param connection Tunnel connection.
+     * @param streamId   Stream identifier.
+     * @param payload    Client address.
+     * @throws IOException If peer violates protocol.
+     */
+    private void onOpen(Connection connection, int streamId, ByteBuffer payload) throws IOException {
+        if (connection.target == null || connection.streams.containsKey(streamId))
+            throw new IOException("tunnel protocol error: unexpected opening of stream " + streamId);
+
+        SocketChannel channel = null;
+
+        try {
+            channel = connection.target.connect(decodeAddress(payload));
+
+            Stream stream = new Stream(streamId, connection, channel);
+
+            stream.connected = channel.isConnected();
+            stream.key = channel.register(selector, 0, stream);
+
+            connection.streams.put(streamId, stream);
+
+            updateInterest(stream);
+        } catch (IOException e) {
+            LOGGER.fine("Failed to open stream " + streamId + " of tunnel from " + connection.peer + ": " + e);
+
+            if (channel != null)
+                close(channel);
+
+            control(connection, streamId, CLOSE, null);
+        }
+    }
+
+    /**
+     * Handles stream data. Data is written to stream channel at once if possible, the rest is queued.
+     *
+     * @param connection Tunnel connection.
+     * @param streamId   Stream identifier.
+     * @param flags      Frame flags.
+     * @param payload    Frame payload.
+     * @throws IOException If peer violates protocol.
+     */
+    private void onData(Connection connection, int streamId, byte flags, ByteBuffer payload) throws IOException {
+        // compressed frame must be inflated even if stream is gone to keep the state of inflater
+        ByteBuffer data = (flags & FLAG_COMPRESSED) != 0 ? inflate(connection, payload) : payload;
+
+        Stream stream = connection.streams.get(streamId);
+
+        // stream has been closed locally, its closing frame is on the way to peer
+        if (stream == null)
+            return;
+
+        if (stream.queued + data.remaining() > INITIAL_WINDOW)
+            throw new IOException("tunnel protocol error: window of stream " + streamId + " exceeded");
+
+        if (stream.connected && stream.queue.isEmpty()) {
+            int remaining = data.remaining();
+
+            try {
+                stream.channel.write(data);
+            } catch (IOException e) {
+                closeStream(stream, true);
+
+                return;
+            }
+
+            acknowledge(stream, remaining - data.remaining());
+        }
+
+        while (data.hasRemaining()) {
+            ByteBuffer chunk = bufferPool.getBuffer(bufferPool.sizeClass(data.remaining()));
+
+            int limit = data.limit();
+
+            data.limit(data.position() + Math.min(data.remaining(), chunk.remaining()));
+
+            chunk.put(data);
+            chunk.flip();
+
+            data.limit(limit);
+
+            stream.queue.add(chunk);
+            stream.queued += chunk.remaining();
+        }
+
+        updateInterest(stream);
+    }
+
+    /**
+     * Handles acknowledgement of stream data.
+     *
+     * @param connection Tunnel connection.
+     * @param streamId   Stream identifier.
+     * @param payload    Count of acknowledged bytes.
+     * @throws IOException If peer violates protocol.
+     */
+    private void onWindow(Connection connection, int streamId, ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 4)
+            throw new IOException("tunnel protocol error: invalid window of stream " + streamId);
+
+        int acknowledged = payload.getInt();
+
+        Stream stream = connection.streams.get(streamId);
+
+        if (stream == null)
+            return;
+
+        if (acknowledged <= 0 || stream.sendWindow + acknowledged > INITIAL_WINDOW)
+            throw new IOException("tunnel protocol error: invalid window of stream " + streamId);
+
+        stream.sendWindow += acknowledged;
+
+        updateInterest(stream);
+    }
+
+    /**
+     * Handles stream closing. Stream is closed once queued data is written.
+     *
+     * @param connection Tunnel connection.
+     * @param streamId   Stream identifier.
+     */
+    private void onClose(Connection connection, int streamId) {
+        Stream stream = connection.streams.get(streamId);
+
+        if (stream == null)
+            return;
+
+        if (stream.queue.isEmpty()) {
+            closeStream(stream, false);
+
+            return;
+        }
+
+        stream.closing = true;
+
+        updateInterest(stream);
+    }
+
+    /**
+     * Inflates compressed frame.
+     *
+     * @param connection Tunnel connection.
+     * @param payload    Compressed data.
+     * @return Uncompressed data. Valid until the next frame is handled.
+     * @throws IOException If data is malformed.
+     */
+    private ByteBuffer inflate(Connection connection, ByteBuffer payload) throws IOException {
+        if (connection.inflater == null)
+            connection.inflater = new Inflater(true);
+
+        Inflater inflater = connection.inflater;
+
+        int length = payload.remaining();
+
+        payload.get(packed, 0, length);
+
+        inflater.setInput(packed, 0, length);
+
+        int inflated = 0;
+
+        try {
+            while (!inflater.needsInput()) {
+                int n = inflater.inflate(raw, inflated, raw.length - inflated);
+
+                if (n == 0)
+                    throw new IOException("tunnel protocol error: malformed compressed frame");
+
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("tunnel protocol error: malformed compressed frame", e);
+        }
+
+        rawBuffer.limit(inflated);
+        rawBuffer.position(0);
+
+        return rawBuffer;
+    }
+
+    /**
+     * Reads data of stream into output buffer of its tunnel connection while stream window allows.
+     *
+     * @param stream Stream.
+     */
+    private void read(Stream stream) {
+        Connection connection = stream.connection;
+
+        for (int i = 0; i < READ_BATCH && stream.sendWindow > 0 && !stream.closing; i++) {
+            int room = dataRoom(connection);
+
+            if (room < MIN_DATA_ROOM) {
+                try {
+                    flush(connection);
+                } catch (IOException e) {
+                    fail(connection, e);
+
+                    return;
+                }
+
+                room = dataRoom(connection);
+            }
+
+            if (room < MIN_DATA_ROOM) {
+                if (!stream.blocked) {
+                    stream.blocked = true;
+
+                    connection.blocked.add(stream);
+                }
+
+                break;
+            }
+
+            int max = Math.min(Math.min(stream.sendWindow, MAX_DATA), room);
+
+            int read;
+
+            try {
+                read = connection.deflater != null ? readCompressed(stream, max) : readPlain(stream, max);
+            } catch (IOException e) {
+                LOGGER.fine("Failed to read stream " + stream.id + " of tunnel " + connection.peer + ": " + e);
+
+                read = -1;
+            }
+
+            if (read < 0) {
+                closeStream(stream, true);
+
+                return;
+            }
+
+            if (read == 0)
+                break;
+
+            stream.sendWindow -= read;
+
+            markDirty(connection);
+
+            // channel is likely drained
+            if (read < max)
+                break;
+        }
+
+        updateInterest(stream);
+    }
+
+    /**
+     * Reads stream data directly into output buffer of tunnel connection as data frame.
+     *
+     * @param stream Stream.
+     * @param max    Maximal count of bytes to read.
+     * @return Count of bytes read or -1 if stream is closed.
+     * @throws IOException If I/O error occurs.
+     */
+    private int readPlain(Stream stream, int max) throws IOException {
+        ByteBuffer out = stream.connection.out;
+
+        int start = out.position();
+        int limit = out.limit();
+
+        out.position(start + HEADER_SIZE);
+        out.limit(start + HEADER_SIZE + max);
+
+        int read = 0;
+
+        try {
+            read = stream.channel.read(out);
+        } finally {
+            out.limit(limit);
+
+            if (read <= 0)
+                out.position(start);
+        }
+
+        if (read > 0)
+            out.putInt(start, stream.id).put(start + 4, DATA).put(start + 5, (byte) 0)
+                    .putShort(start + 6, (short) read);
+
+        return read;
+    }
+
+    /**
+     * Reads stream data and writes it compressed to output buffer of tunnel connection as data frame.
+     *
+     * @param stream Stream.
+     * @param max    Maximal count of bytes to read.
+     * @return Count of bytes read or -1 if stream is closed.
+     * @throws IOException If I/O error occurs.
+     */
+    private int readCompressed(Stream stream, int max) throws IOException {
+        Connection connection = stream.connection;
+
+        rawBuffer.clear();
+        rawBuffer.limit(max);
+
+        int read = stream.channel.read(rawBuffer);
+
+        if (read <= 0)
+            return read;
+
+        connection.deflater.setInput(raw, 0, read);
+
+        int length = connection.deflater.deflate(packed, 0, packed.length, Deflater.SYNC_FLUSH);
+
+        // incompressible data grows by a few bytes only
+        if (length == packed.length)
+            throw new IllegalStateException("compressed frame overflow");
+
+        connection.out.putInt(stream.id).put(DATA).put(FLAG_COMPRESSED).putShort((short) length)
+                .put(packed, 0, length);
+
+        return read;
+    }
+
+    /**
+     * Writes queued data of stream to its channel.
+     *
+     * @param stream Stream.
+     */
+    private void write(Stream stream) {
+        int written = 0;
+
+        ByteBuffer buffer;
+
+        try {
+            while ((buffer = stream.queue.peek()) != null) {
+                int remaining = buffer.remaining();
+
+                stream.channel.write(buffer);
+
+                written += remaining - buffer.remaining();
+
+                if (buffer.hasRemaining())
+                    break;
+
+                stream.queue.poll();
+
+                bufferPool.returnBuffer(buffer);
+            }
+        } catch (IOException e) {
+            LOGGER.fine("Failed to write stream " + stream.id + " of tunnel " + stream.connection.peer + ": " + e);
+
+            closeStream(stream, true);
+
+            return;
+        }
+
+        stream.queued -= written;
+
+        acknowledge(stream, written);
+
+        if (stream.closing && stream.queue.isEmpty())
+            closeStream(stream, false);
+    }
+
+    /**
+     * Counts data written to stream channel and acknowledges it to peer once enough is collected.
+     *
+     * @param stream  Stream.
+     * @param written Count of written bytes.
+     */
+    private void acknowledge(Stream stream, int written) {
+        stream.unacknowledged += written;
+
+        if (stream.unacknowledged < WINDOW_UPDATE || stream.closing)
+            return;
+
+        windowPayload.clear();
+        windowPayload.putInt(stream.unacknowledged).flip();
+
+        control(stream.connection, stream.id, WINDOW, windowPayload);
+
+        stream.unacknowledged = 0;
+    }
+
+    /**
+     * Opens stream of client connection over tunnel connection.
+     *
+     * @param connection Tunnel connection.
+     * @param client     Non-blocking client channel.
+     */
+    private void open(Connection connection, SocketChannel client) {
+        if (stopped) {
+            close(client);
+
+            return;
+        }
+
+        if (connection.channel == null) {
+            LOGGER.fine("Tunnel connection to " + connection.peer + " is down, closing client connection");
+
+            close(client);
+
+            return;
+        }
+
+        int streamId = connection.nextStreamId;
+
+        connection.nextStreamId = streamId == Integer.MAX_VALUE ? 1 : streamId + 1;
+
+        Stream stream = new Stream(streamId, connection, client);
+
+        stream.connected = true;
+
+        try {
+            stream.key = client.register(selector, 0, stream);
+        } catch (ClosedChannelException e) {
+            return;
+        }
+
+        connection.streams.put(streamId, stream);
+        connection.streamCount = connection.streams.size();
+
+        control(connection, streamId, OPEN, encodeAddress(client));
+
+        updateInterest(stream);
+    }
+
+    /**
+     * Closes stream channel and forgets the stream.
+     *
+     * @param stream Stream.
+     * @param notify Whether peer should be notified.
+     */
+    private void closeStream(Stream stream, boolean notify) {
+        Connection connection = stream.connection;
+
+        if (connection.streams.get(stream.id) != stream)
+            return;
+
+        connection.streams.remove(stream.id);
+        connection.streamCount = connection.streams.size();
+
+        if (notify)
+            control(connection, stream.id, CLOSE, null);
+
+        release(stream);
+    }
+
+    /**
+     * Closes all streams of tunnel connection.
+     *
+     * @param connection Tunnel connection.
+     */
+    private void closeStreams(Connection connection) {
+        for (Stream stream : connection.streams.values())
+            release(stream);
+
+        connection.streams.clear();
+        connection.streamCount = 0;
+    }
+
+    /**
+     * Closes stream channel and returns queued buffers to the pool.
+     *
+     * @param stream Stream.
+     */
+    private void release(Stream stream) {
+        close(stream.channel);
+
+        ByteBuffer buffer;
+
+        while ((buffer = stream.queue.poll()) != null)
+            bufferPool.returnBuffer(buffer);
+
+        stream.queued = 0;
+    }
+
+    /**
+     * Queues hello frame.
+     *
+     * @param connection Tunnel connection.
+     */
+    private void hello(Connection connection) {
+        ByteBuffer payload = ByteBuffer.allocate(6);
+
+        byte compression = connection.compression == TunnelSettings.Compression.DEFLATE ?
+                COMPRESSION_DEFLATE : COMPRESSION_NONE;
+
+        payload.putInt(MAGIC).put(VERSION).put(compression).flip();
+
+        control(connection, 0, HELLO, payload);
+    }
+
+    /**
+     * Queues control frame. Control frames are queued even if output buffer is full.
+     *
+     * @param connection Tunnel connection.
+     * @param streamId   Stream identifier.
+     * @param type       Frame type.
+     * @param payload    Frame payload or {@code null}.
+     */
+    private void control(Connection connection, int streamId, byte type, ByteBuffer payload) {
+        int length = payload == null ? 0 : payload.remaining();
+
+        ByteBuffer frame;
+
+        if (connection.overflow.isEmpty() && connection.out.remaining() >= HEADER_SIZE + length)
+            frame = connection.out;
+        else
+            frame = ByteBuffer.allocate(HEADER_SIZE + length);
+
+        frame.putInt(streamId).put(type).put((byte) 0).putShort((short) length);
+
+        if (payload != null)
+            frame.put(payload);
+
+        if (frame != connection.out) {
+            frame.flip();
+
+            connection.overflow.add(frame);
+        }
+
+        markDirty(connection);
+    }
+
+    /**
+     * @param connection Tunnel connection.
+     * @return Space of output buffer available for data frame payload.
+     */
+    private static int dataRoom(Connection connection) {
+        if (!connection.overflow.isEmpty())
+            return 0;
+
+        return connection.out.remaining() - HEADER_SIZE - CONTROL_RESERVE -
+                (connection.deflater != null ? COMPRESSION_SLACK : 0);
+    }
+
+    /**
+     * Writes queued frames of tunnel connection and resumes streams blocked by full output buffer.
+     *
+     * @param connection Tunnel connection.
+     * @throws IOException If I/O error occurs.
+     */
+    private void flush(Connection connection) throws IOException {
+        if (connection.channel == null || !connection.channel.isConnected())
+            return;
+
+        ByteBuffer out = connection.out;
+
+        boolean moved;
+
+        do {
+            out.flip();
+
+            connection.channel.write(out);
+
+            out.compact();
+
+            moved = false;
+
+            while (!connection.overflow.isEmpty() && connection.overflow.peek().remaining() <= out.remaining()) {
+                out.put(connection.overflow.poll());
+
+                moved = true;
+            }
+        } while (moved);
+
+        int ops = SelectionKey.OP_READ;
+
+        if (out.position() > 0 || !connection.overflow.isEmpty())
+            ops |= SelectionKey.OP_WRITE;
+
+        connection.key.interestOps(ops);
+
+        if (dataRoom(connection) >= MIN_DATA_ROOM) {
+            Stream stream;
+
+            while ((stream = connection.blocked.poll()) != null) {
+                stream.blocked = false;
+
+                if (stream.key.isValid())
+                    updateInterest(stream);
+            }
+        }
+    }
+
+    /**
+     * Schedules write of queued frames at the end of loop iteration.
+     *
+     * @param connection Tunnel connection.
+     */
+    private void markDirty(Connection connection) {
+        if (!connection.dirty) {
+            connection.dirty = true;
+
+            dirty.add(connection);
+        }
+    }
+
+    /**
+     * Updates interest set of stream according to its state.
+     *
+     * @param stream Stream.
+     */
+    private static void updateInterest(Stream stream) {
+        if (!stream.key.isValid())
+            return;
+
+        int ops = 0;
+
+        if (!stream.connected) {
+            ops = SelectionKey.OP_CONNECT;
+        } else {
+            if (stream.sendWindow > 0 && !stream.blocked && !stream.closing)
+                ops |= SelectionKey.OP_READ;
+
+            if (!stream.queue.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+        }
+
+        stream.key.interestOps(ops);
+    }
+
+    /**
+     * @param channel Client channel.
+     * @return Client IP address and port or empty buffer if address is unknown.
+     */
+    private static ByteBuffer encodeAddress(SocketChannel channel) {
+        SocketAddress address = channel.socket().getRemoteSocketAddress();
+
+        if (!(address instanceof InetSocketAddress) || ((InetSocketAddress) address).getAddress() == null)
+            return ByteBuffer.allocate(0);
+
+        byte[] ip = ((InetSocketAddress) address).getAddress().getAddress();
+
+        ByteBuffer payload = ByteBuffer.allocate(ip.length + 2);
+
+        payload.put(ip).putShort((short) ((InetSocketAddress) address).getPort()).flip();
+
+        return payload;
+    }
+
+    /**
+     * @param payload Payload of opening frame.
+     * @return Client address or {@code null} if it's unknown.
+     */
+    private static SocketAddress decodeAddress(ByteBuffer payload) {
+        if (payload.remaining() != 6 && payload.remaining() != 18)
+            return null;
+
+        byte[] ip = new byte[payload.remaining() - 2];
+
+        payload.get(ip);
+
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(ip), payload.getShort() & 0xffff);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Closes channel.
+     *
+     * @param channel Channel.
+     */
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close channel: " + e);
+        }
+    }
+
+    /**
+     * Tunnel connection.
+     */
+    final class Connection {
+        /** Peer proxy address. */
+        final SocketAddress peer;
+
+        /** Factory of channels of connecting side or {@code null} for accepted connection. */
+        final NetworkChannelFactory<SocketChannel> factory;
+
+        /** Compression requested by connecting side. */
+        final TunnelSettings.Compression compression;
+
+        /** Remote endpoint of streams of accepted connection or {@code null} for connecting side. */
+        final TunnelTarget target;
+
+        /** Frames read from the channel. */
+        final ByteBuffer in = ByteBuffer.allocateDirect(INPUT_BUFFER);
+
+        /** Frames to write to the channel. */
+        final ByteBuffer out = ByteBuffer.allocateDirect(OUTPUT_BUFFER);
+
+        /** Control frames that don't fit into output buffer. */
+        final Queue<ByteBuffer> overflow = new ArrayDeque<>();
+
+        /** Open streams by identifiers. */
+        final Map<Integer, Stream> streams = new HashMap<>();
+
+        /** Streams waiting for space in output buffer. */
+        final Queue<Stream> blocked = new ArrayDeque<>();
+
+        /** Channel or {@code null} while connecting side waits to reconnect. */
+        SocketChannel channel;
+
+        /** Key of the channel. */
+        SelectionKey key;
+
+        /** Compressor of data sent to peer or {@code null} if data is not compressed. */
+        Deflater deflater;
+
+        /** Decompressor of data received from peer, created on the first compressed frame. */
+        Inflater inflater;
+
+        /** Whether hello frame of peer has been received. */
+        boolean helloReceived;
+
+        /** Whether connection has frames to write at the end of loop iteration. */
+        boolean dirty;
+
+        /** Whether failure of reconnecting has been logged. */
+        boolean failureReported;
+
+        /** Time to reconnect at, ns, or 0 if connection is not waiting to reconnect. */
+        long reconnectAt;
+
+        /** Identifier of the next stream opened by connecting side. */
+        int nextStreamId = 1;
+
+        /** Whether connection is open. Read by other threads choosing connection for new stream. */
+        volatile boolean up;
+
+        /** Count of open streams. Read by other threads choosing connection for new stream. */
+        volatile int streamCount;
+
+        Connection(SocketAddress peer, NetworkChannelFactory<SocketChannel> factory,
+                   TunnelSettings.Compression compression, TunnelTarget target) {
+            this.peer = peer;
+            this.factory = factory;
+            this.compression = compression;
+            this.target = target;
+        }
+
+        /**
+         * Opens stream of client connection over this tunnel connection. Client connection is closed
+         * if tunnel connection is down.
+         *
+         * @param client Non-blocking client channel.
+         */
+        void open(final SocketChannel client) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    TunnelEngine.this.open(Connection.this, client);
+                }
+            });
+        }
+    }
+
+    /**
+     * Client connection carried over tunnel connection.
+     */
+    static final class Stream {
+        /** Stream identifier. */
+        final int id;
+
+        /** Tunnel connection. */
+        final Connection connection;
+
+        /** Channel of client or remote endpoint. */
+        final SocketChannel channel;
+
+        /** Data received from peer and not yet written to the channel. */
+        final Queue<ByteBuffer> queue = new ArrayDeque<>();
+
+        /** Key of the channel. */
+        SelectionKey key;
+
+        /** Count of bytes that may be sent to peer before it acknowledges them. */
+        int sendWindow = INITIAL_WINDOW;
+
+        /** Count of queued bytes. */
+        int queued;
+
+        /** Count of bytes written to the channel and not yet acknowledged to peer. */
+        int unacknowledged;
+
+        /** Whether the channel is connected. */
+        boolean connected;
+
+        /** Whether stream waits for space in output buffer of tunnel connection. */
+        boolean blocked;
+
+        /** Whether peer has closed the stream. Stream is closed once queued data is written. */
+        boolean closing;
+
+        Stream(int id, Connection connection, SocketChannel channel) {
+            this.id = id;
+            this.connection = connection;
+            this.channel = channel;
+        }
+    }
+}
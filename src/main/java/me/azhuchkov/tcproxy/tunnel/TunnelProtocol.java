@@ -0,0 +1,70 @@
+package me.azhuchkov.tcproxy.tunnel;
+
+/**
+ * Framing protocol of tunnel connections. Each frame is 8-byte header: stream identifier (int),
+ * frame type (byte), flags (byte) and payload length (unsigned short), followed by payload.
+ * All numbers are big-endian.
+ * <p/>
+ * Both sides start with {@link #HELLO} frame of stream 0 that carries {@link #MAGIC}, {@link #VERSION}
+ * and compression of connecting side. Connecting side opens stream with {@link #OPEN} frame that carries
+ * client IP address and port, after that both sides send {@link #DATA} frames of the stream.
+ * Stream is closed by {@link #CLOSE} frame of either side, data sent before it is delivered.
+ * <p/>
+ * Each side may have at most {@link #INITIAL_WINDOW} bytes of data of a stream unacknowledged by peer.
+ * Receiver acknowledges data with {@link #WINDOW} frames once it's written to the stream channel, so
+ * slow stream never blocks other streams of the connection. Window counts uncompressed data.
+ * Compressed data frames have {@link #FLAG_COMPRESSED} flag. All compressed frames sent over connection
+ * form single raw Deflate stream flushed at the end of each frame.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+final class TunnelProtocol {
+    /** Magic number of hello frame. */
+    static final int MAGIC = 0x54435054;
+
+    /** Protocol version. */
+    static final byte VERSION = 1;
+
+    /** Size of frame header. */
+    static final int HEADER_SIZE = 8;
+
+    /** Maximal size of frame payload. */
+    static final int MAX_PAYLOAD = 0xffff;
+
+    /** Maximal count of uncompressed data bytes in single frame. */
+    static final int MAX_DATA = 16 * 1024;
+
+    /** Count of unacknowledged data bytes each side may send to a stream. */
+    static final int INITIAL_WINDOW = 256 * 1024;
+
+    /** Frame type of connection greeting. */
+    static final byte HELLO = 0;
+
+    /** Frame type of stream opening. */
+    static final byte OPEN = 1;
+
+    /** Frame type of stream data. */
+    static final byte DATA = 2;
+
+    /** Frame type of acknowledgement of stream data, carries count of acknowledged bytes (int). */
+    static final byte WINDOW = 3;
+
+    /** Frame type of stream closing. */
+    static final byte CLOSE = 4;
+
+    /** Flag of compressed data frame. */
+    static final byte FLAG_COMPRESSED = 1;
+
+    /** Hello code of uncompressed data. */
+    static final byte COMPRESSION_NONE = 0;
+
+    /** Hello code of Deflate compressed data. */
+    static final byte COMPRESSION_DEFLATE = 1;
+
+    /**
+     * Constants holder.
+     */
+    private TunnelProtocol() {
+    }
+}
@@ -0,0 +1,92 @@
+package me.azhuchkov.tcproxy.tunnel;
+
+/**
+ * Tunnel settings of port mapping. Mapping in {@link Mode#CONNECT} mode carries its client connections
+ * as streams over a pool of persistent connections to peer proxy, which is remote endpoint of the mapping.
+ * Mapping of peer proxy in {@link Mode#ACCEPT} mode accepts these connections and relays each stream
+ * to its own remote endpoint.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public final class TunnelSettings {
+    /** Default count of tunnel connections to peer proxy. */
+    public static final int DEFAULT_CONNECTIONS = 2;
+
+    /**
+     * Tunnel side.
+     */
+    public enum Mode {
+        /** Mapping multiplexes its client connections over tunnel connections to peer proxy. */
+        CONNECT,
+
+        /** Mapping accepts tunnel connections of peer proxy and demultiplexes their streams. */
+        ACCEPT
+    }
+
+    /**
+     * Compression of stream data.
+     */
+    public enum Compression {
+        /** Data is sent as is. */
+        NONE,
+
+        /** Data of each tunnel connection is compressed as single Deflate stream flushed on each frame. */
+        DEFLATE
+    }
+
+    /** Tunnel side. */
+    private final Mode mode;
+
+    /** Count of tunnel connections to peer proxy. Used by {@link Mode#CONNECT} side only. */
+    private final int connections;
+
+    /** Compression of data sent to peer. Peer compresses its data the same way. */
+    private final Compression compression;
+
+    /**
+     * @param mode        Tunnel side.
+     * @param connections Count of tunnel connections to peer proxy. Used by {@link Mode#CONNECT} side only.
+     * @param compression Compression of data sent by both sides. Used by {@link Mode#CONNECT} side only,
+     *                    accepting side follows its peer.
+     * @throws IllegalArgumentException If count of connections is not positive.
+     */
+    public TunnelSettings(Mode mode, int connections, Compression compression) {
+        if (connections <= 0)
+            throw new IllegalArgumentException("invalid count of tunnel connections: " + connections);
+
+        this.mode = mode;
+        this.connections = connections;
+        this.compression = compression;
+    }
+
+    /**
+     * @return Tunnel side.
+     */
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * @return Count of tunnel connections to peer proxy.
+     */
+    public int connections() {
+        return connections;
+    }
+
+    /**
+     * @return Compression of stream data.
+     */
+    public Compression compression() {
+        return compression;
+    }
+
+    @Override
+    public String toString() {
+        return "TunnelSettings{" +
+                "mode=" + mode +
+                ", connections=" + connections +
+                ", compression=" + compression +
+                '}';
+    }
+}
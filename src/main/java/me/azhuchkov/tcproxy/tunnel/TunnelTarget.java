@@ -0,0 +1,22 @@
+package me.azhuchkov.tcproxy.tunnel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Remote endpoint of streams of accepted tunnel connection.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public interface TunnelTarget {
+    /**
+     * Starts connecting to remote endpoint of new stream.
+     *
+     * @param client Address of client that has opened the stream at peer proxy or {@code null} if unknown.
+     * @return Non-blocking channel that is connected or connecting to remote endpoint.
+     * @throws IOException If connection can't be initiated.
+     */
+    SocketChannel connect(SocketAddress client) throws IOException;
+}
@@ -0,0 +1,156 @@
+package me.azhuchkov.tcproxy.tunnel;
+
+import me.azhuchkov.tcproxy.channel.NetworkChannelFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Proxy-to-proxy tunnels. Connecting side carries client connections of a mapping as streams over
+ * small {@link Pool} of persistent connections to peer proxy, so long-haul connection handshake and
+ * slow start are paid once per tunnel connection rather than once per client. Accepting side relays
+ * streams of accepted tunnel connections to remote endpoint of its mapping. See {@link TunnelProtocol}
+ * for the framing.
+ * <p/>
+ * Tunnel connections and their streams are served by engine threads, each tunnel connection with all
+ * its streams belongs to single thread. Connections are spread over threads round-robin.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class Tunneling {
+    /** Engine threads. */
+    private final TunnelEngine[] engines;
+
+    /** Counter of engine assignments. */
+    private final AtomicInteger nextEngine = new AtomicInteger();
+
+    /**
+     * Creates tunnel engines.
+     *
+     * @param name     Prefix of thread names.
+     * @param provider Provider to open selectors with. Channels must be opened by the same provider.
+     * @param threads  Count of engine threads.
+     * @throws IOException              If selector can't be opened.
+     * @throws IllegalArgumentException If count of threads is not positive.
+     */
+    public Tunneling(String name, SelectorProvider provider, int threads) throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("invalid count of tunnel threads: " + threads);
+
+        engines = new TunnelEngine[threads];
+
+        for (int i = 0; i < threads; i++) {
+            try {
+                engines[i] = new TunnelEngine(name + " #" + i, provider);
+            } catch (IOException e) {
+                // engines created so far release their selectors once they exit
+                for (int j = 0; j < i; j++) {
+                    engines[j].start();
+                    engines[j].interrupt();
+                }
+
+                throw e;
+            }
+
+            engines[i].setDaemon(true);
+        }
+    }
+
+    /**
+     * Starts engine threads.
+     */
+    public void start() {
+        for (TunnelEngine engine : engines)
+            engine.start();
+    }
+
+    /**
+     * Stops engine threads closing all tunnel connections and streams.
+     *
+     * @throws InterruptedException If interrupted.
+     */
+    public void shutdown() throws InterruptedException {
+        for (TunnelEngine engine : engines)
+            engine.interrupt();
+
+        for (TunnelEngine engine : engines)
+            engine.join();
+    }
+
+    /**
+     * Creates pool of tunnel connections to peer proxy. Connections are established in background
+     * and reconnected once they fail.
+     *
+     * @param peers    Peer proxy addresses. Connections are spread over them.
+     * @param factory  Factory of tunnel connection channels.
+     * @param settings Tunnel settings.
+     * @return Pool of tunnel connections.
+     */
+    public Pool connect(List<SocketAddress> peers, NetworkChannelFactory<SocketChannel> factory,
+                        TunnelSettings settings) {
+        TunnelEngine.Connection[] connections = new TunnelEngine.Connection[settings.connections()];
+
+        for (int i = 0; i < connections.length; i++)
+            connections[i] = engine().connect(peers.get(i % peers.size()), factory, settings.compression());
+
+        return new Pool(connections);
+    }
+
+    /**
+     * Serves tunnel connection accepted from peer proxy.
+     *
+     * @param channel Non-blocking accepted channel.
+     * @param target  Remote endpoint of streams.
+     */
+    public void accept(SocketChannel channel, TunnelTarget target) {
+        engine().accept(channel, target);
+    }
+
+    /**
+     * @return Engine to assign the next tunnel connection to.
+     */
+    private TunnelEngine engine() {
+        return engines[(nextEngine.getAndIncrement() & Integer.MAX_VALUE) % engines.length];
+    }
+
+    /**
+     * Pool of tunnel connections of mapping.
+     */
+    public static final class Pool {
+        /** Tunnel connections. */
+        private final TunnelEngine.Connection[] connections;
+
+        /**
+         * @param connections Tunnel connections.
+         */
+        private Pool(TunnelEngine.Connection[] connections) {
+            this.connections = connections;
+        }
+
+        /**
+         * Opens stream of client connection over tunnel connection that carries the least streams.
+         * Client connection is closed if all tunnel connections are down.
+         *
+         * @param client Non-blocking client channel.
+         */
+        public void open(SocketChannel client) {
+            TunnelEngine.Connection chosen = connections[0];
+
+            int min = Integer.MAX_VALUE;
+
+            for (TunnelEngine.Connection connection : connections) {
+                if (connection.up && connection.streamCount < min) {
+                    chosen = connection;
+                    min = connection.streamCount;
+                }
+            }
+
+            chosen.open(client);
+        }
+    }
+}
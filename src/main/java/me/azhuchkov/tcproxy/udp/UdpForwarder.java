@@ -0,0 +1,462 @@
+package me.azhuchkov.tcproxy.udp;
+
+import me.azhuchkov.tcproxy.BufferPool;
+import me.azhuchkov.tcproxy.PortMapping;
+import me.azhuchkov.tcproxy.backend.MaglevTable;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Forwards datagrams of UDP mappings. Each local port is served by its own datagram channel.
+ * Each client address gets its own session with upstream channel connected to remote endpoint,
+ * so replies are routed back by the channel they arrive at. If mapping has several backends,
+ * backend of the client is chosen by consistent hashing of its IP address. Sessions without
+ * traffic for idle timeout are expired. Each session takes a file descriptor, so count of sessions
+ * is limited: once the limit is reached, datagrams of new clients are dropped until some session expires.
+ * <p/>
+ * All channels of the forwarder are served by single thread. Datagrams are received and sent
+ * in batches through pooled buffer. Datagram that can't be sent at once is dropped, as network
+ * would do.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class UdpForwarder extends Thread {
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(UdpForwarder.class.getName());
+
+    /** Maximal size of UDP datagram. */
+    private static final int MAX_DATAGRAM = 65535;
+
+    /** Selector provider. */
+    private final SelectorProvider provider;
+
+    /** Selector of all channels of the forwarder. */
+    private final Selector selector;
+
+    /** Pool of datagram buffers. */
+    private final BufferPool bufferPool = new BufferPool(MAX_DATAGRAM);
+
+    /** Maximal count of datagrams received on single readiness event. */
+    private final int readBatch;
+
+    /** Time without traffic after which session is expired, ns. */
+    private final long idleTimeout;
+
+    /** Maximal count of sessions. */
+    private final int maxSessions;
+
+    /** Listeners of local ports. */
+    private final List<Listener> listeners = new ArrayList<>();
+
+    /** Count of active sessions. */
+    private volatile int sessions;
+
+    /** Count of datagrams dropped since they couldn't be sent. */
+    private volatile long dropped;
+
+    /** Count of datagrams of new clients dropped since session limit is reached. */
+    private volatile long rejected;
+
+    /** Whether session limit has been reached and not yet warned about again. */
+    private boolean full;
+
+    /**
+     * Creates forwarder.
+     *
+     * @param name        Thread name.
+     * @param provider    Provider to open channels and selector with.
+     * @param readBatch   Maximal count of datagrams received on single readiness event.
+     * @param idleTimeout Time without traffic after which session is expired, ms.
+     * @param maxSessions Maximal count of sessions.
+     * @throws IOException              If selector can't be opened.
+     * @throws IllegalArgumentException If read batch, idle timeout or session limit is not positive.
+     */
+    public UdpForwarder(String name, SelectorProvider provider, int readBatch, long idleTimeout, int maxSessions)
+            throws IOException {
+        super(name);
+
+        if (readBatch <= 0)
+            throw new IllegalArgumentException("invalid read batch: " + readBatch);
+
+        if (idleTimeout <= 0)
+            throw new IllegalArgumentException("invalid idle timeout: " + idleTimeout);
+
+        if (maxSessions <= 0)
+            throw new IllegalArgumentException("invalid session limit: " + maxSessions);
+
+        this.provider = provider;
+        this.selector = provider.openSelector();
+        this.readBatch = readBatch;
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Binds local port of given mapping. Must be called before forwarder is started.
+     *
+     * @param mapping      UDP mapping.
+     * @param backendTable Consistent hash table of mapping backends or {@code null} if mapping has single backend.
+     * @return {@code false} if port can't be bound.
+     * @throws IllegalStateException If forwarder has been started.
+     */
+    public boolean bind(PortMapping mapping, MaglevTable backendTable) {
+        if (getState() != State.NEW)
+            throw new IllegalStateException("already started");
+
+        DatagramChannel channel = null;
+
+        try {
+            channel = provider.openDatagramChannel();
+            channel.bind(mapping.localAddress());
+            channel.configureBlocking(false);
+
+            Listener listener = new Listener(mapping, channel, backendTable);
+
+            channel.register(selector, SelectionKey.OP_READ, listener);
+
+            listeners.add(listener);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to bind UDP port: " + mapping.localAddress(), e);
+
+            if (channel != null)
+                close(channel);
+
+            return false;
+        }
+
+        LOGGER.info("Start forwarding UDP " + mapping.localAddress() + " to " + mapping.remoteAddress());
+
+        return true;
+    }
+
+    /**
+     * @return Count of active sessions.
+     */
+    public int sessions() {
+        return sessions;
+    }
+
+    /**
+     * @return Count of datagrams dropped since they couldn't be sent.
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * @return Count of datagrams of new clients dropped since session limit is reached.
+     */
+    public long rejected() {
+        return rejected;
+    }
+
+    @Override
+    public void run() {
+        long checkInterval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleTimeout) / 4);
+        long nextCheck = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(checkInterval);
+
+        try {
+            while (!isInterrupted()) {
+                selector.select(checkInterval);
+
+                if (!selector.selectedKeys().isEmpty()) {
+                    ByteBuffer buffer = bufferPool.getBuffer();
+
+                    try {
+                        for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                            SelectionKey key = it.next();
+
+                            it.remove();
+
+                            if (!key.isValid())
+                                continue;
+
+                            if (key.attachment() instanceof Listener)
+                                onClientRead((Listener) key.attachment(), buffer);
+                            else
+                                onUpstreamRead((Session) key.attachment(), buffer);
+                        }
+                    } finally {
+                        bufferPool.returnBuffer(buffer);
+                    }
+                }
+
+                long now = System.nanoTime();
+
+                if (now - nextCheck >= 0) {
+                    expire(now);
+
+                    nextCheck = now + TimeUnit.MILLISECONDS.toNanos(checkInterval);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "UDP forwarder failed", e);
+        } finally {
+            for (Listener listener : listeners) {
+                for (Session session : listener.sessions.values())
+                    close(session.upstream);
+
+                close(listener.channel);
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warning("Failed to close selector: " + e);
+            }
+        }
+    }
+
+    /**
+     * Receives datagrams from clients and sends them to remote endpoint through sessions of clients.
+     *
+     * @param listener Listener of local port.
+     * @param buffer   Datagram buffer.
+     */
+    private void onClientRead(Listener listener, ByteBuffer buffer) {
+        long now = System.nanoTime();
+
+        for (int i = 0; i < readBatch; i++) {
+            SocketAddress client;
+
+            buffer.clear();
+
+            try {
+                client = listener.channel.receive(buffer);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to receive datagram on " + listener.mapping.localAddress() + ": " + e);
+
+                return;
+            }
+
+            if (client == null)
+                return;
+
+            Session session = listener.sessions.get(client);
+
+            if (session == null && sessions >= maxSessions) {
+                rejected++;
+
+                if (!full) {
+                    full = true;
+
+                    LOGGER.warning("UDP session limit " + maxSessions + " is reached by " + getName() +
+                            ", datagrams of new clients are dropped");
+                }
+
+                continue;
+            }
+
+            try {
+                if (session == null)
+                    session = openSession(listener, client);
+
+                buffer.flip();
+
+                if (session.upstream.write(buffer) == 0)
+                    dropped++;
+
+                session.lastActive = now;
+            } catch (PortUnreachableException e) {
+                if (session != null)
+                    closeSession(session);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to forward datagram of " + client + ": " + e);
+
+                if (session != null)
+                    closeSession(session);
+            }
+        }
+    }
+
+    /**
+     * Receives datagrams from remote endpoint and sends them back to client of the session.
+     *
+     * @param session Client session.
+     * @param buffer  Datagram buffer.
+     */
+    private void onUpstreamRead(Session session, ByteBuffer buffer) {
+        for (int i = 0; i < readBatch; i++) {
+            buffer.clear();
+
+            try {
+                if (session.upstream.read(buffer) <= 0)
+                    return;
+
+                buffer.flip();
+
+                if (session.listener.channel.send(buffer, session.client) == 0)
+                    dropped++;
+
+                session.lastActive = System.nanoTime();
+            } catch (PortUnreachableException e) {
+                closeSession(session);
+
+                return;
+            } catch (IOException e) {
+                LOGGER.warning("Failed to forward datagram to " + session.client + ": " + e);
+
+                closeSession(session);
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens session of new client.
+     *
+     * @param listener Listener of local port.
+     * @param client   Client address.
+     * @return New session.
+     * @throws IOException If upstream channel can't be opened.
+     */
+    private Session openSession(Listener listener, SocketAddress client) throws IOException {
+        DatagramChannel upstream = provider.openDatagramChannel();
+
+        try {
+            upstream.configureBlocking(false);
+            upstream.connect(listener.backend(client));
+
+            Session session = new Session(listener, client, upstream);
+
+            upstream.register(selector, SelectionKey.OP_READ, session);
+
+            listener.sessions.put(client, session);
+
+            sessions++;
+
+            return session;
+        } catch (IOException e) {
+            close(upstream);
+
+            throw e;
+        }
+    }
+
+    /**
+     * Closes sessions that have had no traffic for idle timeout.
+     *
+     * @param now Current time, ns.
+     */
+    private void expire(long now) {
+        for (Listener listener : listeners) {
+            for (Iterator<Session> it = listener.sessions.values().iterator(); it.hasNext(); ) {
+                Session session = it.next();
+
+                if (now - session.lastActive >= idleTimeout) {
+                    it.remove();
+
+                    close(session.upstream);
+
+                    sessions--;
+                }
+            }
+        }
+
+        if (sessions < maxSessions)
+            full = false;
+    }
+
+    /**
+     * Closes session and removes it from session table.
+     *
+     * @param session Session.
+     */
+    private void closeSession(Session session) {
+        if (session.listener.sessions.remove(session.client) != null)
+            sessions--;
+
+        close(session.upstream);
+    }
+
+    /**
+     * Closes channel.
+     *
+     * @param channel Channel.
+     */
+    private static void close(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close channel: " + e);
+        }
+    }
+
+    /**
+     * Local port of UDP mapping.
+     */
+    private static class Listener {
+        /** Port mapping. */
+        final PortMapping mapping;
+
+        /** Channel bound to local port. */
+        final DatagramChannel channel;
+
+        /** Sessions by client addresses. */
+        final Map<SocketAddress, Session> sessions = new HashMap<>();
+
+        /** Backends of the mapping. */
+        final SocketAddress[] backends;
+
+        /** Consistent hash table of backends or {@code null} if mapping has single backend. */
+        final MaglevTable backendTable;
+
+        Listener(PortMapping mapping, DatagramChannel channel, MaglevTable backendTable) {
+            this.mapping = mapping;
+            this.channel = channel;
+            this.backends = mapping.remoteAddresses().toArray(new SocketAddress[0]);
+            this.backendTable = backendTable;
+        }
+
+        /**
+         * @param client Client address.
+         * @return Backend address of the client.
+         */
+        SocketAddress backend(SocketAddress client) {
+            if (backendTable == null)
+                return backends[0];
+
+            return backends[backendTable.lookup(MaglevTable.hash(client))];
+        }
+    }
+
+    /**
+     * Datagram exchange between client and remote endpoint.
+     */
+    private static class Session {
+        /** Listener the client sends datagrams to. */
+        final Listener listener;
+
+        /** Client address. */
+        final SocketAddress client;
+
+        /** Channel connected to remote endpoint. */
+        final DatagramChannel upstream;
+
+        /** Time of last datagram, ns. */
+        long lastActive;
+
+        Session(Listener listener, SocketAddress client, DatagramChannel upstream) {
+            this.listener = listener;
+            this.client = client;
+            this.upstream = upstream;
+        }
+    }
+}
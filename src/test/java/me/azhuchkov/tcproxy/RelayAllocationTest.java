@@ -0,0 +1,223 @@
+package me.azhuchkov.tcproxy;
+
+import me.azhuchkov.tcproxy.channel.SelectedKeySet;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Selector;
+import java.net.SocketAddress;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that worker relays chunks without allocating anything in steady state, mirrored or not.
+ * Skipped if JDK refuses injection of selected keys set (JDK 9+ without
+ * {@code --add-opens java.base/sun.nio.ch=ALL-UNNAMED}) or doesn't count thread allocations.
+ *
+ * @author Andrey Zhuchkov
+ *         Date: 19.10.26
+ */
+public class RelayAllocationTest {
+    /** Size of relayed chunk. */
+    private static final int CHUNK = 1024;
+
+    /** Count of round trips to warm up buffer pool caches and JIT. */
+    private static final int WARMUP = 20000;
+
+    /** Count of measured round trips. */
+    private static final int ROUND_TRIPS = 10000;
+
+    /** Echo backend. */
+    private ServerSocket backend;
+
+    /** Shadow backend that discards mirrored data. */
+    private ServerSocket shadow;
+
+    /** Proxy under test. */
+    private ProxyServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        try (Selector selector = Selector.open()) {
+            Assume.assumeNotNull(SelectedKeySet.inject(selector));
+        }
+
+        Assume.assumeTrue(threadMXBean() != null && threadMXBean().isThreadAllocatedMemorySupported());
+
+        backend = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        Thread echo = new Thread("Echo") {
+            @Override
+            public void run() {
+                try (Socket socket = backend.accept()) {
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+
+                    byte[] buf = new byte[CHUNK];
+
+                    for (int read; (read = in.read(buf)) > 0; )
+                        out.write(buf, 0, read);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+
+        echo.setDaemon(true);
+        echo.start();
+
+        shadow = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        Thread sink = new Thread("Sink") {
+            @Override
+            public void run() {
+                try (Socket socket = shadow.accept()) {
+                    InputStream in = socket.getInputStream();
+
+                    byte[] buf = new byte[CHUNK];
+
+                    while (in.read(buf) > 0) {
+                        // discard
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+
+        sink.setDaemon(true);
+        sink.start();
+
+        server = ProxyServer.create().workers(1).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null)
+            server.shutdown();
+
+        if (backend != null)
+            backend.close();
+
+        if (shadow != null)
+            shadow.close();
+    }
+
+    @Test
+    public void testRelayDoesNotAllocate() throws Exception {
+        InetSocketAddress proxyAddress = freeAddress();
+
+        server.start(Collections.singleton(new PortMapping("test", proxyAddress,
+                (InetSocketAddress) backend.getLocalSocketAddress())));
+
+        assertEquals("bytes allocated by worker for " + 2 * ROUND_TRIPS + " chunks", 0, relayAllocation(proxyAddress));
+    }
+
+    @Test
+    public void testMirroredRelayDoesNotAllocate() throws Exception {
+        InetSocketAddress proxyAddress = freeAddress();
+
+        server.start(Collections.singleton(new PortMapping("test", PortMapping.Protocol.TCP, proxyAddress,
+                Collections.<SocketAddress>singletonList(backend.getLocalSocketAddress()), WorkerGroup.DEFAULT,
+                null, null, 0, shadow.getLocalSocketAddress(), null, null, null)));
+
+        long allocated = relayAllocation(proxyAddress);
+
+        // queue of the mirror takes new pooled buffers if mirroring thread falls behind further than
+        // during warm-up, which depends on scheduling, but nothing is allocated per mirrored chunk
+        assertTrue("bytes allocated by worker for " + ROUND_TRIPS + " mirrored chunks: " + allocated,
+                allocated < ROUND_TRIPS);
+    }
+
+    /**
+     * Relays chunks through proxy once warmed up and measures memory allocated by worker meanwhile.
+     *
+     * @param proxyAddress Address proxy listens on.
+     * @return Count of bytes allocated by worker.
+     * @throws IOException If I/O error occurs.
+     */
+    private static long relayAllocation(InetSocketAddress proxyAddress) throws IOException {
+        try (Socket client = new Socket(proxyAddress.getAddress(), proxyAddress.getPort())) {
+            client.setTcpNoDelay(true);
+
+            OutputStream out = client.getOutputStream();
+            DataInputStream in = new DataInputStream(client.getInputStream());
+
+            byte[] chunk = new byte[CHUNK];
+
+            roundTrips(out, in, chunk, WARMUP);
+
+            long workerId = workerThreadId();
+
+            long before = threadMXBean().getThreadAllocatedBytes(workerId);
+
+            roundTrips(out, in, chunk, ROUND_TRIPS);
+
+            long after = threadMXBean().getThreadAllocatedBytes(workerId);
+
+            assertTrue("worker thread is not alive", before >= 0 && after >= 0);
+
+            return after - before;
+        }
+    }
+
+    /**
+     * @return Loopback address with port that is free at the moment.
+     * @throws IOException If I/O error occurs.
+     */
+    private static InetSocketAddress freeAddress() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return (InetSocketAddress) probe.getLocalSocketAddress();
+        }
+    }
+
+    /**
+     * Sends chunks through proxy and reads them back.
+     *
+     * @param out   Client output.
+     * @param in    Client input.
+     * @param chunk Chunk to send.
+     * @param count Count of round trips.
+     * @throws IOException If I/O error occurs.
+     */
+    private static void roundTrips(OutputStream out, DataInputStream in, byte[] chunk, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.write(chunk);
+            in.readFully(chunk);
+        }
+    }
+
+    /**
+     * @return Identifier of the only worker thread.
+     */
+    private static long workerThreadId() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Proxy TCP Dispatcher-"))
+                return thread.getId();
+        }
+
+        throw new AssertionError("worker thread not found");
+    }
+
+    /**
+     * @return Thread bean that counts allocated bytes or {@code null} if JVM doesn't provide one.
+     */
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        return bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+}